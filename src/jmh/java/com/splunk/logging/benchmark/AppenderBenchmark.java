@@ -0,0 +1,173 @@
+package com.splunk.logging.benchmark;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.splunk.logging.HttpEventCollectorLog4jAppender;
+import com.splunk.logging.HttpEventCollectorLogbackAppender;
+import com.splunk.logging.HttpEventCollectorLoggingHandler;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * Append path of each appender, from a logging framework event to a batch handed to the
+ * middleware. Events are created per call, as the logging frameworks do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppenderBenchmark {
+    private static final String Url = "http://localhost:8088";
+    private static final String BatchCount = "100";
+    private static final String LoggerName = "com.example.Service";
+    private static final String Message = "user {} logged in from {}";
+    private static final Throwable Failure = new IllegalStateException("login failed");
+
+    @State(Scope.Benchmark)
+    public static class Logback {
+        LoggerContext context;
+        Logger logger;
+        HttpEventCollectorLogbackAppender<ILoggingEvent> appender;
+
+        @Setup
+        public void setup() {
+            context = new LoggerContext();
+            PatternLayout layout = new PatternLayout();
+            layout.setContext(context);
+            layout.setPattern("%msg");
+            layout.start();
+            appender = new HttpEventCollectorLogbackAppender<>();
+            appender.setContext(context);
+            appender.setUrl(Url);
+            appender.setToken("token");
+            appender.setLayout(layout);
+            appender.setbatch_size_count(BatchCount);
+            appender.setmiddleware(NoopMiddleware.class.getName());
+            appender.start();
+            logger = context.getLogger(LoggerName);
+        }
+
+        @TearDown
+        public void tearDown() {
+            appender.stop();
+            context.stop();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Log4j {
+        org.apache.logging.log4j.core.LoggerContext context;
+        HttpEventCollectorLog4jAppender appender;
+
+        @Setup
+        public void setup() {
+            ConfigurationBuilder<BuiltConfiguration> builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+            builder.setStatusLevel(org.apache.logging.log4j.Level.ERROR);
+            builder.setPackages("com.splunk.logging");
+            builder.add(builder.newAppender("splunk", "SplunkHttp")
+                    .addAttribute("url", Url)
+                    .addAttribute("token", "token")
+                    .addAttribute("batch_size_count", BatchCount)
+                    .addAttribute("middleware", NoopMiddleware.class.getName())
+                    .add(builder.newLayout("PatternLayout").addAttribute("pattern", "%m")));
+            builder.add(builder.newRootLogger(org.apache.logging.log4j.Level.INFO)
+                    .add(builder.newAppenderRef("splunk")));
+            context = Configurator.initialize(builder.build());
+            appender = context.getConfiguration().getAppender("splunk");
+        }
+
+        @TearDown
+        public void tearDown() {
+            Configurator.shutdown(context);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Jul {
+        HttpEventCollectorLoggingHandler handler;
+
+        @Setup
+        public void setup() throws IOException {
+            String prefix = HttpEventCollectorLoggingHandler.class.getName() + ".";
+            String conf = prefix + "url=" + Url + "\n"
+                    + prefix + "token=token\n"
+                    + prefix + "batch_size_count=" + BatchCount + "\n"
+                    + prefix + "middleware=" + NoopMiddleware.class.getName() + "\n";
+            LogManager.getLogManager().readConfiguration(
+                    new ByteArrayInputStream(conf.getBytes(StandardCharsets.UTF_8)));
+            handler = new HttpEventCollectorLoggingHandler();
+        }
+
+        @TearDown
+        public void tearDown() {
+            handler.close();
+            LogManager.getLogManager().reset();
+        }
+    }
+
+    @Benchmark
+    public void logback(Logback state) {
+        state.appender.doAppend(new LoggingEvent(Logger.class.getName(), state.logger,
+                ch.qos.logback.classic.Level.INFO, Message, null, new Object[]{"jane", "10.0.0.1"}));
+    }
+
+    @Benchmark
+    public void logbackError(Logback state) {
+        state.appender.doAppend(new LoggingEvent(Logger.class.getName(), state.logger,
+                ch.qos.logback.classic.Level.ERROR, Message, Failure, new Object[]{"jane", "10.0.0.1"}));
+    }
+
+    @Benchmark
+    public void log4j(Log4j state) {
+        state.appender.append(Log4jLogEvent.newBuilder()
+                .setLoggerName(LoggerName)
+                .setLevel(org.apache.logging.log4j.Level.INFO)
+                .setMessage(new ParameterizedMessage(Message, "jane", "10.0.0.1"))
+                .setTimeMillis(System.currentTimeMillis())
+                .build());
+    }
+
+    @Benchmark
+    public void jul(Jul state) {
+        LogRecord record = new LogRecord(Level.INFO, "user {0} logged in from {1}");
+        record.setLoggerName(LoggerName);
+        record.setParameters(new Object[]{"jane", "10.0.0.1"});
+        state.handler.publish(record);
+    }
+
+    @Benchmark
+    public void julError(Jul state) {
+        LogRecord record = new LogRecord(Level.SEVERE, "user {0} logged in from {1}");
+        record.setLoggerName(LoggerName);
+        record.setParameters(new Object[]{"jane", "10.0.0.1"});
+        record.setThrown(Failure);
+        state.handler.publish(record);
+    }
+}
@@ -0,0 +1,68 @@
+package com.splunk.logging.benchmark;
+
+import com.splunk.logging.HttpEventCollectorSender;
+import com.splunk.logging.LocalHttpEventCollector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HttpEventCollectorSender.send over OkHttp to a LocalHttpEventCollector. The pending
+ * budget blocks the logging thread once 8MB are in flight, so the score is the
+ * sustained throughput of the whole HTTP path rather than of the queueing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpSenderBenchmark {
+    private static final long MaxPendingBytes = 8 * 1024 * 1024;
+
+    @Param({"0", "5"})
+    public long latency;
+
+    @Param({"false", "true"})
+    public boolean compression;
+
+    private LocalHttpEventCollector collector;
+    private HttpEventCollectorSender sender;
+
+    @Setup
+    public void setup() throws IOException {
+        collector = new LocalHttpEventCollector();
+        collector.setLatency(latency);
+        sender = new HttpEventCollectorSender(collector.getUrl(), "token", null, null,
+                10, 1000, 256 * 1024, "parallel", new HashMap<>(), null);
+        sender.setPendingBudget(MaxPendingBytes, 0, "block", 10000, null);
+        if (compression) {
+            sender.enableCompression(-1, HttpEventCollectorSender.DefaultCompressionMinSize);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.close();
+        collector.close();
+    }
+
+    @Benchmark
+    public void send() {
+        sender.send(System.currentTimeMillis(), "INFO", "user logged in from 10.0.0.1",
+                "com.example.Service", "main", null, null, null);
+    }
+}
@@ -0,0 +1,80 @@
+package com.splunk.logging.benchmark;
+
+import com.splunk.logging.HttpEventCollectorSender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HttpEventCollectorSender.send from the logging thread up to the middleware, which
+ * acknowledges every batch at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SenderBenchmark {
+
+    @Param({"1", "100"})
+    public int batchCount;
+
+    @Param({"0", "8192"})
+    public int ingestionQueueSize;
+
+    private HttpEventCollectorSender sender;
+    private final Map<String, String> properties = Collections.singletonMap("tenant", "acme");
+
+    @Setup
+    public void setup() {
+        sender = new HttpEventCollectorSender("http://localhost:8088", "token", null, null,
+                0, batchCount, 0, "sequential", new HashMap<>(), null);
+        sender.addMiddleware(new NoopMiddleware());
+        sender.setIngestionQueueSize(ingestionQueueSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.close();
+    }
+
+    @Benchmark
+    public void send() {
+        sender.send(System.currentTimeMillis(), "INFO", "user logged in from 10.0.0.1",
+                "com.example.Service", "main", properties, null, null);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void sendContended() {
+        send();
+    }
+
+    /**
+     * Latency of each send with 64 logging threads, compare the p99 with and without
+     * the ingestion queue.
+     */
+    @Benchmark
+    @Threads(64)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void sendLatency64Threads() {
+        send();
+    }
+}
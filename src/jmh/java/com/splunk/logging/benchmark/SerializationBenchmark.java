@@ -0,0 +1,101 @@
+package com.splunk.logging.benchmark;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.splunk.logging.HttpEventCollectorEventInfo;
+import com.splunk.logging.SplunkCimLogEvent;
+import com.splunk.logging.hec.MetadataTags;
+import com.splunk.logging.serialization.EventInfoTypeAdapter;
+import com.splunk.logging.serialization.HecJsonSerializer;
+import com.splunk.logging.serialization.Utf8JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a single event into the event collector format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"text", "json", "properties"})
+    public String message;
+
+    private HttpEventCollectorEventInfo event;
+    private HecJsonSerializer serializer;
+    private Utf8JsonWriter writer;
+    private Gson gson;
+
+    @Setup
+    public void setup() {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put(MetadataTags.INDEX, "main");
+        metadata.put(MetadataTags.SOURCE, "benchmark");
+        metadata.put(MetadataTags.SOURCETYPE, "_json");
+        serializer = new HecJsonSerializer(metadata);
+        writer = new Utf8JsonWriter();
+        gson = new GsonBuilder()
+                .registerTypeAdapter(HttpEventCollectorEventInfo.class, new EventInfoTypeAdapter())
+                .create();
+        event = createEvent(message);
+    }
+
+    static HttpEventCollectorEventInfo createEvent(String message) {
+        Map<String, String> properties = null;
+        String text = "user logged in from 10.0.0.1 after 3 attempts";
+        if ("json".equals(message)) {
+            text = "{\"user\":\"jdoe\",\"action\":\"login\",\"attempts\":3,\"source\":\"10.0.0.1\"}";
+        } else if ("properties".equals(message)) {
+            properties = new HashMap<>();
+            properties.put("requestId", "4f1c2b9e-0a61-4d5e-9d6b-2c8f0f1a7e33");
+            properties.put("tenant", "acme");
+            properties.put("region", "us-west-2");
+        }
+        return new HttpEventCollectorEventInfo(1700000000123L, "INFO", text,
+                "com.example.Service", "main", properties, null, null);
+    }
+
+    @Benchmark
+    public String hecJsonSerializer() {
+        return serializer.serialize(event);
+    }
+
+    @Benchmark
+    public int hecJsonSerializerToWriter() {
+        writer.reset();
+        serializer.serialize(event, writer);
+        return writer.size();
+    }
+
+    @Benchmark
+    public String eventInfoTypeAdapter() {
+        return gson.toJson(event);
+    }
+
+    @Benchmark
+    public String cimLogEvent() {
+        SplunkCimLogEvent cim = new SplunkCimLogEvent("Failed Login", "sshd:failure");
+        cim.setAuthApp("jane");
+        cim.setAuthUser("jane");
+        cim.addField("src_ip", "10.0.0.1");
+        cim.addField("attempts", 3);
+        return cim.toString();
+    }
+}
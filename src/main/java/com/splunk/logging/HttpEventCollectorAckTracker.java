@@ -0,0 +1,166 @@
+package com.splunk.logging;
+
+/**
+ * @copyright
+ *
+ * Copyright 2013-2015 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Batches an endpoint accepted but has not acknowledged as indexed yet, keyed by the
+ * endpoint and the ackId of the reply, oldest first.
+ *
+ * The table is bounded, the sender stops posting batches while it is full so the
+ * server-side limit of pending acks per channel is never reached.
+ */
+final class HttpEventCollectorAckTracker {
+    /**
+     * A batch waiting for its acknowledgement
+     */
+    static final class Batch {
+        final List<HttpEventCollectorEventInfo> events;
+        final int resends; // number of times the batch was sent again because it was not acknowledged in time
+        private final long sentNanos;
+
+        private Batch(List<HttpEventCollectorEventInfo> events, int resends, long sentNanos) {
+            this.events = events;
+            this.resends = resends;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    /**
+     * ackIds are only unique per endpoint
+     */
+    private static final class Key {
+        final HttpEventCollectorEndpoints.Endpoint endpoint;
+        final long ackId;
+
+        Key(HttpEventCollectorEndpoints.Endpoint endpoint, long ackId) {
+            this.endpoint = endpoint;
+            this.ackId = ackId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).endpoint == endpoint && ((Key) other).ackId == ackId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(endpoint) + Long.hashCode(ackId);
+        }
+    }
+
+    private final int capacity;
+    private final Map<Key, Batch> unacknowledged = new LinkedHashMap<>();
+
+    /**
+     * @param capacity max number of batches waiting for their acknowledgement
+     */
+    HttpEventCollectorAckTracker(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Max unacknowledged batches must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Record a batch an endpoint replied to with an ackId
+     * @return the batch that had the same ackId, e.g. before the server restarted, or null
+     */
+    synchronized Batch add(HttpEventCollectorEndpoints.Endpoint endpoint, long ackId,
+                           List<HttpEventCollectorEventInfo> events, int resends) {
+        Key key = new Key(endpoint, ackId);
+        // put alone would keep the position of the replaced batch, the table must stay in send order for expire
+        Batch replaced = unacknowledged.remove(key);
+        unacknowledged.put(key, new Batch(events, resends, System.nanoTime()));
+        return replaced;
+    }
+
+    /**
+     * @param inFlight number of batches being sent, each of them takes an ackId once accepted
+     * @return true when another batch can be sent without overflowing the table
+     */
+    synchronized boolean hasRoom(int inFlight) {
+        return unacknowledged.size() + inFlight < capacity;
+    }
+
+    synchronized int size() {
+        return unacknowledged.size();
+    }
+
+    /**
+     * @return the ackIds to query per endpoint, oldest first
+     */
+    synchronized Map<HttpEventCollectorEndpoints.Endpoint, List<Long>> ackIds() {
+        Map<HttpEventCollectorEndpoints.Endpoint, List<Long>> ackIds = new LinkedHashMap<>();
+        for (Key key : unacknowledged.keySet()) {
+            ackIds.computeIfAbsent(key.endpoint, endpoint -> new ArrayList<>()).add(key.ackId);
+        }
+        return ackIds;
+    }
+
+    /**
+     * Remove the batches the endpoint acknowledged
+     * @return their events
+     */
+    synchronized List<Batch> acknowledge(HttpEventCollectorEndpoints.Endpoint endpoint, Collection<Long> ackIds) {
+        List<Batch> acknowledged = new ArrayList<>(ackIds.size());
+        for (Long ackId : ackIds) {
+            Batch batch = unacknowledged.remove(new Key(endpoint, ackId));
+            if (batch != null) {
+                acknowledged.add(batch);
+            }
+        }
+        return acknowledged;
+    }
+    /**
+     * Remove the batches that were not acknowledged within the timeout
+     * @return the batches to resend or give up on
+     */
+    synchronized List<Batch> expire(long timeoutNanos) {
+        List<Batch> expired = new ArrayList<>();
+        long now = System.nanoTime();
+        Iterator<Batch> iterator = unacknowledged.values().iterator();
+        while (iterator.hasNext()) {
+            Batch batch = iterator.next();
+            if (now - batch.sentNanos < timeoutNanos) {
+                // the rest was sent later
+                break;
+            }
+            expired.add(batch);
+            iterator.remove();
+        }
+        return expired;
+    }
+
+    /**
+     * Stop tracking all batches
+     * @return the batches that were not acknowledged
+     */
+    synchronized List<Batch> clear() {
+        List<Batch> remaining = new ArrayList<>(unacknowledged.values());
+        unacknowledged.clear();
+        return remaining;
+    }
+}
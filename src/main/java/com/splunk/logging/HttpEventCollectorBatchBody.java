@@ -0,0 +1,153 @@
+package com.splunk.logging;
+
+/**
+ * @copyright
+ *
+ * Copyright 2013-2015 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Request body of a batch of events.
+ *
+ * Events are encoded to UTF-8 once, when the sender batches them, and writeTo streams the
+ * encoded events into the OkHttp sink, so the batch is never concatenated into a String
+ * or a second array. writeTo can be called again, OkHttp does that when it retries.
+ */
+final class HttpEventCollectorBatchBody extends RequestBody {
+    private static final byte[] NoSeparator = new byte[0];
+    private static final byte[] LineSeparator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final MediaType contentType;
+    private final byte[][] events;
+    private final byte[] separator;
+    private final long contentLength;
+
+    private HttpEventCollectorBatchBody(MediaType contentType, byte[][] events, byte[] separator) {
+        this.contentType = contentType;
+        this.events = events;
+        this.separator = separator;
+        long length = events.length > 0 ? (long) separator.length * (events.length - 1) : 0;
+        for (byte[] event : events) {
+            length += event.length;
+        }
+        this.contentLength = length;
+    }
+
+    /**
+     * Body for the event endpoint, events are concatenated JSON objects.
+     */
+    static HttpEventCollectorBatchBody json(MediaType contentType, List<HttpEventCollectorEventInfo> events) {
+        return new HttpEventCollectorBatchBody(contentType, encodedEvents(events), NoSeparator);
+    }
+
+    /**
+     * Body for the raw endpoint, event messages are separated by line separators.
+     */
+    static HttpEventCollectorBatchBody raw(MediaType contentType, List<HttpEventCollectorEventInfo> events) {
+        return new HttpEventCollectorBatchBody(contentType, encodedEvents(events), LineSeparator);
+    }
+
+    /**
+     * @param raw true for the raw endpoint
+     * @return number of bytes an event adds to a batch that already holds events
+     */
+    static int separatorLength(boolean raw) {
+        return raw ? LineSeparator.length : NoSeparator.length;
+    }
+
+    private static byte[][] encodedEvents(List<HttpEventCollectorEventInfo> events) {
+        byte[][] encoded = new byte[events.size()][];
+        int i = 0;
+        for (HttpEventCollectorEventInfo eventInfo : events) {
+            encoded[i++] = eventInfo.getEncoded();
+        }
+        return encoded;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        for (int i = 0; i < events.length; i++) {
+            if (i > 0 && separator.length > 0) {
+                sink.write(separator);
+            }
+            sink.write(events[i]);
+        }
+    }
+
+    /**
+     * Compress the body with gzip. The compressed bytes stay in Okio segments, which
+     * are shared rather than copied whenever the request is written.
+     * @param level deflate level
+     * @return gzip compressed body with a known content length
+     */
+    CompressedBody gzip(int level) {
+        Buffer compressed = new Buffer();
+        GzipSink gzipSink = new GzipSink(compressed);
+        gzipSink.deflater().setLevel(level);
+        try (BufferedSink sink = Okio.buffer(gzipSink)) {
+            writeTo(sink);
+        } catch (IOException e) {
+            // writing into an in-memory buffer does not fail
+            throw new IllegalStateException(e);
+        }
+        return new CompressedBody(contentType, compressed);
+    }
+
+    static final class CompressedBody extends RequestBody {
+        private final MediaType contentType;
+        private final Buffer content;
+
+        CompressedBody(MediaType contentType, Buffer content) {
+            this.contentType = contentType;
+            this.content = content;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return contentType;
+        }
+
+        @Override
+        public long contentLength() {
+            return content.size();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            sink.write(content.copy(), content.size());
+        }
+    }
+}
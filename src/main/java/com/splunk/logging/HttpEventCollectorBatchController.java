@@ -0,0 +1,129 @@
+package com.splunk.logging;
+
+/**
+ * @copyright
+ *
+ * Copyright 2013-2015 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Adapts the size of batches to what the event collector sustains.
+ *
+ * Every completed request is fed back to the controller. Batches grow by a quarter while
+ * requests queue up behind each other, so fewer and larger requests carry the load, and
+ * shrink by a quarter when the moving average of the request latency goes over the
+ * target, or by half when the server rejects a batch as too large or busy, or the
+ * request fails. The size never leaves the configured bounds.
+ */
+final class HttpEventCollectorBatchController {
+    private static final int PayloadTooLarge = 413;
+    private static final int TooManyRequests = 429;
+    private static final int ServiceUnavailable = 503;
+    private static final double LatencySmoothing = 0.2; // weight of the latest sample in the moving average
+
+    private final long minBatchSize;
+    private final long maxBatchSize;
+    private final long targetLatencyNanos;
+    private volatile long batchSize;
+    private long latencyNanos = 0; // moving average, 0 until the first reply
+    private long grown = 0;
+    private long shrunk = 0;
+
+    /**
+     * @param minBatchSize smallest batch size in bytes
+     * @param maxBatchSize largest batch size in bytes
+     * @param initialBatchSize batch size to start with, clamped to the bounds
+     * @param targetLatencyNanos request latency above which batches shrink
+     */
+    HttpEventCollectorBatchController(long minBatchSize, long maxBatchSize, long initialBatchSize,
+                                      long targetLatencyNanos) {
+        if (minBatchSize <= 0 || maxBatchSize < minBatchSize) {
+            throw new IllegalArgumentException(
+                    "Invalid batch size bounds: " + minBatchSize + " - " + maxBatchSize);
+        }
+        if (targetLatencyNanos <= 0) {
+            throw new IllegalArgumentException("Target latency must be positive");
+        }
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.targetLatencyNanos = targetLatencyNanos;
+        this.batchSize = Math.max(minBatchSize, Math.min(maxBatchSize, initialBatchSize));
+    }
+
+    /**
+     * @return current batch size limit in bytes
+     */
+    long getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * A request got a reply
+     * @param latencyNanos time from the post to the reply
+     * @param statusCode reply status
+     * @param backlog true when other batches were waiting to be sent or in flight
+     */
+    synchronized void completed(long latencyNanos, int statusCode, boolean backlog) {
+        if (statusCode == PayloadTooLarge || statusCode == TooManyRequests || statusCode == ServiceUnavailable) {
+            resize(batchSize / 2);
+            return;
+        }
+        this.latencyNanos = this.latencyNanos == 0
+                ? latencyNanos : (long) (this.latencyNanos + LatencySmoothing * (latencyNanos - this.latencyNanos));
+        if (this.latencyNanos > targetLatencyNanos) {
+            resize(batchSize - batchSize / 4);
+        } else if (backlog) {
+            resize(batchSize + Math.max(1, batchSize / 4));
+        }
+    }
+
+    /**
+     * A request failed without a reply
+     */
+    synchronized void failed() {
+        resize(batchSize / 2);
+    }
+
+    private void resize(long size) {
+        size = Math.max(minBatchSize, Math.min(maxBatchSize, size));
+        if (size > batchSize) {
+            grown++;
+        } else if (size < batchSize) {
+            shrunk++;
+        }
+        batchSize = size;
+    }
+
+    /**
+     * @return moving average of the request latency in nanoseconds, 0 until the first reply
+     */
+    synchronized long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * @return number of times batches were made larger
+     */
+    synchronized long getGrowCount() {
+        return grown;
+    }
+
+    /**
+     * @return number of times batches were made smaller
+     */
+    synchronized long getShrinkCount() {
+        return shrunk;
+    }
+}
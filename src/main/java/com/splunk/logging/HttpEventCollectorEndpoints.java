@@ -0,0 +1,246 @@
+package com.splunk.logging;
+
+/**
+ * @copyright
+ *
+ * Copyright 2013-2015 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import okhttp3.HttpUrl;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The event collector endpoints a sender distributes its batches over.
+ *
+ * An endpoint that fails a request or replies 503 is ejected, it gets no batches until a
+ * health probe succeeds. The first probe is due a second after the ejection and the delay
+ * doubles with every failed probe, up to a minute. While all endpoints are ejected the
+ * one due to be probed first keeps getting batches, a sender never stops sending because
+ * of its endpoints. A single endpoint is never ejected.
+ */
+final class HttpEventCollectorEndpoints {
+    /**
+     * How the endpoint of the next request is picked.
+     */
+    enum Policy {
+        RoundRobin,       // in turn
+        LeastOutstanding, // the one with the fewest requests in flight
+        LatencyWeighted   // at random, weighted by the inverse of the observed latency
+    }
+
+    private static final long InitialEjection = TimeUnit.SECONDS.toNanos(1);
+    private static final long MaxEjection = TimeUnit.MINUTES.toNanos(1);
+    private static final double LatencySmoothing = 0.2; // weight of the latest sample in the moving average
+
+    /**
+     * An event collector endpoint
+     */
+    static final class Endpoint {
+        final HttpUrl url;
+        final HttpUrl ackUrl;
+        final HttpUrl healthUrl;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile long latencyNanos = 0; // moving average, 0 until the first reply
+        private volatile boolean ejected = false;
+        private int ejections = 0; // consecutive, guarded by the pool monitor
+        private long probeAtNanos = 0; // guarded by the pool monitor
+
+        Endpoint(HttpUrl url, HttpUrl ackUrl, HttpUrl healthUrl) {
+            this.url = url;
+            this.ackUrl = ackUrl;
+            this.healthUrl = healthUrl;
+        }
+
+        /**
+         * @return number of requests in flight
+         */
+        int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * @return moving average of the request latency in nanoseconds, 0 until the first reply
+         */
+        long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        boolean isEjected() {
+            return ejected;
+        }
+
+        @Override
+        public String toString() {
+            return url.toString();
+        }
+    }
+
+    private final Endpoint[] endpoints;
+    private volatile Policy policy = Policy.RoundRobin;
+    private final AtomicInteger next = new AtomicInteger();
+
+    HttpEventCollectorEndpoints(List<Endpoint> endpoints) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No event collector endpoint");
+        }
+        this.endpoints = endpoints.toArray(new Endpoint[0]);
+    }
+
+    void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    int size() {
+        return endpoints.length;
+    }
+
+    Endpoint get(int index) {
+        return endpoints[index];
+    }
+
+    /**
+     * Pick the endpoint of a request and account it as outstanding
+     */
+    Endpoint start() {
+        Endpoint endpoint = endpoints.length == 1 ? endpoints[0] : select();
+        endpoint.outstanding.incrementAndGet();
+        return endpoint;
+    }
+
+    private Endpoint select() {
+        int first = Math.floorMod(next.getAndIncrement(), endpoints.length);
+        Endpoint selected = null;
+        switch (policy) {
+            case LeastOutstanding:
+                for (int i = 0; i < endpoints.length; i++) {
+                    Endpoint endpoint = endpoints[(first + i) % endpoints.length];
+                    if (!endpoint.ejected && (selected == null || endpoint.getOutstanding() < selected.getOutstanding())) {
+                        selected = endpoint;
+                    }
+                }
+                break;
+            case LatencyWeighted:
+                selected = selectByLatency();
+                break;
+            default:
+                for (int i = 0; i < endpoints.length && selected == null; i++) {
+                    Endpoint endpoint = endpoints[(first + i) % endpoints.length];
+                    if (!endpoint.ejected) {
+                        selected = endpoint;
+                    }
+                }
+                break;
+        }
+        return selected != null ? selected : nextToProbe();
+    }
+
+    private Endpoint selectByLatency() {
+        // endpoints that have not replied yet weigh as much as the fastest one, so they get measured
+        long fastest = Long.MAX_VALUE;
+        for (Endpoint endpoint : endpoints) {
+            long latency = endpoint.latencyNanos;
+            if (!endpoint.ejected && latency > 0 && latency < fastest) {
+                fastest = latency;
+            }
+        }
+        if (fastest == Long.MAX_VALUE) {
+            fastest = 1;
+        }
+        double[] weights = new double[endpoints.length];
+        double total = 0;
+        for (int i = 0; i < endpoints.length; i++) {
+            Endpoint endpoint = endpoints[i];
+            if (!endpoint.ejected) {
+                long latency = endpoint.latencyNanos > 0 ? endpoint.latencyNanos : fastest;
+                weights[i] = 1.0 / ((double) latency * (endpoint.getOutstanding() + 1));
+                total += weights[i];
+            }
+        }
+        if (total == 0) {
+            return null;
+        }
+        double point = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < endpoints.length; i++) {
+            point -= weights[i];
+            if (weights[i] > 0 && point < 0) {
+                return endpoints[i];
+            }
+        }
+        return null;
+    }
+
+    private synchronized Endpoint nextToProbe() {
+        Endpoint selected = endpoints[0];
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.probeAtNanos - selected.probeAtNanos < 0) {
+                selected = endpoint;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * A request to the endpoint got a reply other than 503
+     */
+    void succeeded(Endpoint endpoint, long latencyNanos) {
+        endpoint.outstanding.decrementAndGet();
+        long average = endpoint.latencyNanos;
+        endpoint.latencyNanos = average == 0
+                ? latencyNanos : (long) (average + LatencySmoothing * (latencyNanos - average));
+    }
+
+    /**
+     * A request to the endpoint failed or got a 503 reply
+     * @return nanoseconds until the endpoint is to be probed, 0 when it was not ejected by this failure
+     */
+    synchronized long failed(Endpoint endpoint) {
+        endpoint.outstanding.decrementAndGet();
+        if (endpoints.length == 1 || endpoint.ejected) {
+            return 0;
+        }
+        endpoint.ejected = true;
+        endpoint.ejections = 0;
+        return scheduleProbe(endpoint);
+    }
+
+    /**
+     * The health probe of an ejected endpoint succeeded, it gets batches again
+     */
+    synchronized void probeSucceeded(Endpoint endpoint) {
+        endpoint.ejected = false;
+        endpoint.ejections = 0;
+        // the latency before the ejection does not tell much any more
+        endpoint.latencyNanos = 0;
+    }
+
+    /**
+     * The health probe of an ejected endpoint failed
+     * @return nanoseconds until the next probe
+     */
+    synchronized long probeFailed(Endpoint endpoint) {
+        return scheduleProbe(endpoint);
+    }
+
+    private long scheduleProbe(Endpoint endpoint) {
+        long delay = Math.min(MaxEjection, InitialEjection << Math.min(endpoint.ejections, 16));
+        endpoint.ejections++;
+        endpoint.probeAtNanos = System.nanoTime() + delay;
+        return delay;
+    }
+}
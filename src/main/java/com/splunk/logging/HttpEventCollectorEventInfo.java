@@ -25,7 +25,7 @@ import java.util.Map;
  * Container for Splunk http event collector event data
  */
 public class HttpEventCollectorEventInfo {
-    private double time; // time in fractional seconds since "unix epoch" format
+    private final long timeMillis; // time in milliseconds since "unix epoch"
     private final String severity;
     private final String message;
     private final String logger_name;
@@ -33,6 +33,7 @@ public class HttpEventCollectorEventInfo {
     private final Map<String, String> properties;
     private final String exception_message;
     private final Serializable marker;
+    private byte[] encoded; // wire form, set by the sender when the event is batched
 
     /**
      * Create a new HttpEventCollectorEventInfo container
@@ -55,7 +56,7 @@ public class HttpEventCollectorEventInfo {
             final String exception_message,
             final Serializable marker
     ) {
-        this.time = timeMsSinceEpoch / 1000.0;
+        this.timeMillis = timeMsSinceEpoch;
         this.severity = severity;
         this.message = message;
         this.logger_name = logger_name;
@@ -69,7 +70,25 @@ public class HttpEventCollectorEventInfo {
      * @return event timestamp in epoch format
      */
     public double getTime() {
-        return time;
+        return timeMillis / 1000.0;
+    }
+
+    /**
+     * @return event timestamp in milliseconds since "unix epoch"
+     */
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /**
+     * @return the event as sent to the server, null until the sender encoded it
+     */
+    byte[] getEncoded() {
+        return encoded;
+    }
+
+    void setEncoded(byte[] encoded) {
+        this.encoded = encoded;
     }
 
     /**
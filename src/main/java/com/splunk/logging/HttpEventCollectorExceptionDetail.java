@@ -0,0 +1,70 @@
+package com.splunk.logging;
+
+/**
+ * @copyright
+ *
+ * Copyright 2013-2015 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.splunk.logging.serialization.Utf8JsonWriter;
+
+/**
+ * Renders the exception detail the appenders attach to error events, e.g.
+ * {"detailMessage":"boom","exceptionClass":"java.lang.IllegalStateException",
+ * "fileName":"App.java","methodName":"run","lineNumber":"42"}, streaming it into a
+ * thread local writer rather than building a map and a Gson instance per event.
+ * Null fields are left out, as Gson leaves out null map values, and strings keep the
+ * HTML safe escaping of the default Gson instance, e.g. '&lt;' is written as \u003c.
+ */
+final class HttpEventCollectorExceptionDetail {
+    private static final ThreadLocal<Utf8JsonWriter> writer = ThreadLocal.withInitial(() -> new Utf8JsonWriter(256));
+
+    private HttpEventCollectorExceptionDetail() {
+    }
+
+    /**
+     * @param detailMessage message of the exception
+     * @param exceptionClass name of the exception class
+     * @param origin first element of the stack trace, where the exception was thrown
+     * @return exception detail as a JSON object
+     */
+    static String toJson(String detailMessage, String exceptionClass, StackTraceElement origin) {
+        Utf8JsonWriter json = writer.get();
+        json.reset();
+        json.writeByte('{');
+        boolean first = writeMember(json, true, "detailMessage", detailMessage);
+        first = writeMember(json, first, "exceptionClass", exceptionClass);
+        if (origin != null) {
+            first = writeMember(json, first, "fileName", origin.getFileName());
+            first = writeMember(json, first, "methodName", origin.getMethodName());
+            if (!first) {
+                json.writeByte(',');
+            }
+            json.writeName("lineNumber").writeByte('"').writeLong(origin.getLineNumber()).writeByte('"');
+        }
+        return json.writeByte('}').toString();
+    }
+
+    private static boolean writeMember(Utf8JsonWriter json, boolean first, String name, String value) {
+        if (value == null) {
+            return first;
+        }
+        if (!first) {
+            json.writeByte(',');
+        }
+        json.writeName(name).writeHtmlSafeString(value);
+        return false;
+    }
+}
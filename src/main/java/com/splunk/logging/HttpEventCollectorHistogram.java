@@ -0,0 +1,114 @@
+package com.splunk.logging;
+
+/**
+ * @copyright
+ *
+ * Copyright 2013-2015 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of non-negative values with log-linear buckets, in the manner of
+ * HdrHistogram: values below 32 have a bucket each, and every power of two above is split
+ * into 16 buckets, so a percentile is reported within about 6% of the recorded value.
+ */
+public final class HttpEventCollectorHistogram {
+    private static final int SubBuckets = 16;
+    private static final int LinearBuckets = 2 * SubBuckets;
+    private static final int Buckets = LinearBuckets + (63 - 5) * SubBuckets;
+
+    private final AtomicLongArray counts = new AtomicLongArray(Buckets);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return mean of the recorded values, 0 when there is none
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @return largest recorded value
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return value that the given share of the recorded values is less than or equal to,
+     * 0 when there is none
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[Buckets];
+        for (int i = 0; i < Buckets; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < Buckets; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int bucketOf(long value) {
+        if (value < LinearBuckets) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+        return LinearBuckets + (shift - 1) * SubBuckets + (int) (value >>> shift) - SubBuckets;
+    }
+
+    static long highestValueOf(int bucket) {
+        if (bucket < LinearBuckets) {
+            return bucket;
+        }
+        int shift = (bucket - LinearBuckets) / SubBuckets + 1;
+        long sub = (bucket - LinearBuckets) % SubBuckets + SubBuckets;
+        return ((sub + 1) << shift) - 1;
+    }
+}
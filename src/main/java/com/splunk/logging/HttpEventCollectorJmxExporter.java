@@ -0,0 +1,190 @@
+package com.splunk.logging;
+
+/**
+ * @copyright
+ *
+ * Copyright 2013-2015 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registers the metrics of a sender with the platform MBean server, as
+ * com.splunk.logging:type=HttpEventCollectorSender,name=&lt;appender name&gt;.
+ * A sender registered under the same name before, e.g. by a configuration that was
+ * reloaded, is replaced, and stopping it later leaves the newer registration alone.
+ */
+public class HttpEventCollectorJmxExporter implements HttpEventCollectorMetricsExporter {
+    static final String Domain = "com.splunk.logging";
+    // exporter that registered the MBean under each name last
+    private static final ConcurrentMap<ObjectName, HttpEventCollectorJmxExporter> owners = new ConcurrentHashMap<>();
+
+    private ObjectName objectName;
+
+    @Override
+    public synchronized void start(String name, HttpEventCollectorMetrics metrics) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = objectName(name);
+            MBean mbean = new MBean(metrics);
+            try {
+                server.registerMBean(mbean, objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(objectName);
+                server.registerMBean(mbean, objectName);
+            }
+            owners.put(objectName, this);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            HttpEventCollectorErrorHandler.error(null, e);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (objectName == null) {
+            return;
+        }
+        if (owners.remove(objectName, this)) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // unregistered by someone else already
+            }
+        }
+        objectName = null;
+    }
+
+    static ObjectName objectName(String name) throws JMException {
+        return new ObjectName(Domain + ":type=HttpEventCollectorSender,name=" + ObjectName.quote(name));
+    }
+
+    private static final class MBean implements HttpEventCollectorMetricsMXBean {
+        private static final double NanosPerMilli = TimeUnit.MILLISECONDS.toNanos(1);
+
+        private final HttpEventCollectorMetrics metrics;
+
+        MBean(HttpEventCollectorMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public long getEventsAccepted() {
+            return metrics.getEventsAccepted();
+        }
+
+        @Override
+        public long getEventsSent() {
+            return metrics.getEventsSent();
+        }
+
+        @Override
+        public long getEventsFailed() {
+            return metrics.getEventsFailed();
+        }
+
+        @Override
+        public long getEventsDropped() {
+            return metrics.getEventsDropped();
+        }
+
+        @Override
+        public long getBytesSent() {
+            return metrics.getBytesSent();
+        }
+
+        @Override
+        public long getPendingEvents() {
+            return metrics.getPendingEvents();
+        }
+
+        @Override
+        public long getPendingBytes() {
+            return metrics.getPendingBytes();
+        }
+
+        @Override
+        public long getInFlightRequests() {
+            return metrics.getInFlightRequests();
+        }
+
+        @Override
+        public long getBatchCount() {
+            return metrics.getBatchSize().getCount();
+        }
+
+        @Override
+        public double getBatchSizeMean() {
+            return metrics.getBatchSize().getMean();
+        }
+
+        @Override
+        public long getBatchSizeP50() {
+            return metrics.getBatchSize().getValueAtPercentile(50);
+        }
+
+        @Override
+        public long getBatchSizeP99() {
+            return metrics.getBatchSize().getValueAtPercentile(99);
+        }
+
+        @Override
+        public long getBatchSizeMax() {
+            return metrics.getBatchSize().getMax();
+        }
+
+        @Override
+        public long getSerializeTimeP50Nanos() {
+            return metrics.getSerializeTime().getValueAtPercentile(50);
+        }
+
+        @Override
+        public long getSerializeTimeP99Nanos() {
+            return metrics.getSerializeTime().getValueAtPercentile(99);
+        }
+
+        @Override
+        public long getSerializeTimeMaxNanos() {
+            return metrics.getSerializeTime().getMax();
+        }
+
+        @Override
+        public double getRequestLatencyMeanMillis() {
+            return metrics.getRequestLatency().getMean() / NanosPerMilli;
+        }
+
+        @Override
+        public double getRequestLatencyP50Millis() {
+            return metrics.getRequestLatency().getValueAtPercentile(50) / NanosPerMilli;
+        }
+
+        @Override
+        public double getRequestLatencyP99Millis() {
+            return metrics.getRequestLatency().getValueAtPercentile(99) / NanosPerMilli;
+        }
+
+        @Override
+        public double getRequestLatencyMaxMillis() {
+            return metrics.getRequestLatency().getMax() / NanosPerMilli;
+        }
+    }
+}
@@ -15,8 +15,8 @@ package com.splunk.logging;
  * under the License.
  */
 
-import com.google.gson.Gson;
 import com.splunk.logging.hec.MetadataTags;
+import com.splunk.logging.serialization.MessageParsing;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
@@ -29,13 +29,21 @@ import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.PluginFactory;
 import org.apache.logging.log4j.core.impl.MutableLogEvent;
 import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.Constants;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.TriConsumer;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -51,6 +59,15 @@ public final class HttpEventCollectorLog4jAppender extends AbstractAppender
     private final boolean includeMDC;
     private final boolean includeException;
     private final boolean includeMarker;
+    // the layout writes the message alone, see render
+    private final boolean messageOnly;
+
+    private static final Set<String> MessageOnlyPatterns = new HashSet<>(Arrays.asList("%m", "%msg", "%message"));
+    // same bound as the reusable buffers of Log4j2
+    private static final int MaxReusableMessageSize = 518;
+    private static final ThreadLocal<StringBuilder> messageBuilder = ThreadLocal.withInitial(StringBuilder::new);
+    private static final TriConsumer<String, Object, Map<String, String>> CopyContextData =
+            (key, value, properties) -> properties.put(key, value == null ? null : String.valueOf(value));
 
     private HttpEventCollectorLog4jAppender(final String name,
                                             final String url,
@@ -60,6 +77,7 @@ public final class HttpEventCollectorLog4jAppender extends AbstractAppender
                                             final String source,
                                             final String sourcetype,
                                             final String messageFormat,
+                                            final String messageParsing,
                                             final String host,
                                             final String index,
                                             final Filter filter,
@@ -74,6 +92,33 @@ public final class HttpEventCollectorLog4jAppender extends AbstractAppender
                                             long batchCount,
                                             long batchSize,
                                             long retriesOnError,
+                                            long ingestionQueueSize,
+                                            final String compression,
+                                            int compressionLevel,
+                                            long compressionMinSize,
+                                            final String spoolDir,
+                                            long spoolMaxBytes,
+                                            long spoolSegmentBytes,
+                                            final String spoolFsync,
+                                            long maxPendingBytes,
+                                            int maxPendingBatches,
+                                            final String overflowPolicy,
+                                            long overflowBlockTimeout,
+                                            final String overflowSeverityThreshold,
+                                            final boolean adaptiveBatching,
+                                            long minAdaptiveBatchSize,
+                                            long maxAdaptiveBatchSize,
+                                            long targetLatency,
+                                            int maxInFlightRequests,
+                                            int maxInFlightRequestsPerHost,
+                                            final String ordering,
+                                            final String orderingKey,
+                                            final String loadBalancing,
+                                            final boolean useAck,
+                                            long ackPollInterval,
+                                            long ackTimeout,
+                                            int maxUnackedBatches,
+                                            final String metricsExporter,
                                             String sendMode,
                                             String middleware,
                                             final String disableCertificateValidation,
@@ -110,6 +155,8 @@ public final class HttpEventCollectorLog4jAppender extends AbstractAppender
             } catch (final Exception ignored) {}
         }
 
+        this.sender.setMessageParsing(MessageParsing.fromString(messageParsing));
+
         // plug resend middleware
         if (retriesOnError > 0) {
             this.sender.addMiddleware(new HttpEventCollectorResendMiddleware(retriesOnError));
@@ -119,15 +166,60 @@ public final class HttpEventCollectorLog4jAppender extends AbstractAppender
             this.sender.disableCertificateValidation();
         }
 
+        if (ingestionQueueSize > 0) {
+            this.sender.setIngestionQueueSize((int) ingestionQueueSize);
+        }
+
+        if ("gzip".equalsIgnoreCase(compression)) {
+            this.sender.enableCompression(compressionLevel, compressionMinSize);
+        }
+
+        if (spoolDir != null && !spoolDir.isEmpty()) {
+            try {
+                this.sender.enableSpool(spoolDir, spoolMaxBytes, spoolSegmentBytes, spoolFsync);
+            } catch (IOException e) {
+                LOGGER.error("Cannot open spool directory " + spoolDir, e);
+            }
+        }
+
+        if (maxPendingBytes > 0 || maxPendingBatches > 0) {
+            this.sender.setPendingBudget(maxPendingBytes, maxPendingBatches, overflowPolicy,
+                    overflowBlockTimeout, overflowSeverityThreshold);
+        }
+
+        if (adaptiveBatching) {
+            this.sender.enableAdaptiveBatching(minAdaptiveBatchSize, maxAdaptiveBatchSize, targetLatency);
+        }
+
+        if (maxInFlightRequests > 0 || maxInFlightRequestsPerHost > 0 || ordering != null) {
+            this.sender.setParallelism(maxInFlightRequests, maxInFlightRequestsPerHost, ordering, orderingKey);
+        }
+
+        if (loadBalancing != null && !loadBalancing.isEmpty()) {
+            this.sender.setLoadBalancingPolicy(loadBalancing);
+        }
+
+        if (useAck) {
+            this.sender.enableAck(ackPollInterval, ackTimeout, maxUnackedBatches);
+        }
+
+        if (metricsExporter != null && !metricsExporter.isEmpty()) {
+            this.sender.enableMetricsExport(name, metricsExporter);
+        }
+
         this.includeLoggerName = includeLoggerName;
         this.includeThreadName = includeThreadName;
         this.includeMDC = includeMDC;
         this.includeException = includeException;
         this.includeMarker = includeMarker;
+        this.messageOnly = layout instanceof PatternLayout
+                && MessageOnlyPatterns.contains(((PatternLayout) layout).getConversionPattern());
     }
 
     /**
      * Create a Http Appender.
+     * New attributes are added at the end, after the layout and the filter, so that
+     * programmatic callers only see the signature grow.
      * @return The Http Appender.
      */
     @PluginFactory
@@ -165,7 +257,35 @@ public final class HttpEventCollectorLog4jAppender extends AbstractAppender
             @PluginAttribute(value = "write_timeout", defaultLong = HttpEventCollectorSender.TimeoutSettings.DEFAULT_WRITE_TIMEOUT) final long writeTimeout,
             @PluginAttribute(value = "termination_timeout", defaultLong = HttpEventCollectorSender.TimeoutSettings.DEFAULT_TERMINATION_TIMEOUT) final long terminationTimeout,
             @PluginElement("Layout") Layout<? extends Serializable> layout,
-            @PluginElement("Filter") final Filter filter
+            @PluginElement("Filter") final Filter filter,
+            @PluginAttribute("message_parsing") final String messageParsing,
+            @PluginAttribute("ingestion_queue_size") final String ingestionQueueSize,
+            @PluginAttribute("compression") final String compression,
+            @PluginAttribute("compression_level") final String compressionLevel,
+            @PluginAttribute("compression_min_size") final String compressionMinSize,
+            @PluginAttribute("spool_dir") final String spoolDir,
+            @PluginAttribute(value = "spool_max_bytes", defaultLong = HttpEventCollectorSender.DefaultSpoolMaxBytes) final long spoolMaxBytes,
+            @PluginAttribute(value = "spool_segment_bytes", defaultLong = HttpEventCollectorSender.DefaultSpoolSegmentSize) final long spoolSegmentBytes,
+            @PluginAttribute("spool_fsync") final String spoolFsync,
+            @PluginAttribute(value = "max_pending_bytes", defaultLong = 0) final long maxPendingBytes,
+            @PluginAttribute("max_pending_batches") final String maxPendingBatches,
+            @PluginAttribute("overflow_policy") final String overflowPolicy,
+            @PluginAttribute(value = "overflow_block_timeout", defaultLong = HttpEventCollectorSender.DefaultOverflowBlockTimeout) final long overflowBlockTimeout,
+            @PluginAttribute("overflow_severity_threshold") final String overflowSeverityThreshold,
+            @PluginAttribute(value = "adaptive_batching", defaultBoolean = false) final boolean adaptiveBatching,
+            @PluginAttribute(value = "batch_size_bytes_min", defaultLong = HttpEventCollectorSender.DefaultMinAdaptiveBatchSize) final long minAdaptiveBatchSize,
+            @PluginAttribute(value = "batch_size_bytes_max", defaultLong = HttpEventCollectorSender.DefaultMaxAdaptiveBatchSize) final long maxAdaptiveBatchSize,
+            @PluginAttribute(value = "target_latency", defaultLong = HttpEventCollectorSender.DefaultTargetLatency) final long targetLatency,
+            @PluginAttribute("max_in_flight_requests") final String maxInFlightRequests,
+            @PluginAttribute("max_in_flight_requests_per_host") final String maxInFlightRequestsPerHost,
+            @PluginAttribute("ordering") final String ordering,
+            @PluginAttribute("ordering_key") final String orderingKey,
+            @PluginAttribute("load_balancing") final String loadBalancing,
+            @PluginAttribute(value = "use_ack", defaultBoolean = false) final boolean useAck,
+            @PluginAttribute(value = "ack_poll_interval", defaultLong = HttpEventCollectorSender.DefaultAckPollInterval) final long ackPollInterval,
+            @PluginAttribute(value = "ack_timeout", defaultLong = HttpEventCollectorSender.DefaultAckTimeout) final long ackTimeout,
+            @PluginAttribute("max_unacked_batches") final String maxUnackedBatches,
+            @PluginAttribute("metrics_exporter") final String metricsExporter
     )
     {
         // The raw endpoint presumes that a single post is a single event.
@@ -217,7 +337,7 @@ public final class HttpEventCollectorLog4jAppender extends AbstractAppender
 
         return new HttpEventCollectorLog4jAppender(
                 name, url, token,  channel, type,
-                source, sourcetype, messageFormat, host, index,
+                source, sourcetype, messageFormat, messageParsing, host, index,
                 filter, layout,
                 includeLoggerName, includeThreadName, includeMDC, includeException, includeMarker,
                 ignoreExceptionsBool,
@@ -225,6 +345,33 @@ public final class HttpEventCollectorLog4jAppender extends AbstractAppender
                 parseInt(batchCount, clampedBatchCountDefault),
                 parseInt(batchSize, HttpEventCollectorSender.DefaultBatchSize),
                 parseInt(retriesOnError, 0),
+                parseInt(ingestionQueueSize, 0),
+                compression,
+                parseInt(compressionLevel, -1),
+                parseInt(compressionMinSize, HttpEventCollectorSender.DefaultCompressionMinSize),
+                spoolDir,
+                spoolMaxBytes,
+                spoolSegmentBytes,
+                spoolFsync,
+                maxPendingBytes,
+                parseInt(maxPendingBatches, 0),
+                overflowPolicy,
+                overflowBlockTimeout,
+                overflowSeverityThreshold,
+                adaptiveBatching,
+                minAdaptiveBatchSize,
+                maxAdaptiveBatchSize,
+                targetLatency,
+                parseInt(maxInFlightRequests, 0),
+                parseInt(maxInFlightRequestsPerHost, 0),
+                ordering,
+                orderingKey,
+                loadBalancing,
+                useAck,
+                ackPollInterval,
+                ackTimeout,
+                parseInt(maxUnackedBatches, HttpEventCollectorSender.DefaultMaxUnackedBatches),
+                metricsExporter,
                 sendMode,
                 middleware,
                 disableCertificateValidation,
@@ -235,27 +382,126 @@ public final class HttpEventCollectorLog4jAppender extends AbstractAppender
     }
 
 
+    /**
+     * Create a Http Appender with the attributes of the previous releases, the others
+     * keep their defaults.
+     * @return The Http Appender.
+     */
+    public static HttpEventCollectorLog4jAppender createAppender(
+            final String url,
+            final String token,
+            final String channel,
+            final String type,
+            final String name,
+            final String source,
+            final String sourcetype,
+            final String messageFormat,
+            final String host,
+            final String index,
+            final String ignoreExceptions,
+            final String batchSize,
+            final String batchCount,
+            final String batchInterval,
+            final String retriesOnError,
+            final String sendMode,
+            final String middleware,
+            final String disableCertificateValidation,
+            final String eventBodySerializer,
+            final String eventHeaderSerializer,
+            final String errorCallback,
+            final boolean includeLoggerName,
+            final boolean includeThreadName,
+            final boolean includeMDC,
+            final boolean includeException,
+            final boolean includeMarker,
+            final long connectTimeout,
+            final long callTimeout,
+            final long readTimeout,
+            final long writeTimeout,
+            final long terminationTimeout,
+            Layout<? extends Serializable> layout,
+            final Filter filter
+    )
+    {
+        return createAppender(url, token, channel, type, name, source, sourcetype, messageFormat, host, index,
+                ignoreExceptions, batchSize, batchCount, batchInterval, retriesOnError, sendMode, middleware,
+                disableCertificateValidation, eventBodySerializer, eventHeaderSerializer, errorCallback,
+                includeLoggerName, includeThreadName, includeMDC, includeException, includeMarker,
+                connectTimeout, callTimeout, readTimeout, writeTimeout, terminationTimeout, layout, filter,
+                null, null, null, null, null,
+                null, HttpEventCollectorSender.DefaultSpoolMaxBytes, HttpEventCollectorSender.DefaultSpoolSegmentSize, null,
+                0, null, null, HttpEventCollectorSender.DefaultOverflowBlockTimeout, null,
+                false, HttpEventCollectorSender.DefaultMinAdaptiveBatchSize,
+                HttpEventCollectorSender.DefaultMaxAdaptiveBatchSize, HttpEventCollectorSender.DefaultTargetLatency,
+                null, null, null, null, null,
+                false, HttpEventCollectorSender.DefaultAckPollInterval, HttpEventCollectorSender.DefaultAckTimeout, null,
+                null);
+    }
+
     /**
      * Perform Appender specific appending actions.
+     * The path takes fewer allocations than going through the layout and toMap, but it
+     * is not garbage free: the rendered message, the copy of the context data and the
+     * event info are still allocated per event, as the sender keeps them until the
+     * batch is delivered.
      * @param event The Log event.
      */
     @Override
     public void append(final LogEvent event) {
-
-        String exceptionDetail = generateErrorDetail(event);
-
-        // if an exception was thrown
         this.sender.send(
                 event.getTimeMillis(),
                 event.getLevel().toString(),
-                getLayout().toSerializable(event).toString(),
+                render(event),
                 includeLoggerName ? event.getLoggerName() : null,
                 includeThreadName ? event.getThreadName() : null,
-                includeMDC ? event.getContextData().toMap() : null,
-                includeException ? exceptionDetail : null,
+                includeMDC ? copyContextData(event.getContextData()) : null,
+                includeException ? generateErrorDetail(event) : null,
                 includeMarker ? event.getMarker() : null
         );
+    }
 
+    /**
+     * Render the event with the layout. A message only layout, as the default one, is
+     * bypassed: the message formats itself into a reusable buffer, as in the layouts of
+     * Log4j2, which saves their intermediate objects. The resulting string is still
+     * allocated per event.
+     */
+    private String render(final LogEvent event) {
+        Message message = event.getMessage();
+        if (!messageOnly || message == null || event.getThrown() != null) {
+            // the layout also writes the stack trace
+            return getLayout().toSerializable(event).toString();
+        }
+        if (!(message instanceof StringBuilderFormattable)) {
+            return String.valueOf(message.getFormattedMessage());
+        }
+        StringBuilder builder = Constants.ENABLE_THREADLOCALS ? messageBuilder.get() : new StringBuilder();
+        builder.setLength(0);
+        ((StringBuilderFormattable) message).formatTo(builder);
+        String rendered = builder.toString();
+        if (builder.capacity() > MaxReusableMessageSize) {
+            // don't hold on to the buffer of an exceptionally large message
+            builder.setLength(MaxReusableMessageSize);
+            builder.trimToSize();
+        }
+        return rendered;
+    }
+
+    /**
+     * Copy the context data, the event may be reused by Log4j2 once append returns while
+     * the sender keeps the properties until the batch is delivered.
+     *
+     * The event is encoded before send returns, but the properties cannot be streamed
+     * into the serializer instead: the partition ordering key, the middlewares and the
+     * error callback still read them from the event info afterwards.
+     */
+    private static Map<String, String> copyContextData(final ReadOnlyStringMap contextData) {
+        if (contextData == null || contextData.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> properties = new HashMap<>(contextData.size() * 4 / 3 + 1);
+        contextData.forEach(CopyContextData, properties);
+        return properties;
     }
 
     /**
@@ -264,39 +510,28 @@ public final class HttpEventCollectorLog4jAppender extends AbstractAppender
      * @param event
      * @return the processed string of all exception detail
      */
-    private String generateErrorDetail(final LogEvent event) {
-
-        String exceptionDetail = "";
-
+    private static String generateErrorDetail(final LogEvent event) {
         /*
         Exception details are only populated when any ERROR OR FATAL event occurred
          */
+        if (!Level.ERROR.equals(event.getLevel()) && !Level.FATAL.equals(event.getLevel())) {
+            return "";
+        }
+        Throwable throwable = event.getThrown();
+        if (throwable == null) {
+            return "";
+        }
         try {
-            // Exception thrown in application is wrapped with relevant information instead of just a message.
-            Map<String, String> exceptionDetailMap = new LinkedHashMap<>();
-
-            if (Level.ERROR.equals(event.getLevel()) || Level.FATAL.equals(event.getLevel())) {
-                Throwable throwable = event.getThrown();
-                if (throwable == null) {
-                    return exceptionDetail;
-                }
-
-                exceptionDetailMap.put("detailMessage", throwable.getMessage());
-                exceptionDetailMap.put("exceptionClass", throwable.getClass().toString());
-
-                StackTraceElement[] elements = throwable.getStackTrace();
-                // Retrieving first element from elements array is because the throws exception detail would be available as a first element.
-                if (elements != null && elements.length > 0 && elements[0] != null) {
-                    exceptionDetailMap.put("fileName", elements[0].getFileName());
-                    exceptionDetailMap.put("methodName", elements[0].getMethodName());
-                    exceptionDetailMap.put("lineNumber", String.valueOf(elements[0].getLineNumber()));
-                }
-                exceptionDetail = new Gson().toJson(exceptionDetailMap);
-            }
+            // Retrieving first element from elements array is because the throws exception detail would be available as a first element.
+            StackTraceElement[] elements = throwable.getStackTrace();
+            return HttpEventCollectorExceptionDetail.toJson(
+                    throwable.getMessage(),
+                    throwable.getClass().toString(),
+                    elements != null && elements.length > 0 ? elements[0] : null);
         } catch (Exception e) {
             // No action here
+            return "";
         }
-        return exceptionDetail;
     }
 
     public void flush() {
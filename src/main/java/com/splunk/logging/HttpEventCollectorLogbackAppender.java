@@ -22,12 +22,16 @@ import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.classic.spi.StackTraceElementProxy;
 import ch.qos.logback.core.AppenderBase;
 import ch.qos.logback.core.Layout;
-import com.google.gson.Gson;
+import ch.qos.logback.core.pattern.PatternLayoutBase;
 import com.splunk.logging.hec.MetadataTags;
+import com.splunk.logging.serialization.MessageParsing;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Logback Appender which writes its events to Splunk http event collector rest endpoint.
@@ -35,6 +39,10 @@ import java.util.Map;
 public class HttpEventCollectorLogbackAppender<E> extends AppenderBase<E> {
     private HttpEventCollectorSender sender = null;
     private Layout<E> _layout;
+    // the layout writes the message alone, so the event can be used as is
+    private boolean _messageOnly;
+    private final MarkerConverter markerConverter = new MarkerConverter();
+    private static final Set<String> MessageOnlyPatterns = new HashSet<>(Arrays.asList("%m", "%msg", "%message"));
     private boolean _includeLoggerName = true;
     private boolean _includeThreadName = true;
     private boolean _includeMDC = true;
@@ -43,6 +51,7 @@ public class HttpEventCollectorLogbackAppender<E> extends AppenderBase<E> {
     private String _source;
     private String _sourcetype;
     private String _messageFormat;
+    private String _messageParsing;
     private String _host;
     private String _index;
     private String _url;
@@ -59,6 +68,33 @@ public class HttpEventCollectorLogbackAppender<E> extends AppenderBase<E> {
     private long _batchSize = 0;
     private String _sendMode;
     private long _retriesOnError = 0;
+    private long _ingestionQueueSize = 0;
+    private String _compression;
+    private long _compressionLevel = -1;
+    private long _compressionMinSize = HttpEventCollectorSender.DefaultCompressionMinSize;
+    private String _spoolDir;
+    private long _spoolMaxBytes = HttpEventCollectorSender.DefaultSpoolMaxBytes;
+    private long _spoolSegmentBytes = HttpEventCollectorSender.DefaultSpoolSegmentSize;
+    private String _spoolFsync;
+    private long _maxPendingBytes = 0;
+    private long _maxPendingBatches = 0;
+    private String _overflowPolicy;
+    private long _overflowBlockTimeout = HttpEventCollectorSender.DefaultOverflowBlockTimeout;
+    private String _overflowSeverityThreshold;
+    private String _useAck;
+    private String _loadBalancing;
+    private String _adaptiveBatching;
+    private long _minAdaptiveBatchSize = HttpEventCollectorSender.DefaultMinAdaptiveBatchSize;
+    private long _maxAdaptiveBatchSize = HttpEventCollectorSender.DefaultMaxAdaptiveBatchSize;
+    private long _targetLatency = HttpEventCollectorSender.DefaultTargetLatency;
+    private long _maxInFlightRequests = 0;
+    private long _maxInFlightRequestsPerHost = 0;
+    private String _ordering;
+    private String _orderingKey;
+    private long _ackPollInterval = HttpEventCollectorSender.DefaultAckPollInterval;
+    private long _ackTimeout = HttpEventCollectorSender.DefaultAckTimeout;
+    private long _maxUnackedBatches = HttpEventCollectorSender.DefaultMaxUnackedBatches;
+    private String _metricsExporter;
     private Map<String, String> _metadata = new HashMap<>();
     private boolean _batchingConfigured = false;
 
@@ -70,6 +106,9 @@ public class HttpEventCollectorLogbackAppender<E> extends AppenderBase<E> {
         if (started)
             return;
 
+        _messageOnly = _layout instanceof PatternLayoutBase
+                && MessageOnlyPatterns.contains(((PatternLayoutBase<E>) _layout).getPattern());
+
         Map<String, String> metadata = new HashMap<>(_metadata);
         // init events sender
         if (_host != null)
@@ -114,6 +153,10 @@ public class HttpEventCollectorLogbackAppender<E> extends AppenderBase<E> {
             } catch (final Exception ignored) {}
         }
 
+        if (_messageParsing != null) {
+            this.sender.setMessageParsing(MessageParsing.fromString(_messageParsing));
+        }
+
         if (_errorCallback != null && !_errorCallback.isEmpty()) {
             HttpEventCollectorErrorHandler.registerClassName(_errorCallback);
         }
@@ -127,6 +170,47 @@ public class HttpEventCollectorLogbackAppender<E> extends AppenderBase<E> {
             sender.disableCertificateValidation();
         }
 
+        if (_ingestionQueueSize > 0) {
+            sender.setIngestionQueueSize((int) _ingestionQueueSize);
+        }
+
+        if ("gzip".equalsIgnoreCase(_compression)) {
+            sender.enableCompression((int) _compressionLevel, _compressionMinSize);
+        }
+
+        if (_spoolDir != null && !_spoolDir.isEmpty()) {
+            try {
+                sender.enableSpool(_spoolDir, _spoolMaxBytes, _spoolSegmentBytes, _spoolFsync);
+            } catch (IOException e) {
+                addError("Cannot open spool directory " + _spoolDir, e);
+            }
+        }
+
+        if (_maxPendingBytes > 0 || _maxPendingBatches > 0) {
+            sender.setPendingBudget(_maxPendingBytes, (int) _maxPendingBatches, _overflowPolicy,
+                    _overflowBlockTimeout, _overflowSeverityThreshold);
+        }
+
+        if (_adaptiveBatching != null && _adaptiveBatching.equalsIgnoreCase("true")) {
+            sender.enableAdaptiveBatching(_minAdaptiveBatchSize, _maxAdaptiveBatchSize, _targetLatency);
+        }
+
+        if (_maxInFlightRequests > 0 || _maxInFlightRequestsPerHost > 0 || _ordering != null) {
+            sender.setParallelism((int) _maxInFlightRequests, (int) _maxInFlightRequestsPerHost, _ordering, _orderingKey);
+        }
+
+        if (_loadBalancing != null && !_loadBalancing.isEmpty()) {
+            sender.setLoadBalancingPolicy(_loadBalancing);
+        }
+
+        if (_useAck != null && _useAck.equalsIgnoreCase("true")) {
+            sender.enableAck(_ackPollInterval, _ackTimeout, (int) _maxUnackedBatches);
+        }
+
+        if (_metricsExporter != null && !_metricsExporter.isEmpty()) {
+            sender.enableMetricsExport(getName(), _metricsExporter);
+        }
+
         super.start();
     }
 
@@ -159,51 +243,49 @@ public class HttpEventCollectorLogbackAppender<E> extends AppenderBase<E> {
             event.getCallerData();
         }
 
-        boolean isExceptionOccured = false;
-        String exceptionDetail = null;
-
         /*
         Exception details are only populated when any ERROR encountered & exception is actually thrown
          */
-        try {
-            IThrowableProxy throwableProxy = event.getThrowableProxy();
-            if (Level.ERROR.isGreaterOrEqual(event.getLevel()) && throwableProxy != null) {
-                // Exception thrown in application is wrapped with relevant information instead of just a message.
-                Map<Object, Object> exceptionDetailMap = new LinkedHashMap<>();
-
-                exceptionDetailMap.put("detailMessage", throwableProxy.getMessage());
-                exceptionDetailMap.put("exceptionClass", throwableProxy.getClassName());
-
+        String exceptionDetail = null;
+        IThrowableProxy throwableProxy = event.getThrowableProxy();
+        if (_includeException && throwableProxy != null && Level.ERROR.isGreaterOrEqual(event.getLevel())) {
+            try {
                 // Retrieving first element from elements array is because the throws exception detail would be available as a first element.
                 StackTraceElementProxy[] elements = throwableProxy.getStackTraceElementProxyArray();
-                if (elements != null && elements.length > 0 && elements[0] != null) {
-                    exceptionDetailMap.put("fileName", elements[0].getStackTraceElement().getFileName());
-                    exceptionDetailMap.put("methodName", elements[0].getStackTraceElement().getMethodName());
-                    exceptionDetailMap.put("lineNumber", String.valueOf(elements[0].getStackTraceElement().getLineNumber()));
-                }
-
-                exceptionDetail = new Gson().toJson(exceptionDetailMap);
-                isExceptionOccured = true;
+                exceptionDetail = HttpEventCollectorExceptionDetail.toJson(
+                        throwableProxy.getMessage(),
+                        throwableProxy.getClassName(),
+                        elements != null && elements.length > 0 && elements[0] != null ? elements[0].getStackTraceElement() : null);
+            } catch (Exception e) {
+                // No actions here
             }
-        } catch (Exception e) {
-            // No actions here
         }
 
-        MarkerConverter c = new MarkerConverter();
         if (this.started) {
             this.sender.send(
             		event.getTimeStamp(),
                     event.getLevel().toString(),
-                    _layout.doLayout((E) event),
+                    render(event),
                     _includeLoggerName ? event.getLoggerName() : null,
                     _includeThreadName ? event.getThreadName() : null,
                     _includeMDC ? event.getMDCPropertyMap() : null,
-                    (_includeException && isExceptionOccured) ? exceptionDetail : null,
-                    c.convert(event)
+                    exceptionDetail,
+                    markerConverter.convert(event)
             );
         }
     }
 
+    private String render(ILoggingEvent event) {
+        // the formatted message is cached by the event, a throwable is written by the layout
+        if (_messageOnly && event.getThrowableProxy() == null) {
+            String message = event.getFormattedMessage();
+            if (message != null) {
+                return message;
+            }
+        }
+        return _layout.doLayout((E) event);
+    }
+
     // send non ILoggingEvent such as ch.qos.logback.access.spi.IAccessEvent
     private void sendEvent(E e) {
         String message = _layout.doLayout(e);
@@ -382,6 +464,118 @@ public class HttpEventCollectorLogbackAppender<E> extends AppenderBase<E> {
         _retriesOnError = parseLong(value, 0);
     }
 
+    public void setingestion_queue_size(String value) {
+        _ingestionQueueSize = parseLong(value, 0);
+    }
+
+    public void setcompression(String value) {
+        _compression = value;
+    }
+
+    public void setcompression_level(String value) {
+        _compressionLevel = parseLong(value, -1);
+    }
+
+    public void setcompression_min_size(String value) {
+        _compressionMinSize = parseLong(value, HttpEventCollectorSender.DefaultCompressionMinSize);
+    }
+
+    public void setspool_dir(String value) {
+        _spoolDir = value;
+    }
+
+    public void setspool_max_bytes(String value) {
+        _spoolMaxBytes = parseLong(value, HttpEventCollectorSender.DefaultSpoolMaxBytes);
+    }
+
+    public void setspool_segment_bytes(String value) {
+        _spoolSegmentBytes = parseLong(value, HttpEventCollectorSender.DefaultSpoolSegmentSize);
+    }
+
+    public void setspool_fsync(String value) {
+        _spoolFsync = value;
+    }
+
+    public void setmax_pending_bytes(String value) {
+        _maxPendingBytes = parseLong(value, 0);
+    }
+
+    public void setmax_pending_batches(String value) {
+        _maxPendingBatches = parseLong(value, 0);
+    }
+
+    public void setoverflow_policy(String value) {
+        _overflowPolicy = value;
+    }
+
+    public void setoverflow_block_timeout(String value) {
+        _overflowBlockTimeout = parseLong(value, HttpEventCollectorSender.DefaultOverflowBlockTimeout);
+    }
+
+    public void setoverflow_severity_threshold(String value) {
+        _overflowSeverityThreshold = value;
+    }
+
+    public void setadaptive_batching(String value) {
+        _adaptiveBatching = value;
+    }
+
+    public void setbatch_size_bytes_min(String value) {
+        _minAdaptiveBatchSize = parseLong(value, HttpEventCollectorSender.DefaultMinAdaptiveBatchSize);
+    }
+
+    public void setbatch_size_bytes_max(String value) {
+        _maxAdaptiveBatchSize = parseLong(value, HttpEventCollectorSender.DefaultMaxAdaptiveBatchSize);
+    }
+
+    public void settarget_latency(String value) {
+        _targetLatency = parseLong(value, HttpEventCollectorSender.DefaultTargetLatency);
+    }
+
+    public void setmax_in_flight_requests(String value) {
+        _maxInFlightRequests = parseLong(value, 0);
+    }
+
+    public void setmax_in_flight_requests_per_host(String value) {
+        _maxInFlightRequestsPerHost = parseLong(value, 0);
+    }
+
+    public void setordering(String value) {
+        _ordering = value;
+    }
+
+    public void setordering_key(String value) {
+        _orderingKey = value;
+    }
+
+    public void setload_balancing(String value) {
+        _loadBalancing = value;
+    }
+
+    public void setuse_ack(String value) {
+        _useAck = value;
+    }
+
+    public void setack_poll_interval(String value) {
+        _ackPollInterval = parseLong(value, HttpEventCollectorSender.DefaultAckPollInterval);
+    }
+
+    public void setack_timeout(String value) {
+        _ackTimeout = parseLong(value, HttpEventCollectorSender.DefaultAckTimeout);
+    }
+
+    public void setmax_unacked_batches(String value) {
+        _maxUnackedBatches = parseLong(value, HttpEventCollectorSender.DefaultMaxUnackedBatches);
+    }
+
+    public void setmetrics_exporter(String value) {
+        _metricsExporter = value;
+    }
+
+    public void setmessage_parsing(String value) {
+        _messageParsing = value;
+    }
+
     public void setsend_mode(String value) {
         _sendMode = value;
     }
@@ -451,7 +645,7 @@ public class HttpEventCollectorLogbackAppender<E> extends AppenderBase<E> {
         return this.timeoutSettings.terminationTimeout = milliseconds;
     }
 
-    private static long parseLong(String string, int defaultValue) {
+    private static long parseLong(String string, long defaultValue) {
         try {
             return Long.parseLong(string);
         }
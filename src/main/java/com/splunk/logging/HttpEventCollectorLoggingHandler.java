@@ -78,14 +78,100 @@ package com.splunk.logging;
  * "sequential mode" that guarantees preserving events order. In
  * "sequential mode" performance of sending events to the server is lower.
  * com.splunk.logging.HttpEventCollectorLoggingHandler.send_mode=sequential
+ *
+ * # Size of the lock-free ingestion queue. When set, logging threads only publish
+ * events into the queue and a dedicated thread batches and sends them. By default
+ * - 0, i.e., events are batched on the logging thread under the sender lock.
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.ingestion_queue_size=65536
+ *
+ * # Compress batches with gzip. compression_level goes from 1 (fastest) to 9
+ * (smallest), by default - the zlib default. Batches smaller than
+ * compression_min_size bytes are sent uncompressed, by default - 1024.
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.compression=gzip
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.compression_level=6
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.compression_min_size=1024
+ *
+ * # Keep batches that cannot be delivered in a disk spool and replay them once
+ * the server is back. spool_max_bytes is the disk quota, by default - 256MB.
+ * Segment files are rolled over at spool_segment_bytes, by default - 16MB.
+ * spool_fsync is always, rollover or never, by default - rollover.
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.spool_dir=/var/spool/splunk-hec
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.spool_max_bytes=268435456
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.spool_segment_bytes=16777216
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.spool_fsync=rollover
+ *
+ * # Bound the events that are accepted but not delivered yet, by default - 0,
+ * i.e., no limit. max_pending_bytes is the encoded size of the pending events,
+ * max_pending_batches the number of batches being sent at the same time.
+ * overflow_policy is block, drop_newest, drop_oldest or drop_below_severity,
+ * by default - drop_newest. block waits up to overflow_block_timeout milliseconds,
+ * by default - 1000. drop_below_severity keeps overflow_severity_threshold and
+ * more severe events.
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.max_pending_bytes=67108864
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.max_pending_batches=16
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.overflow_policy=drop_below_severity
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.overflow_block_timeout=1000
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.overflow_severity_threshold=WARNING
+ *
+ * # Size batches by what the server sustains, by default - false. Batches grow
+ * while requests queue up and shrink when the request latency goes over
+ * target_latency milliseconds, by default - 500, or the server rejects them,
+ * between batch_size_bytes_min and batch_size_bytes_max, by default - 1KB and 1MB.
+ * batch_size_count is not used then.
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.adaptive_batching=true
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.batch_size_bytes_min=1024
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.batch_size_bytes_max=1048576
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.target_latency=500
+ *
+ * # Send up to max_in_flight_requests requests at the same time, and up to
+ * max_in_flight_requests_per_host to the same endpoint, by default - 64 and 5.
+ * ordering is none, global (one request at a time, as send_mode=sequential),
+ * logger or partition, by default - the send mode. logger and partition keep
+ * the order of the events of each logger, or of each value of the ordering_key
+ * property, and send the other loggers or partitions in parallel.
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.max_in_flight_requests=16
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.max_in_flight_requests_per_host=8
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.ordering=logger
+ *
+ * # With a comma separated list of urls, batches are distributed over the
+ * endpoints by load_balancing: round_robin, least_outstanding (fewest requests
+ * in flight) or latency_weighted, by default - round_robin. An endpoint that
+ * fails or replies 503 is skipped until its health endpoint replies 200 again.
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.url=https://hec1:8088,https://hec2:8088
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.load_balancing=least_outstanding
+ *
+ * # Wait for the indexers to acknowledge every batch, by default - false. The token
+ * must have indexer acknowledgement enabled. ackIds are polled every
+ * ack_poll_interval milliseconds, by default - 1000, and batches not acknowledged
+ * within ack_timeout milliseconds, by default - 60000, are sent again. At most
+ * max_unacked_batches, by default - 1000, wait for their acknowledgement.
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.use_ack=true
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.ack_poll_interval=1000
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.ack_timeout=60000
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.max_unacked_batches=1000
+ *
+ * # Publish the sender metrics (events sent, failed and dropped, pending events,
+ * batch size and latency histograms) through a comma separated list of exporters,
+ * by default - none. jmx registers an MBean named
+ * com.splunk.logging:type=HttpEventCollectorSender,name="HttpEventCollectorLoggingHandler",
+ * other names are classes implementing HttpEventCollectorMetricsExporter.
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.metrics_exporter=jmx
+ *
+ * # Formatter class for the whole record, by default - none, i.e., the handler
+ * formatter only fills in the message parameters. The class is loaded when the
+ * handler is created, call reconfigureFormatter to load it again.
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.formatter=java.util.logging.SimpleFormatter
+ *
+ * # How messages are put into the event body: auto (JSON objects and arrays are
+ * embedded as JSON, other messages are text), text or json. By default - auto.
+ * com.splunk.logging.HttpEventCollectorLoggingHandler.message_parsing=text
  */
 
-import com.google.gson.Gson;
 import com.splunk.logging.hec.MetadataTags;
+import com.splunk.logging.serialization.MessageParsing;
 
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Locale;
 import java.util.Map;
 import java.util.logging.*;
 
@@ -102,12 +188,44 @@ public final class HttpEventCollectorLoggingHandler extends Handler {
     private final boolean includeThreadName;
     private final String includeExceptionConfTag = "include_exception";
     private boolean includeException;
+    private final String formatterTag = "formatter";
+    // resolved from the formatter property, see reconfigureFormatter
+    private volatile Formatter configuredFormatter;
+    private final Formatter defaultFormatter = new SimpleFormatter();
 
 
     private final String batchDelayConfTag = "batch_interval";
     private final String batchCountConfTag = "batch_size_count";
     private final String batchSizeConfTag = "batch_size_bytes";
     private final String retriesOnErrorTag = "retries_on_error";
+    private final String ingestionQueueSizeTag = "ingestion_queue_size";
+    private final String messageParsingTag = "message_parsing";
+    private final String compressionTag = "compression";
+    private final String spoolDirTag = "spool_dir";
+    private final String spoolMaxBytesTag = "spool_max_bytes";
+    private final String spoolSegmentBytesTag = "spool_segment_bytes";
+    private final String spoolFsyncTag = "spool_fsync";
+    private final String maxPendingBytesTag = "max_pending_bytes";
+    private final String maxPendingBatchesTag = "max_pending_batches";
+    private final String overflowPolicyTag = "overflow_policy";
+    private final String overflowBlockTimeoutTag = "overflow_block_timeout";
+    private final String overflowSeverityThresholdTag = "overflow_severity_threshold";
+    private final String adaptiveBatchingTag = "adaptive_batching";
+    private final String minAdaptiveBatchSizeTag = "batch_size_bytes_min";
+    private final String maxAdaptiveBatchSizeTag = "batch_size_bytes_max";
+    private final String targetLatencyTag = "target_latency";
+    private final String maxInFlightRequestsTag = "max_in_flight_requests";
+    private final String maxInFlightRequestsPerHostTag = "max_in_flight_requests_per_host";
+    private final String orderingTag = "ordering";
+    private final String orderingKeyTag = "ordering_key";
+    private final String loadBalancingTag = "load_balancing";
+    private final String useAckTag = "use_ack";
+    private final String ackPollIntervalTag = "ack_poll_interval";
+    private final String ackTimeoutTag = "ack_timeout";
+    private final String maxUnackedBatchesTag = "max_unacked_batches";
+    private final String metricsExporterTag = "metrics_exporter";
+    private final String compressionLevelTag = "compression_level";
+    private final String compressionMinSizeTag = "compression_min_size";
     private final String urlConfTag = "url";
     private final String sendModeTag = "send_mode";
     private final String middlewareTag = "middleware";
@@ -155,11 +273,39 @@ public final class HttpEventCollectorLoggingHandler extends Handler {
         long batchCount = getConfigurationNumericProperty(batchCountConfTag, HttpEventCollectorSender.DefaultBatchCount);
         long batchSize = getConfigurationNumericProperty(batchSizeConfTag, HttpEventCollectorSender.DefaultBatchSize);
         long retriesOnError = getConfigurationNumericProperty(retriesOnErrorTag, 0);
+        long ingestionQueueSize = getConfigurationNumericProperty(ingestionQueueSizeTag, 0);
         String sendMode = getConfigurationProperty(sendModeTag, "sequential");
         String eventHeaderSerializer = getConfigurationProperty("eventHeaderSerializer", "");
         String middleware = getConfigurationProperty(middlewareTag, null);
         String eventBodySerializer = getConfigurationProperty("eventBodySerializer", null);
         String errorCallbackClass = getConfigurationProperty("errorCallback", null);
+        String messageParsing = getConfigurationProperty(messageParsingTag, null);
+        String compression = getConfigurationProperty(compressionTag, null);
+        long compressionLevel = getConfigurationNumericProperty(compressionLevelTag, -1);
+        long compressionMinSize = getConfigurationNumericProperty(compressionMinSizeTag, HttpEventCollectorSender.DefaultCompressionMinSize);
+        String spoolDir = getConfigurationProperty(spoolDirTag, null);
+        long spoolMaxBytes = getConfigurationNumericProperty(spoolMaxBytesTag, HttpEventCollectorSender.DefaultSpoolMaxBytes);
+        long spoolSegmentBytes = getConfigurationNumericProperty(spoolSegmentBytesTag, HttpEventCollectorSender.DefaultSpoolSegmentSize);
+        String spoolFsync = getConfigurationProperty(spoolFsyncTag, null);
+        long maxPendingBytes = getConfigurationNumericProperty(maxPendingBytesTag, 0);
+        long maxPendingBatches = getConfigurationNumericProperty(maxPendingBatchesTag, 0);
+        String overflowPolicy = getConfigurationProperty(overflowPolicyTag, null);
+        long overflowBlockTimeout = getConfigurationNumericProperty(overflowBlockTimeoutTag, HttpEventCollectorSender.DefaultOverflowBlockTimeout);
+        String overflowSeverityThreshold = getConfigurationProperty(overflowSeverityThresholdTag, null);
+        boolean adaptiveBatching = getConfigurationBooleanProperty(adaptiveBatchingTag, false);
+        long minAdaptiveBatchSize = getConfigurationNumericProperty(minAdaptiveBatchSizeTag, HttpEventCollectorSender.DefaultMinAdaptiveBatchSize);
+        long maxAdaptiveBatchSize = getConfigurationNumericProperty(maxAdaptiveBatchSizeTag, HttpEventCollectorSender.DefaultMaxAdaptiveBatchSize);
+        long targetLatency = getConfigurationNumericProperty(targetLatencyTag, HttpEventCollectorSender.DefaultTargetLatency);
+        long maxInFlightRequests = getConfigurationNumericProperty(maxInFlightRequestsTag, 0);
+        long maxInFlightRequestsPerHost = getConfigurationNumericProperty(maxInFlightRequestsPerHostTag, 0);
+        String ordering = getConfigurationProperty(orderingTag, null);
+        String orderingKey = getConfigurationProperty(orderingKeyTag, null);
+        String loadBalancing = getConfigurationProperty(loadBalancingTag, null);
+        boolean useAck = getConfigurationBooleanProperty(useAckTag, false);
+        long ackPollInterval = getConfigurationNumericProperty(ackPollIntervalTag, HttpEventCollectorSender.DefaultAckPollInterval);
+        long ackTimeout = getConfigurationNumericProperty(ackTimeoutTag, HttpEventCollectorSender.DefaultAckTimeout);
+        long maxUnackedBatches = getConfigurationNumericProperty(maxUnackedBatchesTag, HttpEventCollectorSender.DefaultMaxUnackedBatches);
+        String metricsExporter = getConfigurationProperty(metricsExporterTag, null);
 
         includeLoggerName = getConfigurationBooleanProperty(includeLoggerNameConfTag, true);
         includeThreadName = getConfigurationBooleanProperty(includeThreadNameConfTag, true);
@@ -211,6 +357,8 @@ public final class HttpEventCollectorLoggingHandler extends Handler {
             }
         }
 
+        this.sender.setMessageParsing(MessageParsing.fromString(messageParsing));
+
         if (errorCallbackClass != null && !errorCallbackClass.isEmpty()) {
             try {
                 HttpEventCollectorErrorHandler.registerClassName(errorCallbackClass);
@@ -229,6 +377,71 @@ public final class HttpEventCollectorLoggingHandler extends Handler {
         if (getConfigurationProperty("disableCertificateValidation", "false").equalsIgnoreCase("true")) {
             this.sender.disableCertificateValidation();
         }
+
+        if (ingestionQueueSize > 0) {
+            this.sender.setIngestionQueueSize((int) ingestionQueueSize);
+        }
+
+        if ("gzip".equalsIgnoreCase(compression)) {
+            this.sender.enableCompression((int) compressionLevel, compressionMinSize);
+        }
+
+        if (spoolDir != null && !spoolDir.isEmpty()) {
+            try {
+                this.sender.enableSpool(spoolDir, spoolMaxBytes, spoolSegmentBytes, spoolFsync);
+            } catch (IOException e) {
+                reportError("Cannot open spool directory " + spoolDir, e, ErrorManager.OPEN_FAILURE);
+            }
+        }
+
+        if (maxPendingBytes > 0 || maxPendingBatches > 0) {
+            this.sender.setPendingBudget(maxPendingBytes, (int) maxPendingBatches, overflowPolicy,
+                    overflowBlockTimeout, overflowSeverityThreshold);
+        }
+
+        if (adaptiveBatching) {
+            this.sender.enableAdaptiveBatching(minAdaptiveBatchSize, maxAdaptiveBatchSize, targetLatency);
+        }
+
+        if (maxInFlightRequests > 0 || maxInFlightRequestsPerHost > 0 || ordering != null) {
+            this.sender.setParallelism((int) maxInFlightRequests, (int) maxInFlightRequestsPerHost, ordering, orderingKey);
+        }
+
+        if (loadBalancing != null && !loadBalancing.isEmpty()) {
+            this.sender.setLoadBalancingPolicy(loadBalancing);
+        }
+
+        if (useAck) {
+            this.sender.enableAck(ackPollInterval, ackTimeout, (int) maxUnackedBatches);
+        }
+
+        if (metricsExporter != null && !metricsExporter.isEmpty()) {
+            this.sender.enableMetricsExport(getClass().getSimpleName(), metricsExporter);
+        }
+
+        reconfigureFormatter();
+    }
+
+    /**
+     * Load the formatter class named by the formatter property again, e.g. after
+     * LogManager.readConfiguration. The formatter is otherwise resolved once, when the
+     * handler is created.
+     */
+    public void reconfigureFormatter() {
+        configuredFormatter = loadFormatter(getConfigurationProperty(formatterTag, null));
+    }
+
+    private Formatter loadFormatter(String formatterClass) {
+        if (formatterClass == null || formatterClass.isEmpty()) {
+            return null;
+        }
+        try {
+            return (Formatter) Class.forName(formatterClass).newInstance();
+        } catch (Exception e) {
+            // the messages are formatted by the handler formatter instead
+            reportError("Cannot create formatter " + formatterClass, e, ErrorManager.OPEN_FAILURE);
+            return null;
+        }
     }
 
     /**
@@ -237,77 +450,53 @@ public final class HttpEventCollectorLoggingHandler extends Handler {
      */
     @Override
     public void publish(LogRecord record) {
-
-        boolean isExceptionOccured = false;
-        String exceptionDetail = null;
-        String formatConfiguration = null;
-        String formattedMessage = null;
-        Object messageFormatter;
-
         /*
             Exception details are only populated when any SEVERE error occurred & exception is actually thrown
          */
-        try {
-            Throwable throwable = record.getThrown();
-            if (Level.SEVERE.equals(record.getLevel()) && throwable != null) {
-
-                // Exception thrown in application is wrapped with relevant information instead of just a message.
-                Map<Object, Object> exceptionDetailMap = new LinkedHashMap<>();
-                exceptionDetailMap.put("detailMessage", throwable.getMessage());
-                exceptionDetailMap.put("exceptionClass", throwable.getClass().toString());
-
+        String exceptionDetail = null;
+        Throwable throwable = record.getThrown();
+        if (includeException && throwable != null && Level.SEVERE.equals(record.getLevel())) {
+            try {
                 // Retrieving first element from elements array is because the throws exception detail would be available as a first element.
                 StackTraceElement[] elements = throwable.getStackTrace();
-                if (elements != null && elements.length > 0 && elements[0] != null) {
-                    exceptionDetailMap.put("fileName", elements[0].getFileName());
-                    exceptionDetailMap.put("methodName", elements[0].getMethodName());
-                    exceptionDetailMap.put("lineNumber", String.valueOf(elements[0].getLineNumber()));
-                }
-                exceptionDetail = new Gson().toJson(exceptionDetailMap);
-                isExceptionOccured = true;
-            }
-        } catch (Exception e) {
-            // No actions here.
-        }
-
-        /*
-        Initializing a formatter for Java Util Logging.
-        This will be used when placeholders are used for event logging in log methods.
-         */
-
-        formatConfiguration = getConfigurationProperty("formatter", null);
-
-        if (formatConfiguration != null) {
-            try {
-                messageFormatter = Class.forName(formatConfiguration).newInstance();
-                formattedMessage = ((Formatter) messageFormatter).format(record);
+                exceptionDetail = HttpEventCollectorExceptionDetail.toJson(
+                        throwable.getMessage(),
+                        throwable.getClass().toString(),
+                        elements != null && elements.length > 0 ? elements[0] : null);
             } catch (Exception e) {
-                messageFormatter = getFormatter();
-                if (messageFormatter == null) {
-                    messageFormatter = new SimpleFormatter();
-                }
-                formattedMessage = ((Formatter) messageFormatter).formatMessage(record);
+                // No actions here.
             }
-        } else {
-            messageFormatter = getFormatter();
-            if (messageFormatter == null) {
-                messageFormatter = new SimpleFormatter();
-            }
-            formattedMessage = ((Formatter) messageFormatter).formatMessage(record);
         }
 
         this.sender.send(
                 record.getMillis(),
                 record.getLevel().toString(),
-                formattedMessage,
+                formatMessage(record),
                 includeLoggerName ? record.getLoggerName() : null,
-                includeThreadName ? String.format(Locale.US, "%d", record.getThreadID()) : null,
+                includeThreadName ? Integer.toString(record.getThreadID()) : null,
                 null, // no property map available
-                (includeException && isExceptionOccured) ? exceptionDetail : null,
+                exceptionDetail,
                 null // no marker available
         );
     }
 
+    /*
+    The configured formatter formats the whole record. Otherwise the formatter of the
+    handler, or a SimpleFormatter, fills in the placeholders of the message.
+     */
+    private String formatMessage(LogRecord record) {
+        Formatter formatter = configuredFormatter;
+        if (formatter != null) {
+            try {
+                return formatter.format(record);
+            } catch (Exception e) {
+                // fall back to the message alone
+            }
+        }
+        formatter = getFormatter();
+        return (formatter != null ? formatter : defaultFormatter).formatMessage(record);
+    }
+
     /**
      * java.util.logging data handler callback
      */
@@ -341,7 +530,7 @@ public final class HttpEventCollectorLoggingHandler extends Handler {
 
     private long getConfigurationNumericProperty(
             final String property, long defaultValue) {
-        return Integer.parseInt(
+        return Long.parseLong(
                 getConfigurationProperty(property, String.format("%d", defaultValue)));
     }
 
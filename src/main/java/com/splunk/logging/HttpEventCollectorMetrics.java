@@ -0,0 +1,173 @@
+package com.splunk.logging;
+
+/**
+ * @copyright
+ *
+ * Copyright 2013-2015 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and histograms of a single HttpEventCollectorSender, read by exporters.
+ *
+ * Counters are LongAdders, so logging threads updating them do not contend on a shared
+ * cache line. The serialization time is sampled on one event out of SerializeTimeSampling,
+ * the other histograms see every batch.
+ */
+public final class HttpEventCollectorMetrics {
+    static final int SerializeTimeSampling = 16;
+
+    private final LongAdder eventsAccepted = new LongAdder();
+    private final LongAdder eventsSent = new LongAdder();
+    private final LongAdder eventsFailed = new LongAdder();
+    private final LongAdder eventsDropped = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder pendingEvents = new LongAdder();
+    private final LongSupplier pendingBytes;
+    private final LongSupplier inFlightRequests;
+    private final HttpEventCollectorHistogram batchSize = new HttpEventCollectorHistogram();
+    private final HttpEventCollectorHistogram serializeTime = new HttpEventCollectorHistogram();
+    private final HttpEventCollectorHistogram requestLatency = new HttpEventCollectorHistogram();
+
+    HttpEventCollectorMetrics(LongSupplier pendingBytes, LongSupplier inFlightRequests) {
+        this.pendingBytes = pendingBytes;
+        this.inFlightRequests = inFlightRequests;
+    }
+
+    /**
+     * @return true when the serialization of the current event is to be timed
+     */
+    static boolean sampleSerializeTime() {
+        return ThreadLocalRandom.current().nextInt(SerializeTimeSampling) == 0;
+    }
+
+    void eventAccepted() {
+        eventsAccepted.increment();
+        pendingEvents.increment();
+    }
+
+    void eventsDropped(int count) {
+        eventsDropped.add(count);
+    }
+
+    /**
+     * Events accepted before that leave the pending budget, delivered or not.
+     */
+    void eventsReleased(int count) {
+        pendingEvents.add(-count);
+    }
+
+    void eventsSent(int count) {
+        eventsSent.add(count);
+    }
+
+    void eventsFailed(int count) {
+        eventsFailed.add(count);
+    }
+
+    void requestSent(long bodyBytes, long wireBytes) {
+        batchSize.record(bodyBytes);
+        bytesSent.add(wireBytes);
+    }
+
+    void serialized(long nanos) {
+        serializeTime.record(nanos);
+    }
+
+    void requestCompleted(long latencyNanos) {
+        requestLatency.record(latencyNanos);
+    }
+
+    /**
+     * @return events taken in by send, not counting the dropped ones
+     */
+    public long getEventsAccepted() {
+        return eventsAccepted.sum();
+    }
+
+    /**
+     * @return events the event collector accepted, or acknowledged when indexer
+     * acknowledgement is enabled
+     */
+    public long getEventsSent() {
+        return eventsSent.sum();
+    }
+
+    /**
+     * @return events handed to the error handler
+     */
+    public long getEventsFailed() {
+        return eventsFailed.sum();
+    }
+
+    /**
+     * @return events dropped by the overflow policy
+     */
+    public long getEventsDropped() {
+        return eventsDropped.sum();
+    }
+
+    /**
+     * @return request body bytes put on the wire, after compression
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * @return events accepted and not delivered or given up on yet
+     */
+    public long getPendingEvents() {
+        return pendingEvents.sum();
+    }
+
+    /**
+     * @return encoded size of the pending events
+     */
+    public long getPendingBytes() {
+        return pendingBytes.getAsLong();
+    }
+
+    /**
+     * @return batches posted and not answered yet
+     */
+    public long getInFlightRequests() {
+        return inFlightRequests.getAsLong();
+    }
+
+    /**
+     * @return uncompressed request body sizes in bytes
+     */
+    public HttpEventCollectorHistogram getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return time to serialize an event in nanoseconds
+     */
+    public HttpEventCollectorHistogram getSerializeTime() {
+        return serializeTime;
+    }
+
+    /**
+     * @return HTTP round-trip time of the requests in nanoseconds
+     */
+    public HttpEventCollectorHistogram getRequestLatency() {
+        return requestLatency;
+    }
+}
@@ -0,0 +1,36 @@
+package com.splunk.logging;
+
+/**
+ * @copyright
+ *
+ * Copyright 2013-2015 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Publishes the metrics of a sender to a monitoring system. Exporters are named in the
+ * metrics_exporter setting of the appenders by class name, the class needs a public no
+ * argument constructor. An exporter instance serves a single sender: start is called
+ * once the sender is set up and stop when it is closed.
+ */
+public interface HttpEventCollectorMetricsExporter {
+
+    /**
+     * @param name name of the appender or handler the sender belongs to
+     * @param metrics metrics of the sender, read them as often as needed
+     */
+    void start(String name, HttpEventCollectorMetrics metrics);
+
+    void stop();
+}
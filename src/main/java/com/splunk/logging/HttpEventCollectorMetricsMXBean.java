@@ -0,0 +1,64 @@
+package com.splunk.logging;
+
+/**
+ * @copyright
+ *
+ * Copyright 2013-2015 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Attributes of the MBean registered by HttpEventCollectorJmxExporter.
+ */
+public interface HttpEventCollectorMetricsMXBean {
+    long getEventsAccepted();
+
+    long getEventsSent();
+
+    long getEventsFailed();
+
+    long getEventsDropped();
+
+    long getBytesSent();
+
+    long getPendingEvents();
+
+    long getPendingBytes();
+
+    long getInFlightRequests();
+
+    long getBatchCount();
+
+    double getBatchSizeMean();
+
+    long getBatchSizeP50();
+
+    long getBatchSizeP99();
+
+    long getBatchSizeMax();
+
+    long getSerializeTimeP50Nanos();
+
+    long getSerializeTimeP99Nanos();
+
+    long getSerializeTimeMaxNanos();
+
+    double getRequestLatencyMeanMillis();
+
+    double getRequestLatencyP50Millis();
+
+    double getRequestLatencyP99Millis();
+
+    double getRequestLatencyMaxMillis();
+}
@@ -19,17 +19,28 @@ package com.splunk.logging;
  */
 
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Splunk http event collector resend middleware.
  *
  *
  * HTTP event collector middleware plug in that implements a simple resend policy.
- * When HTTP post reply isn't an application error it tries to resend the data.
- * An exponentially growing delay is used to prevent server overflow.
+ * When HTTP post fails with a network error, or the server replies that it is busy
+ * (503 or 429), it tries to resend the data. Resends are scheduled on a scheduler
+ * shared by all senders, so a retrying batch does not hold on to a thread, and the
+ * delay is drawn at random up to an exponentially growing ceiling ("full jitter")
+ * to prevent a recovering server from being hit by all senders at once.
  */
 public class HttpEventCollectorResendMiddleware
         extends HttpEventCollectorMiddleware.HttpSenderMiddleware {
+    private static final long InitialRetryDelay = 1000; // 1 second
+    private static final long RetryDelayCeiling = 60 * 1000; // 1 minute
+    private static final int ServiceUnavailable = 503;
+    private static final int TooManyRequests = 429;
+
     private long retriesOnError = 0;
 
     /**
@@ -47,13 +58,11 @@ public class HttpEventCollectorResendMiddleware
          callNext(events, sender, new Callback(events, sender, callback));
     }
 
-    private class Callback implements HttpEventCollectorMiddleware.IHttpSenderCallback {
+    private class Callback implements HttpEventCollectorSender.EndpointCallback {
         private long retries = 0;
         private final List<HttpEventCollectorEventInfo> events;
         private HttpEventCollectorMiddleware.IHttpSenderCallback prevCallback;
         private HttpEventCollectorMiddleware.IHttpSender sender;
-        private final long RetryDelayCeiling = 60 * 1000; // 1 minute
-        private long retryDelay = 1000; // start with 1 second
 
         public Callback(
                 final List<HttpEventCollectorEventInfo> events,
@@ -66,25 +75,48 @@ public class HttpEventCollectorResendMiddleware
 
         @Override
         public void completed(int statusCode, final String reply) {
-            // if non-200, resend wouldn't help, delegate to previous callback
-            prevCallback.completed(statusCode, reply);
+            completed(null, statusCode, reply);
         }
 
         @Override
-        public void failed(final Exception ex) {
-            if (retries < retriesOnError) {
-                retries++;
-                try {
-                    Thread.sleep(retryDelay);
-                    callNext(events, sender, this);
-                } catch (InterruptedException ie) {
-                    prevCallback.failed(ie);
-                }
-                // increase delay exponentially
-                retryDelay = Math.min(RetryDelayCeiling, retryDelay * 2);
+        public void completed(HttpEventCollectorEndpoints.Endpoint endpoint, int statusCode, final String reply) {
+            // the server is busy, other non-200 replies wouldn't change on resend
+            if ((statusCode == ServiceUnavailable || statusCode == TooManyRequests) && scheduleRetry()) {
+                return;
+            }
+            if (endpoint != null && prevCallback instanceof HttpEventCollectorSender.EndpointCallback) {
+                ((HttpEventCollectorSender.EndpointCallback) prevCallback).completed(endpoint, statusCode, reply);
             } else {
+                prevCallback.completed(statusCode, reply);
+            }
+        }
+
+        @Override
+        public void failed(final Exception ex) {
+            if (!scheduleRetry()) {
                 prevCallback.failed(ex);
             }
         }
+
+        /**
+         * @return false when no retries are left
+         */
+        private boolean scheduleRetry() {
+            if (retries >= retriesOnError) {
+                return false;
+            }
+            // the ceiling doubles with every retry
+            long ceiling = Math.min(RetryDelayCeiling, InitialRetryDelay << Math.min(retries, 16));
+            long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+            retries++;
+            try {
+                // the batch is compressed again when it is sent, on one of the shared workers
+                HttpEventCollectorScheduler.scheduleWork(
+                        () -> callNext(events, sender, this), delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+            return true;
+        }
     }
 }
@@ -0,0 +1,94 @@
+package com.splunk.logging;
+
+/**
+ * @copyright
+ *
+ * Copyright 2013-2015 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide scheduler for the delayed work of all senders.
+ *
+ * A single daemon thread is started on first use. It only runs tasks that never block,
+ * such as enqueueing a call on the asynchronous HTTP client. Work that takes a sender
+ * monitor, compresses a batch or touches the spool is scheduled with scheduleWork and
+ * runs on one of a fixed number of worker threads once it is due, so a sender that is
+ * busy closing does not hold up the timers of the others. Work that comes due while all
+ * the workers are busy waits in line, the thread count stays the same however many
+ * flushes or retries are due at once.
+ */
+final class HttpEventCollectorScheduler {
+    private static final String ThreadName = "splunk-hec-scheduler";
+    private static final String WorkerThreadName = "splunk-hec-worker";
+    static final int WorkerThreads = 4;
+
+    private HttpEventCollectorScheduler() {
+    }
+
+    private static final class Holder {
+        static final ScheduledExecutorService Instance = create();
+
+        private static ScheduledExecutorService create() {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, ThreadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+            // cancelled retries and flushes must not pile up in the queue
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
+
+    private static final class Workers {
+        static final ExecutorService Instance = create();
+
+        private static ExecutorService create() {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(WorkerThreads, WorkerThreads,
+                    1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, WorkerThreadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+            // idle workers end after a minute
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    /**
+     * @return the shared scheduler, started on first call
+     */
+    static ScheduledExecutorService get() {
+        return Holder.Instance;
+    }
+
+    /**
+     * Run a task that may block on a worker thread once the delay has elapsed, or as soon
+     * as a worker is free after that
+     * @return future to cancel the task until it is due
+     */
+    static ScheduledFuture<?> scheduleWork(Runnable task, long delay, TimeUnit unit) {
+        return get().schedule(() -> Workers.Instance.execute(task), delay, unit);
+    }
+}
@@ -22,42 +22,76 @@ import com.google.gson.*;
 import com.splunk.logging.hec.MetadataTags;
 import com.splunk.logging.serialization.EventInfoTypeAdapter;
 import com.splunk.logging.serialization.HecJsonSerializer;
+import com.splunk.logging.serialization.MessageParsing;
+import com.splunk.logging.serialization.Utf8JsonWriter;
 import okhttp3.*;
 
 import javax.net.ssl.*;
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.security.cert.CertificateException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
 
 
 /**
  * This is an internal helper class that sends logging events to Splunk http event collector.
  */
-public class HttpEventCollectorSender extends TimerTask implements HttpEventCollectorMiddleware.IHttpSender {
+public class HttpEventCollectorSender implements HttpEventCollectorMiddleware.IHttpSender {
     private static final String ChannelQueryParam = "channel";
     private static final String AuthorizationHeaderTag = "Authorization";
     private static final String AuthorizationHeaderScheme = "Splunk %s";
     private static final String HttpEventCollectorUriPath = "/services/collector/event/1.0";
     private static final String HttpRawCollectorUriPath = "/services/collector/raw";
+    private static final String HttpAckUriPath = "/services/collector/ack";
+    private static final String HttpHealthUriPath = "/services/collector/health";
+    private static final String ChannelHeaderTag = "X-Splunk-Request-Channel";
     private static final String JsonHttpContentType = "application/json; profile=\"urn:splunk:event:1.0\"; charset=utf-8";
+    private static final String AckHttpContentType = "application/json; charset=utf-8";
     private static final String PlainTextHttpContentType = "plain/text; charset=utf-8";
+    private static final String ContentEncodingHeaderTag = "Content-Encoding";
+    private static final String GzipContentEncoding = "gzip";
     private static final String SendModeSequential = "sequential";
     private static final String SendModeSParallel = "parallel";
+    private static final String SpoolSyncAlways = "always";
+    private static final String SpoolSyncRollover = "rollover";
+    private static final String SpoolSyncNever = "never";
+    private static final String OverflowBlock = "block";
+    private static final String OverflowDropNewest = "drop_newest";
+    private static final String OverflowDropOldest = "drop_oldest";
+    private static final String OverflowDropBelowSeverity = "drop_below_severity";
+    private static final String OrderingNone = "none";
+    private static final String OrderingGlobal = "global";
+    private static final String OrderingLogger = "logger";
+    private static final String OrderingPartition = "partition";
+    private static final String LoadBalancingRoundRobin = "round_robin";
+    private static final String LoadBalancingLeastOutstanding = "least_outstanding";
+    private static final String LoadBalancingLatencyWeighted = "latency_weighted";
+    private static final String MetricsExporterJmx = "jmx";
+    private static final int ServiceUnavailable = 503;
     private TimeoutSettings timeoutSettings = new TimeoutSettings();
     private static final Gson gson = new GsonBuilder()
             .registerTypeAdapter(HttpEventCollectorEventInfo.class, new EventInfoTypeAdapter())
             .create();
 
     private final HecJsonSerializer serializer;
+    private static final ThreadLocal<Utf8JsonWriter> encodeBuffer = ThreadLocal.withInitial(Utf8JsonWriter::new);
 
 
     /**
      * Sender operation mode. Parallel means that all HTTP requests are
      * asynchronous and may be indexed out of order. Sequential mode guarantees
-     * sequential order of the indexed events.
+     * sequential order of the indexed events. See setParallelism for finer control.
      */
     public enum SendMode
     {
@@ -65,6 +99,50 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
         Parallel
     };
 
+    /**
+     * Which events keep their order when several requests are in flight.
+     */
+    private enum Ordering
+    {
+        None,      // requests may complete in any order
+        Global,    // a single request at a time
+        Logger,    // one request at a time per logger name
+        Partition  // one request at a time per value of the ordering key property
+    };
+
+    /**
+     * What send does with an event when the pending budget is used up.
+     */
+    private enum OverflowPolicy
+    {
+        Block,
+        DropNewest,
+        DropOldest,
+        DropBelowSeverity
+    };
+
+    /**
+     * The batch of a partition that is being sent and the ones waiting for it.
+     */
+    private static final class Lane
+    {
+        List<HttpEventCollectorEventInfo> current;
+        final ArrayDeque<List<HttpEventCollectorEventInfo>> waiting = new ArrayDeque<>();
+
+        Lane(List<HttpEventCollectorEventInfo> current) {
+            this.current = current;
+        }
+    }
+
+    /**
+     * A callback that is also told which endpoint replied, the acknowledgement of a batch
+     * has to be asked from that endpoint. Middlewares of this package pass the endpoint on
+     * to the callback they wrap, whatever thread they complete on.
+     */
+    interface EndpointCallback extends HttpEventCollectorMiddleware.IHttpSenderCallback {
+        void completed(HttpEventCollectorEndpoints.Endpoint endpoint, int statusCode, String reply);
+    }
+
     /**
      * Recommended default values for events batching.
      */
@@ -72,24 +150,112 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
     public static final int DefaultBatchSize = 10 * 1024; // 10KB
     public static final int DefaultBatchCount = 10; // 10 events
 
-    private HttpUrl url;
+    /**
+     * Batches smaller than this are not worth compressing by default.
+     */
+    public static final int DefaultCompressionMinSize = 1024; // 1KB
+
+    /**
+     * Default disk quota and segment file size of the spool.
+     */
+    public static final long DefaultSpoolMaxBytes = 256 * 1024 * 1024; // 256MB
+    public static final long DefaultSpoolSegmentSize = 16 * 1024 * 1024; // 16MB
+
+    /**
+     * Default time send waits for the pending budget with the block overflow policy.
+     */
+    public static final long DefaultOverflowBlockTimeout = 1000; // 1 second
+
+    /**
+     * Recommended default values for indexer acknowledgement.
+     */
+    public static final long DefaultAckPollInterval = 1000; // 1 second
+    public static final long DefaultAckTimeout = 60 * 1000; // 1 minute
+    public static final int DefaultMaxUnackedBatches = 1000;
+
+    private static final int MaxAckResends = 3;
+
+    /**
+     * Recommended default values for adaptive batching.
+     */
+    public static final long DefaultMinAdaptiveBatchSize = 1024; // 1KB
+    public static final long DefaultMaxAdaptiveBatchSize = 1024 * 1024; // 1MB
+    public static final long DefaultTargetLatency = 500; // 500 milliseconds
+
+    private static final long DrainerIdleParkNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long FullQueueBackoffNanos = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long DrainerJoinTimeout = 1000; // 1 second
+    private static final long MinSpoolReplayDelayNanos = TimeUnit.SECONDS.toNanos(1);
+    private static final long MaxSpoolReplayDelayNanos = TimeUnit.MINUTES.toNanos(1);
+
+    private final HttpEventCollectorEndpoints endpoints;
     private String token;
     private String channel;
     private String type;
     private long maxEventsBatchCount;
     private long maxEventsBatchSize;
-    private Timer timer;
+    private final long lingerNanos; // max age of a batch before it is sent, 0 to wait for it to fill up
+    private long batchStartNanos = 0; // when the first event of eventsBatch was added
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile ScheduledFuture<?> flushTask = null;
+    private volatile boolean closed = false;
     private List<HttpEventCollectorEventInfo> eventsBatch = new LinkedList<HttpEventCollectorEventInfo>();
-    private long eventsBatchSize = 0; // estimated total size of events batch
+    private long eventsBatchSize = 0; // encoded size of events batch in bytes
+    // optional adaptive batch size, see enableAdaptiveBatching
+    private volatile HttpEventCollectorBatchController batchController = null;
     private static final OkHttpClient httpSharedClient = new OkHttpClient(); // shared instance with the default settings
-    private OkHttpClient httpClient = null; // shares the same connection pool and thread pools with the shared instance
+    private volatile OkHttpClient httpClient = null; // shares the same connection pool and thread pools with the shared instance
+    // guards starting and stopping httpClient, which happen on any thread, apart from the sender monitor
+    private final Object httpClientLock = new Object();
+    private boolean httpClientStopped = false; // stopped by close, it is not started again
     private boolean disableCertificateValidation = false;
-    private SendMode sendMode = SendMode.Sequential;
+    private Ordering ordering = Ordering.Global;
+    private String orderingKey = null;
+    private int maxInFlightRequests = 0; // 0 for the OkHttp default
+    private int maxInFlightRequestsPerHost = 0; // 0 for the OkHttp default
+    // partitions with a batch in flight, see setParallelism
+    private final Map<String, Lane> lanes = new HashMap<>();
     private HttpEventCollectorMiddleware middleware = new HttpEventCollectorMiddleware();
+    // optional lock-free ingestion path, see setIngestionQueueSize
+    private volatile MpscRingBuffer<HttpEventCollectorEventInfo> ingestionQueue = null;
+    private volatile Thread drainer = null;
+    private volatile boolean drainerParked = false;
+    // optional gzip compression of request bodies, see enableCompression
+    private boolean compressionEnabled = false;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private long compressionMinSize = DefaultCompressionMinSize;
+    private final AtomicLong compressedBatchesInputBytes = new AtomicLong();
+    private final AtomicLong compressedBatchesOutputBytes = new AtomicLong();
+    // optional disk spool of undelivered batches, see enableSpool
+    private volatile HttpEventCollectorSpool spool = null;
+    private final AtomicBoolean replayingSpool = new AtomicBoolean();
+    private final AtomicBoolean replayScheduled = new AtomicBoolean();
+    private volatile ScheduledFuture<?> replayTask = null;
+    private volatile long replayDelayNanos = MinSpoolReplayDelayNanos; // doubles while replays fail
+    // bound of the events accepted but not delivered yet, see setPendingBudget
+    private long maxPendingBytes = Long.MAX_VALUE;
+    private int maxPendingBatches = Integer.MAX_VALUE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DropNewest;
+    private long overflowBlockTimeout = DefaultOverflowBlockTimeout;
+    private int overflowSeverityThreshold = 0;
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicInteger inFlightBatches = new AtomicInteger();
+    private final ConcurrentLinkedDeque<List<HttpEventCollectorEventInfo>> outbox = new ConcurrentLinkedDeque<>();
+    private volatile int blockedSenders = 0;
+    // counters and histograms, see getMetrics and enableMetricsExport
+    private final HttpEventCollectorMetrics metrics =
+            new HttpEventCollectorMetrics(pendingBytes::get, inFlightBatches::get);
+    private final List<HttpEventCollectorMetricsExporter> metricsExporters = new ArrayList<>();
+    // optional indexer acknowledgement, see enableAck
+    private volatile HttpEventCollectorAckTracker ackTracker = null;
+    private long ackPollIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DefaultAckPollInterval);
+    private long ackTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DefaultAckTimeout);
+    private final AtomicBoolean ackPollScheduled = new AtomicBoolean(); // a poll is scheduled or in flight
+    private volatile ScheduledFuture<?> ackPollTask = null;
 
     /**
      * Initialize HttpEventCollectorSender
-     * @param Url http event collector input server
+     * @param Url http event collector input server, or a comma separated list of servers to distribute batches over
      * @param token application token
      * @param delay batching delay
      * @param maxEventsBatchCount max number of events in a batch
@@ -114,18 +280,12 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
             if (channel == null || channel.trim().equals("")) {
                 this.channel = UUID.randomUUID().toString();
             }
-            HttpUrl fullUrl = HttpUrl.parse(Url + HttpRawCollectorUriPath);
-            if (fullUrl == null) {
-                throw new IllegalArgumentException(String.format("Unparseable URL argument: %s",  Url + HttpEventCollectorUriPath));
-            }
-            HttpUrl.Builder urlBuilder = fullUrl
-                    .newBuilder()
-                    .addQueryParameter(ChannelQueryParam, channel);
-            metadata.forEach(urlBuilder::addQueryParameter);
-            this.url = urlBuilder.build();
-        } else {
-            this.url = HttpUrl.parse(Url + HttpEventCollectorUriPath);
         }
+        List<HttpEventCollectorEndpoints.Endpoint> endpointList = new ArrayList<>();
+        for (String baseUrl : Url.split(",")) {
+            endpointList.add(createEndpoint(baseUrl.trim(), metadata));
+        }
+        this.endpoints = new HttpEventCollectorEndpoints(endpointList);
 
         // when size configuration setting is missing it's treated as "infinity",
         // i.e., any value is accepted.
@@ -144,30 +304,362 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
 
         if (sendModeStr != null) {
             if (sendModeStr.equals(SendModeSequential))
-                this.sendMode = SendMode.Sequential;
+                this.ordering = Ordering.Global;
             else if (sendModeStr.equals(SendModeSParallel))
-                this.sendMode = SendMode.Parallel;
+                this.ordering = Ordering.None;
             else
                 throw new IllegalArgumentException("Unknown send mode: " + sendModeStr);
         }
 
-        if (delay > 0) {
-            // start heartbeat timer
-            timer = new Timer(true);
-            timer.scheduleAtFixedRate(this, delay, delay);
+        // batches are flushed by the shared scheduler once their oldest event is delay old
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+    }
+
+    private HttpEventCollectorEndpoints.Endpoint createEndpoint(String baseUrl, Map<String, String> metadata) {
+        HttpUrl url;
+        if (isRaw()) {
+            HttpUrl fullUrl = HttpUrl.parse(baseUrl + HttpRawCollectorUriPath);
+            if (fullUrl == null) {
+                throw new IllegalArgumentException(String.format("Unparseable URL argument: %s",  baseUrl + HttpRawCollectorUriPath));
+            }
+            HttpUrl.Builder urlBuilder = fullUrl
+                    .newBuilder()
+                    .addQueryParameter(ChannelQueryParam, this.channel);
+            metadata.forEach(urlBuilder::addQueryParameter);
+            url = urlBuilder.build();
+        } else {
+            url = HttpUrl.parse(baseUrl + HttpEventCollectorUriPath);
         }
+        return new HttpEventCollectorEndpoints.Endpoint(
+                url, HttpUrl.parse(baseUrl + HttpAckUriPath), HttpUrl.parse(baseUrl + HttpHealthUriPath));
     }
 
     public void addMiddleware(HttpEventCollectorMiddleware.HttpSenderMiddleware middleware) {
         this.middleware.add(middleware);
     }
 
+    /**
+     * Enable the lock-free ingestion path. Logging threads publish events into a bounded
+     * multi-producer ring buffer and a single drainer thread moves them into batches, so
+     * send does not contend on the sender monitor. Must be called before the first event
+     * is sent; a size of 0, the default, keeps the synchronous path, where send batches
+     * the event under the sender monitor.
+     * @param size ring buffer capacity in events, rounded up to a power of two
+     */
+    public synchronized void setIngestionQueueSize(int size) {
+        if (size <= 0 || ingestionQueue != null) {
+            return;
+        }
+        ingestionQueue = new MpscRingBuffer<>(size);
+        Thread thread = new Thread(this::drainIngestionQueueLoop, "splunk-hec-ingestion");
+        thread.setDaemon(true);
+        drainer = thread;
+        thread.start();
+    }
+
+    /**
+     * Keep batches that cannot be delivered in a disk spool instead of handing them to the
+     * error handler. A batch is spooled when the request fails or the server replies with a
+     * 5xx status after all retries. While the spool holds batches, new batches are appended
+     * to it as well, and the spooled batches are replayed oldest first on every flush, and
+     * every batch interval while they wait, until the server accepts them. Batches left in the directory by a previous
+     * sender are recovered and replayed.
+     * @param directory spool directory, it must not be shared with another sender
+     * @param maxBytes disk quota, batches that do not fit are handed to the error handler
+     * @param segmentSize size of a segment file after which a new one is started
+     * @param syncPolicy always, rollover or never, when appended batches are forced to disk
+     * @throws IOException when the spool directory cannot be created or read
+     */
+    public synchronized void enableSpool(String directory, long maxBytes, long segmentSize, String syncPolicy)
+            throws IOException {
+        HttpEventCollectorSpool.SyncPolicy policy = HttpEventCollectorSpool.SyncPolicy.Rollover;
+        if (syncPolicy != null) {
+            if (syncPolicy.equals(SpoolSyncAlways))
+                policy = HttpEventCollectorSpool.SyncPolicy.Always;
+            else if (syncPolicy.equals(SpoolSyncRollover))
+                policy = HttpEventCollectorSpool.SyncPolicy.Rollover;
+            else if (syncPolicy.equals(SpoolSyncNever))
+                policy = HttpEventCollectorSpool.SyncPolicy.Never;
+            else
+                throw new IllegalArgumentException("Unknown spool sync policy: " + syncPolicy);
+        }
+        if (spool != null) {
+            spool.close();
+        }
+        spool = new HttpEventCollectorSpool(new File(directory), maxBytes, segmentSize, policy);
+        if (!spool.isEmpty()) {
+            // replay what a previous sender left behind
+            scheduleReplay();
+        }
+    }
+
+    /**
+     * Bound the events that have been accepted by send but not delivered yet. Batches over
+     * maxBatches wait in the sender instead of piling up in the HTTP client queue, and when
+     * the encoded size of all pending events reaches maxBytes the overflow policy decides:
+     * block waits up to blockTimeout milliseconds for room and then drops the event,
+     * drop_newest drops the event being sent, drop_oldest drops the oldest batches that are
+     * not being sent yet, drop_below_severity drops events less severe than
+     * severityThreshold and accepts the others over the budget.
+     * @param maxBytes max encoded size of pending events, 0 for no limit
+     * @param maxBatches max number of batches being sent at the same time, 0 for no limit
+     * @param overflowPolicy block, drop_newest, drop_oldest or drop_below_severity, by default drop_newest
+     * @param blockTimeout max time in milliseconds send blocks with the block policy
+     * @param severityThreshold least severe level that is kept with the drop_below_severity policy
+     */
+    public synchronized void setPendingBudget(long maxBytes, int maxBatches, String overflowPolicy,
+                                              long blockTimeout, String severityThreshold) {
+        OverflowPolicy policy = OverflowPolicy.DropNewest;
+        if (overflowPolicy != null) {
+            if (overflowPolicy.equals(OverflowBlock))
+                policy = OverflowPolicy.Block;
+            else if (overflowPolicy.equals(OverflowDropNewest))
+                policy = OverflowPolicy.DropNewest;
+            else if (overflowPolicy.equals(OverflowDropOldest))
+                policy = OverflowPolicy.DropOldest;
+            else if (overflowPolicy.equals(OverflowDropBelowSeverity))
+                policy = OverflowPolicy.DropBelowSeverity;
+            else
+                throw new IllegalArgumentException("Unknown overflow policy: " + overflowPolicy);
+        }
+        this.overflowPolicy = policy;
+        this.maxPendingBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.maxPendingBatches = maxBatches > 0 ? maxBatches : Integer.MAX_VALUE;
+        this.overflowBlockTimeout = Math.max(0, blockTimeout);
+        this.overflowSeverityThreshold = severityRank(severityThreshold);
+    }
+
+    /**
+     * Let the sender size batches by what the server sustains instead of the static batch
+     * size and count. Batches grow while requests queue up behind each other and shrink
+     * when the request latency goes over the target or the server rejects a batch as too
+     * large (413) or busy (429, 503). Batches are bounded by size only, the batch interval
+     * still limits how long an event waits for its batch. The current size is reported
+     * by getBatchSizeLimit.
+     * @param minBatchSize smallest batch size in bytes
+     * @param maxBatchSize largest batch size in bytes
+     * @param targetLatency request latency in milliseconds above which batches shrink
+     */
+    public synchronized void enableAdaptiveBatching(long minBatchSize, long maxBatchSize, long targetLatency) {
+        long initialBatchSize = maxEventsBatchSize != Long.MAX_VALUE ? maxEventsBatchSize : DefaultBatchSize;
+        batchController = new HttpEventCollectorBatchController(
+                minBatchSize, maxBatchSize, initialBatchSize, TimeUnit.MILLISECONDS.toNanos(targetLatency));
+    }
+
+    /**
+     * @return size in bytes after which a batch is sent, adapted when adaptive batching is enabled
+     */
+    public long getBatchSizeLimit() {
+        HttpEventCollectorBatchController controller = batchController;
+        return controller != null ? controller.getBatchSize() : maxEventsBatchSize;
+    }
+
+    /**
+     * @return number of times adaptive batching made batches larger
+     */
+    public long getBatchGrowCount() {
+        HttpEventCollectorBatchController controller = batchController;
+        return controller != null ? controller.getGrowCount() : 0;
+    }
+
+    /**
+     * @return number of times adaptive batching made batches smaller
+     */
+    public long getBatchShrinkCount() {
+        HttpEventCollectorBatchController controller = batchController;
+        return controller != null ? controller.getShrinkCount() : 0;
+    }
+
+    /**
+     * @return moving average of the request latency in milliseconds seen by adaptive batching, 0 when disabled
+     */
+    public long getAdaptiveBatchingLatency() {
+        HttpEventCollectorBatchController controller = batchController;
+        return controller != null ? TimeUnit.NANOSECONDS.toMillis(controller.getLatencyNanos()) : 0;
+    }
+
+    /**
+     * Control how many requests are sent at the same time, and which events keep their
+     * order while they are. With the logger and partition orderings a batch is split by
+     * logger name, or by the value of the orderingKey event property (e.g. an MDC entry),
+     * and each part waits for the previous batch of its partition to be accepted, while
+     * the batches of different partitions are sent in parallel. Overrides send_mode.
+     * @param maxInFlightRequests max number of requests in flight, 0 for the HTTP client default of 64
+     * @param maxInFlightRequestsPerHost max number of requests in flight per endpoint, 0 for the HTTP client default of 5
+     * @param ordering none, global (one request at a time), logger or partition, null to keep the send mode
+     * @param orderingKey name of the event property that partitions events with the partition ordering
+     */
+    public synchronized void setParallelism(int maxInFlightRequests, int maxInFlightRequestsPerHost,
+                                            String ordering, String orderingKey) {
+        if (ordering != null) {
+            if (ordering.equals(OrderingNone))
+                this.ordering = Ordering.None;
+            else if (ordering.equals(OrderingGlobal))
+                this.ordering = Ordering.Global;
+            else if (ordering.equals(OrderingLogger))
+                this.ordering = Ordering.Logger;
+            else if (ordering.equals(OrderingPartition))
+                this.ordering = Ordering.Partition;
+            else
+                throw new IllegalArgumentException("Unknown ordering: " + ordering);
+        }
+        if (this.ordering == Ordering.Partition && (orderingKey == null || orderingKey.isEmpty())) {
+            throw new IllegalArgumentException("The partition ordering needs an ordering key");
+        }
+        this.orderingKey = orderingKey;
+        this.maxInFlightRequests = Math.max(0, maxInFlightRequests);
+        this.maxInFlightRequestsPerHost = Math.max(0, maxInFlightRequestsPerHost);
+        synchronized (httpClientLock) {
+            if (httpClient != null) {
+                applyParallelism(httpClient.dispatcher());
+            }
+        }
+    }
+
+    private void applyParallelism(Dispatcher dispatcher) {
+        if (ordering == Ordering.Global) {
+            dispatcher.setMaxRequests(1);
+            return;
+        }
+        if (maxInFlightRequests > 0) {
+            dispatcher.setMaxRequests(maxInFlightRequests);
+        }
+        if (maxInFlightRequestsPerHost > 0) {
+            dispatcher.setMaxRequestsPerHost(maxInFlightRequestsPerHost);
+        }
+    }
+
+    /**
+     * Choose how batches are distributed when the sender has several endpoints: round_robin
+     * sends them in turn, least_outstanding to the endpoint with the fewest requests in
+     * flight, latency_weighted at random, weighted by the inverse of the observed latency.
+     * Whatever the policy, an endpoint that fails a request or replies 503 gets no batches
+     * until its health endpoint replies 200 again.
+     * @param policy round_robin, least_outstanding or latency_weighted, by default round_robin
+     */
+    public void setLoadBalancingPolicy(String policy) {
+        HttpEventCollectorEndpoints.Policy loadBalancing = HttpEventCollectorEndpoints.Policy.RoundRobin;
+        if (policy != null) {
+            if (policy.equals(LoadBalancingRoundRobin))
+                loadBalancing = HttpEventCollectorEndpoints.Policy.RoundRobin;
+            else if (policy.equals(LoadBalancingLeastOutstanding))
+                loadBalancing = HttpEventCollectorEndpoints.Policy.LeastOutstanding;
+            else if (policy.equals(LoadBalancingLatencyWeighted))
+                loadBalancing = HttpEventCollectorEndpoints.Policy.LatencyWeighted;
+            else
+                throw new IllegalArgumentException("Unknown load balancing policy: " + policy);
+        }
+        endpoints.setPolicy(loadBalancing);
+    }
+
+    /**
+     * Wait for the indexers to acknowledge every batch. The ackId of each accepted batch is
+     * recorded, and all recorded ackIds are queried in one request to the ack endpoint
+     * every poll interval. A batch that is not acknowledged within the timeout is sent
+     * again, up to 3 times, after which it is spooled or handed to the error handler. The
+     * events of a batch stay in the pending budget until it is acknowledged, and no new
+     * batch is sent while maxUnackedBatches are waiting. Delivery is at least once, a
+     * batch that is sent again after the timeout may be indexed twice. The token must have
+     * indexer acknowledgement enabled; when the server replies without an ackId the batch
+     * is treated as delivered.
+     * @param pollInterval time in milliseconds between two queries of the ack endpoint
+     * @param timeout time in milliseconds after which an unacknowledged batch is sent again
+     * @param maxUnackedBatches max number of batches waiting for their acknowledgement
+     */
+    public synchronized void enableAck(long pollInterval, long timeout, int maxUnackedBatches) {
+        if (pollInterval <= 0 || timeout <= 0) {
+            throw new IllegalArgumentException("Ack poll interval and timeout must be positive");
+        }
+        for (int i = 0; i < endpoints.size(); i++) {
+            if (endpoints.get(i).ackUrl == null) {
+                throw new IllegalArgumentException("Unparseable URL argument: " + endpoints.get(i));
+            }
+        }
+        if (channel == null || channel.trim().equals("")) {
+            // acknowledgements are tracked per channel
+            channel = UUID.randomUUID().toString();
+        }
+        ackPollIntervalNanos = TimeUnit.MILLISECONDS.toNanos(pollInterval);
+        ackTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        ackTracker = new HttpEventCollectorAckTracker(maxUnackedBatches);
+    }
+
+    /**
+     * @return number of batches accepted by the server and waiting for their acknowledgement
+     */
+    public int getUnackedBatchCount() {
+        HttpEventCollectorAckTracker tracker = ackTracker;
+        return tracker == null ? 0 : tracker.size();
+    }
+
+    /**
+     * @return number of events dropped by the overflow policy
+     */
+    public long getDroppedEventCount() {
+        return metrics.getEventsDropped();
+    }
+
+    /**
+     * @return encoded size of the events accepted by send and not delivered yet
+     */
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * @return counters and histograms of this sender
+     */
+    public HttpEventCollectorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Start exporters of the metrics of this sender, they are stopped when it is closed.
+     * @param name name to publish the metrics under, usually the appender name
+     * @param exporters comma separated exporter class names, jmx stands for
+     *                  HttpEventCollectorJmxExporter
+     */
+    public synchronized void enableMetricsExport(String name, String exporters) {
+        if (exporters == null) {
+            return;
+        }
+        for (String exporterName : exporters.split(",")) {
+            exporterName = exporterName.trim();
+            if (exporterName.isEmpty()) {
+                continue;
+            }
+            HttpEventCollectorMetricsExporter exporter;
+            if (exporterName.equals(MetricsExporterJmx)) {
+                exporter = new HttpEventCollectorJmxExporter();
+            } else {
+                try {
+                    exporter = (HttpEventCollectorMetricsExporter) Class.forName(exporterName).getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException | ClassCastException e) {
+                    throw new IllegalArgumentException("Unknown metrics exporter: " + exporterName, e);
+                }
+            }
+            exporter.start(name, metrics);
+            metricsExporters.add(exporter);
+        }
+    }
+
+    private void stopMetricsExporters() {
+        for (HttpEventCollectorMetricsExporter exporter : metricsExporters) {
+            try {
+                exporter.stop();
+            } catch (RuntimeException e) {
+                HttpEventCollectorErrorHandler.error(null, e);
+            }
+        }
+        metricsExporters.clear();
+    }
+
     /**
      * Send a single logging event in case of batching the event isn't sent immediately
      * @param severity event severity level (info, warning, etc.)
      * @param message event text
      */
-    public synchronized void send(
+    public void send(
     		final long timeMsSinceEpoch,
             final String severity,
             final String message,
@@ -180,10 +672,20 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
         // create event info container and add it to the batch
         HttpEventCollectorEventInfo eventInfo =
                 new HttpEventCollectorEventInfo(timeMsSinceEpoch, severity, message, logger_name, thread_name, properties, exception_message, marker);
-        eventsBatch.add(eventInfo);
-        eventsBatchSize += severity.length() + message.length();
-        if (eventsBatch.size() >= maxEventsBatchCount || eventsBatchSize > maxEventsBatchSize) {
-            flush();
+        // encode on the calling thread, outside of the sender monitor
+        encode(eventInfo);
+        if (!reservePending(eventInfo)) {
+            metrics.eventsDropped(1);
+            return;
+        }
+        metrics.eventAccepted();
+        MpscRingBuffer<HttpEventCollectorEventInfo> queue = ingestionQueue;
+        if (queue != null) {
+            enqueue(queue, eventInfo);
+        } else {
+            synchronized (this) {
+                appendToBatch(eventInfo);
+            }
         }
     }
 
@@ -191,10 +693,281 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
      * Send a single logging event with message only in case of batching the event isn't sent immediately
      * @param message event text
      */
-    public synchronized void send(final String message) {
+    public void send(final String message) {
         send(System.currentTimeMillis(), "", message, "", "", null, null, "");
     }
 
+    /**
+     * Account an event in the pending budget, applying the overflow policy when it is used up.
+     * @return false when the event has to be dropped
+     */
+    private boolean reservePending(HttpEventCollectorEventInfo eventInfo) {
+        long size = eventInfo.getEncoded().length;
+        if (tryReservePending(size)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case DropBelowSeverity:
+                if (severityRank(eventInfo.getSeverity()) < overflowSeverityThreshold) {
+                    return false;
+                }
+                pendingBytes.addAndGet(size);
+                return true;
+            case DropOldest:
+                synchronized (this) {
+                    while (!tryReservePending(size)) {
+                        if (!dropOldestPending()) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            case Block:
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + overflowBlockTimeout;
+                    // send what is batched, it holds budget that is only released once delivered
+                    drainIngestionQueue();
+                    flushEvents();
+                    // announce the wait before checking, so a completing batch cannot miss it
+                    blockedSenders++;
+                    try {
+                        while (!tryReservePending(size)) {
+                            long timeout = deadline - System.currentTimeMillis();
+                            if (timeout <= 0) {
+                                return false;
+                            }
+                            wait(timeout);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    } finally {
+                        blockedSenders--;
+                    }
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean tryReservePending(long size) {
+        while (true) {
+            long pending = pendingBytes.get();
+            // an event larger than the whole budget is accepted when nothing else is pending
+            if (pending > 0 && size > maxPendingBytes - pending) {
+                return false;
+            }
+            if (pendingBytes.compareAndSet(pending, pending + size)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drop the oldest batch waiting for a free slot, or the oldest event of the batch being
+     * collected. The caller must hold the sender monitor.
+     * @return false when there is nothing left that is not being sent already
+     */
+    private boolean dropOldestPending() {
+        List<HttpEventCollectorEventInfo> batch = outbox.pollFirst();
+        if (batch != null) {
+            releasePending(batch);
+            metrics.eventsDropped(batch.size());
+            batchDone(batch);
+            return true;
+        }
+        if (!eventsBatch.isEmpty()) {
+            HttpEventCollectorEventInfo eventInfo = eventsBatch.remove(0);
+            long size = eventInfo.getEncoded().length;
+            pendingBytes.addAndGet(-size);
+            eventsBatchSize -= eventsBatch.isEmpty()
+                    ? eventsBatchSize : size + HttpEventCollectorBatchBody.separatorLength(isRaw());
+            metrics.eventsReleased(1);
+            metrics.eventsDropped(1);
+            return true;
+        }
+        return false;
+    }
+
+    private void releasePending(List<HttpEventCollectorEventInfo> events) {
+        long size = 0;
+        for (HttpEventCollectorEventInfo eventInfo : events) {
+            size += eventInfo.getEncoded().length;
+        }
+        pendingBytes.addAndGet(-size);
+        metrics.eventsReleased(events.size());
+    }
+
+    /**
+     * Rank of a Logback, Log4j2 or java.util.logging level name, unknown names rank as INFO.
+     */
+    private static int severityRank(String severity) {
+        if (severity == null) {
+            return 0;
+        }
+        switch (severity.toUpperCase(Locale.ROOT)) {
+            case "ALL":
+            case "TRACE":
+            case "FINEST":
+            case "FINER":
+                return 0;
+            case "DEBUG":
+            case "FINE":
+            case "CONFIG":
+                return 1;
+            case "WARN":
+            case "WARNING":
+                return 3;
+            case "ERROR":
+            case "SEVERE":
+                return 4;
+            case "FATAL":
+            case "OFF":
+                return 5;
+            default:
+                return 2;
+        }
+    }
+
+    private void enqueue(MpscRingBuffer<HttpEventCollectorEventInfo> queue, HttpEventCollectorEventInfo eventInfo) {
+        while (!queue.offer(eventInfo)) {
+            // the ring is full, wake the drainer up and back off until it catches up
+            Thread thread = drainer;
+            if (thread == null) {
+                // the sender is closing, fall back to the synchronous path
+                synchronized (this) {
+                    drainIngestionQueue(queue);
+                    appendToBatch(eventInfo);
+                }
+                return;
+            }
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(FullQueueBackoffNanos);
+        }
+        if (ingestionQueue != queue) {
+            // the sender closed while the event was published, the final drain may have missed it
+            synchronized (this) {
+                drainIngestionQueue(queue);
+            }
+            return;
+        }
+        if (drainerParked) {
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    private void drainIngestionQueueLoop() {
+        MpscRingBuffer<HttpEventCollectorEventInfo> queue = ingestionQueue;
+        while (drainer == Thread.currentThread()) {
+            if (queue.isEmpty()) {
+                drainerParked = true;
+                // re-check after publishing the parked flag, a producer may have missed it
+                if (queue.isEmpty()) {
+                    LockSupport.parkNanos(this, DrainerIdleParkNanos);
+                }
+                drainerParked = false;
+                continue;
+            }
+            synchronized (this) {
+                drainIngestionQueue();
+            }
+        }
+    }
+
+    /**
+     * Move all published events from the ingestion queue into the batch.
+     * The caller must hold the sender monitor, which makes it the single consumer.
+     */
+    private void drainIngestionQueue() {
+        drainIngestionQueue(ingestionQueue);
+    }
+
+    private void drainIngestionQueue(MpscRingBuffer<HttpEventCollectorEventInfo> queue) {
+        if (queue == null) {
+            return;
+        }
+        HttpEventCollectorEventInfo eventInfo;
+        while ((eventInfo = queue.poll()) != null) {
+            appendToBatch(eventInfo);
+        }
+    }
+
+    private void encode(HttpEventCollectorEventInfo eventInfo) {
+        long start = HttpEventCollectorMetrics.sampleSerializeTime() ? System.nanoTime() : 0;
+        Utf8JsonWriter writer = encodeBuffer.get();
+        writer.reset();
+        if (isRaw()) {
+            writer.writeRaw(String.valueOf(eventInfo.getMessage()));
+        } else {
+            serializer.serialize(eventInfo, writer);
+        }
+        eventInfo.setEncoded(writer.toByteArray());
+        if (start != 0) {
+            metrics.serialized(System.nanoTime() - start);
+        }
+    }
+
+    private boolean isRaw() {
+        return "Raw".equalsIgnoreCase(type);
+    }
+
+    private void appendToBatch(HttpEventCollectorEventInfo eventInfo) {
+        HttpEventCollectorBatchController controller = batchController;
+        long maxBatchSize = controller != null ? controller.getBatchSize() : maxEventsBatchSize;
+        long maxBatchCount = controller != null ? Long.MAX_VALUE : maxEventsBatchCount;
+        long size = eventInfo.getEncoded().length;
+        if (!eventsBatch.isEmpty()) {
+            size += HttpEventCollectorBatchBody.separatorLength(isRaw());
+            // batch_size_bytes is a ceiling, send what we have before going over it
+            if (size > maxBatchSize - eventsBatchSize) {
+                flushEvents();
+                size = eventInfo.getEncoded().length;
+            }
+        }
+        eventsBatch.add(eventInfo);
+        eventsBatchSize += size;
+        if (eventsBatch.size() >= maxBatchCount || eventsBatchSize >= maxBatchSize) {
+            flushEvents();
+        } else if (eventsBatch.size() == 1) {
+            batchStartNanos = System.nanoTime();
+            scheduleFlush(lingerNanos);
+        }
+    }
+
+    /**
+     * Run lingerExpired on a worker of the shared scheduler after the delay, unless it is scheduled already.
+     * It takes the sender monitor, which must never be waited for on the scheduler thread.
+     */
+    private void scheduleFlush(long delayNanos) {
+        if (lingerNanos == 0 || closed || !flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            flushTask = HttpEventCollectorScheduler.scheduleWork(this::lingerExpired, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            flushScheduled.set(false);
+        }
+    }
+
+    /**
+     * Send the batch once its oldest event has waited for the batch interval.
+     */
+    private synchronized void lingerExpired() {
+        flushScheduled.set(false);
+        if (closed) {
+            return;
+        }
+        drainIngestionQueue();
+        long age = System.nanoTime() - batchStartNanos;
+        if (!eventsBatch.isEmpty() && age < lingerNanos) {
+            // the batch was sent and a new one started since this flush was scheduled
+            scheduleFlush(lingerNanos - age);
+            return;
+        }
+        flushEvents();
+    }
+
     /**
      * Flush all pending events to the underlying HTTP client
      * and then flush the HTTP client itself (keeping the client
@@ -209,18 +982,152 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
      */
     private synchronized void flushEvents() {
         if (eventsBatch.size() > 0) {
-            postEventsAsync(eventsBatch);
+            dispatch(eventsBatch);
         }
         // Clear the batch. A new list should be created because events are
         // sending asynchronously and "previous" instance of eventsBatch object
         // is still in use.
         eventsBatch = new LinkedList<>();
         eventsBatchSize = 0;
+        if (replayDelayNanos == MinSpoolReplayDelayNanos) {
+            // after failed replays the spool waits for its backoff instead
+            replaySpool();
+        }
+    }
+
+    /**
+     * Send a batch, or hold it back while too many batches are being sent.
+     * The caller must hold the sender monitor.
+     */
+    private void dispatch(List<HttpEventCollectorEventInfo> events) {
+        if (isPartitioned()) {
+            for (List<HttpEventCollectorEventInfo> part : partition(events)) {
+                String partition = partitionOf(part.get(0));
+                Lane lane = lanes.get(partition);
+                if (lane != null) {
+                    // the partition has a batch in flight already
+                    lane.waiting.addLast(part);
+                } else {
+                    lanes.put(partition, new Lane(part));
+                    outbox.addLast(part);
+                }
+            }
+        } else {
+            outbox.addLast(events);
+        }
+        dispatchOutbox(false);
+    }
+
+    private boolean isPartitioned() {
+        return ordering == Ordering.Logger || ordering == Ordering.Partition;
+    }
+
+    private String partitionOf(HttpEventCollectorEventInfo eventInfo) {
+        String partition;
+        if (ordering == Ordering.Logger) {
+            partition = eventInfo.getLoggerName();
+        } else {
+            Map<String, String> properties = eventInfo.getProperties();
+            partition = properties != null ? properties.get(orderingKey) : null;
+        }
+        return partition != null ? partition : "";
+    }
+
+    /**
+     * Split a batch by partition, keeping the order of the events of each partition.
+     */
+    private Collection<List<HttpEventCollectorEventInfo>> partition(List<HttpEventCollectorEventInfo> events) {
+        Map<String, List<HttpEventCollectorEventInfo>> parts = new LinkedHashMap<>();
+        for (HttpEventCollectorEventInfo eventInfo : events) {
+            parts.computeIfAbsent(partitionOf(eventInfo), partition -> new LinkedList<>()).add(eventInfo);
+        }
+        return parts.values();
+    }
+
+    /**
+     * A batch is accepted, given up on or dropped, release the next batch of its partition.
+     */
+    private void batchDone(List<HttpEventCollectorEventInfo> events) {
+        if (!isPartitioned() || events.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            String partition = partitionOf(events.get(0));
+            Lane lane = lanes.get(partition);
+            if (lane == null || lane.current != events) {
+                // e.g. a batch sent again after its acknowledgement timed out
+                return;
+            }
+            lane.current = lane.waiting.pollFirst();
+            if (lane.current == null) {
+                lanes.remove(partition);
+            } else {
+                outbox.addLast(lane.current);
+            }
+        }
+    }
+
+    /**
+     * Send the batches held back by dispatch while there are free slots.
+     * The caller must hold the sender monitor.
+     * @param all send them regardless of the max number of batches
+     */
+    private void dispatchOutbox(boolean all) {
+        List<HttpEventCollectorEventInfo> events;
+        while ((all || hasFreeSlot()) && (events = outbox.pollFirst()) != null) {
+            HttpEventCollectorSpool spool = this.spool;
+            if (spool != null && !spool.isEmpty()) {
+                // queue up behind the batches waiting in the spool
+                releasePending(events);
+                spoolEvents(events, null);
+                batchDone(events);
+            } else {
+                postEventsAsync(events);
+            }
+        }
+    }
+
+    /**
+     * @return true when another batch can be sent, counting the batches waiting for their acknowledgement
+     */
+    private boolean hasFreeSlot() {
+        int inFlight = inFlightBatches.get();
+        HttpEventCollectorAckTracker tracker = ackTracker;
+        return inFlight < maxPendingBatches && (tracker == null || tracker.hasRoom(inFlight));
+    }
+
+    /**
+     * A batch handed to postEventsAsync is delivered or given up on.
+     */
+    private void completePending(List<HttpEventCollectorEventInfo> events) {
+        releasePending(events);
+        inFlightBatches.decrementAndGet();
+        batchDone(events);
+        wakeDispatch();
+    }
+
+    /**
+     * Send held back batches and wake up blocked senders after a slot or budget was freed.
+     */
+    private void wakeDispatch() {
+        if (!outbox.isEmpty() || blockedSenders > 0) {
+            synchronized (this) {
+                dispatchOutbox(false);
+                notifyAll();
+            }
+        }
     }
 
     public synchronized void flush(boolean close) {
+        drainIngestionQueue();
         flushEvents();
         if (close) {
+            // nothing is held back once the sender is closing, not even for ordering
+            for (Lane lane : lanes.values()) {
+                outbox.addAll(lane.waiting);
+            }
+            lanes.clear();
+            dispatchOutbox(true);
             stopHttpClient();
         } else {
             flushHttpClient();
@@ -231,18 +1138,72 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
      * Close events sender
      */
     void close() {
-        if (timer != null)
-            timer.cancel();
-        flush(true);
-        super.cancel();
+        closed = true;
+        ScheduledFuture<?> task = flushTask;
+        if (task != null) {
+            task.cancel(false);
+        }
+        task = ackPollTask;
+        if (task != null) {
+            task.cancel(false);
+        }
+        task = replayTask;
+        if (task != null) {
+            task.cancel(false);
+        }
+        stopDrainer();
+        synchronized (this) {
+            // events sent after close take the synchronous path, those still published
+            // into the ring once it is drained are drained by their producer, see enqueue
+            MpscRingBuffer<HttpEventCollectorEventInfo> queue = ingestionQueue;
+            ingestionQueue = null;
+            drainIngestionQueue(queue);
+            flush(true);
+            abandonUnacknowledged();
+            closeSpool();
+            stopMetricsExporters();
+        }
     }
 
     /**
-     * Timer heartbeat
+     * Spool the batches still waiting for their acknowledgement, so the next sender
+     * delivers them again, or hand them to the error handler.
      */
-    @Override // TimerTask
-    public void run() {
-        flushEvents();
+    private void abandonUnacknowledged() {
+        HttpEventCollectorAckTracker tracker = ackTracker;
+        if (tracker == null) {
+            return;
+        }
+        for (HttpEventCollectorAckTracker.Batch batch : tracker.clear()) {
+            releasePending(batch.events);
+            spoolEvents(batch.events, new TimeoutException("Sender closed before the batch was acknowledged"));
+        }
+    }
+
+    private void closeSpool() {
+        HttpEventCollectorSpool spool = this.spool;
+        if (spool != null) {
+            // undelivered batches stay on disk for the next sender
+            this.spool = null;
+            try {
+                spool.close();
+            } catch (IOException e) {
+                HttpEventCollectorErrorHandler.error(null, e);
+            }
+        }
+    }
+
+    private void stopDrainer() {
+        Thread thread = drainer;
+        if (thread != null) {
+            drainer = null;
+            LockSupport.unpark(thread);
+            try {
+                thread.join(DrainerJoinTimeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     /**
@@ -253,6 +1214,29 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
         disableCertificateValidation = true;
     }
 
+    /**
+     * Send batches with Content-Encoding: gzip.
+     * @param level deflate level from 1 (fastest) to 9 (smallest), -1 for the zlib default
+     * @param minSize batches smaller than this number of bytes are sent uncompressed
+     */
+    public void enableCompression(int level, long minSize) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        compressionLevel = level;
+        compressionMinSize = Math.max(0, minSize);
+        compressionEnabled = true;
+    }
+
+    /**
+     * @return uncompressed to compressed size ratio of all batches sent compressed so far,
+     * 0 if none was compressed
+     */
+    public double getCompressionRatio() {
+        long output = compressedBatchesOutputBytes.get();
+        return output == 0 ? 0 : (double) compressedBatchesInputBytes.get() / output;
+    }
+
     public void setEventBodySerializer(EventBodySerializer eventBodySerializer) {
         serializer.setEventBodySerializer(eventBodySerializer);
     }
@@ -261,6 +1245,10 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
         serializer.setEventHeaderSerializer(eventHeaderSerializer);
     }
 
+    public void setMessageParsing(MessageParsing messageParsing) {
+        serializer.setMessageParsing(messageParsing);
+    }
+
     public static void putIfPresent(JsonObject collection, String tag, Object value) {
         if (value != null) {
             if (value instanceof String && ((String) value).length() == 0) {
@@ -276,8 +1264,9 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
     }
 
     private void flushHttpClient(long timeout) {
-        if (httpClient != null && timeout > 0) {
-            Dispatcher dispatcher = httpClient.dispatcher();
+        OkHttpClient client = httpClient;
+        if (client != null && timeout > 0) {
+            Dispatcher dispatcher = client.dispatcher();
 
             long start = System.currentTimeMillis();
 
@@ -295,9 +1284,14 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
     }
 
     private void stopHttpClient() {
-        if (httpClient != null) {
-            Dispatcher dispatcher = httpClient.dispatcher();
+        OkHttpClient client;
+        synchronized (httpClientLock) {
+            client = httpClient;
             httpClient = null;
+            httpClientStopped = true;
+        }
+        if (client != null) {
+            Dispatcher dispatcher = client.dispatcher();
 
             if (timeoutSettings.terminationTimeout > 0) {
                 // wait for queued messages in the dispatcher to be promoted to the executor service
@@ -329,12 +1323,19 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
         }
     }
 
-    private void startHttpClient() {
-        if (httpClient != null) {
-            // http client is already started
-            return;
+    /**
+     * @return the started http client, null once the sender is closed
+     */
+    private OkHttpClient startHttpClient() {
+        synchronized (httpClientLock) {
+            if (httpClient == null && !httpClientStopped) {
+                httpClient = buildHttpClient();
+            }
+            return httpClient;
         }
+    }
 
+    private OkHttpClient buildHttpClient() {
         OkHttpClient.Builder builder = httpSharedClient.newBuilder();
 
         // set timeouts
@@ -345,11 +1346,8 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
 
         Dispatcher dispatcher = new Dispatcher();
 
-        // limit max number of async requests in sequential mode
-        if (sendMode == SendMode.Sequential) {
-            dispatcher.setMaxRequests(1);
-        }
-        
+        applyParallelism(dispatcher);
+
         builder.dispatcher(dispatcher);
 
         if (disableCertificateValidation) {
@@ -387,57 +1385,410 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
             });
         }
 
-        httpClient = builder.build();
+        return builder.build();
     }
 
     private void postEventsAsync(final List<HttpEventCollectorEventInfo> events) {
-        this.middleware.postEvents(events,  this, new HttpEventCollectorMiddleware.IHttpSenderCallback() {
+        postEventsAsync(events, 0);
+    }
+
+    /**
+     * @param resends number of times the batch was sent again because it was not acknowledged in time
+     */
+    private void postEventsAsync(final List<HttpEventCollectorEventInfo> events, final int resends) {
+        inFlightBatches.incrementAndGet();
+        this.middleware.postEvents(events,  this, new EndpointCallback() {
+
+            @Override
+            public void completed(int statusCode, String reply) {
+                // a middleware outside of this package did not pass the endpoint on
+                completed(null, statusCode, reply);
+            }
+
+            @Override
+            public void completed(HttpEventCollectorEndpoints.Endpoint endpoint, int statusCode, String reply) {
+                HttpEventCollectorAckTracker tracker = ackTracker;
+                if (endpoint == null && endpoints.size() == 1) {
+                    endpoint = endpoints.get(0);
+                }
+                if (statusCode == 200 && tracker != null && endpoint != null) {
+                    Long ackId = parseAckId(reply);
+                    if (ackId != null) {
+                        // keep the events pending until the indexers acknowledge them
+                        HttpEventCollectorAckTracker.Batch replaced = tracker.add(endpoint, ackId, events, resends);
+                        inFlightBatches.decrementAndGet();
+                        batchDone(events);
+                        if (replaced != null) {
+                            // the channel started over, the outcome of the older batch is unknown
+                            postEventsAsync(replaced.events, replaced.resends);
+                        }
+                        scheduleAckPoll();
+                        wakeDispatch();
+                        return;
+                    }
+                }
+                // spool the batch before releasing its budget, the next batch is sent after it
+                if (statusCode == 200) {
+                    metrics.eventsSent(events.size());
+                } else {
+                    HttpEventCollectorErrorHandler.ServerErrorException error =
+                            new HttpEventCollectorErrorHandler.ServerErrorException(reply);
+                    if (isServerFailure(statusCode)) {
+                        spoolEvents(events, error);
+                    } else {
+                        metrics.eventsFailed(events.size());
+                        HttpEventCollectorErrorHandler.error(events, error);
+                    }
+                }
+                completePending(events);
+            }
+
+            @Override
+            public void failed(Exception exception) {
+                spoolEvents(events, exception);
+                completePending(events);
+            }
+        });
+    }
+
+    private static boolean isServerFailure(int statusCode) {
+        return statusCode >= 500;
+    }
+
+    /**
+     * @return ackId of an event collector reply, null when there is none
+     */
+    private static Long parseAckId(String reply) {
+        try {
+            JsonElement json = JsonParser.parseString(reply);
+            if (json.isJsonObject()) {
+                JsonElement ackId = json.getAsJsonObject().get("ackId");
+                if (ackId != null && ackId.isJsonPrimitive()) {
+                    return ackId.getAsLong();
+                }
+            }
+        } catch (JsonParseException | NumberFormatException e) {
+            // not an acknowledgeable reply
+        }
+        return null;
+    }
+
+    /**
+     * Run pollAcks on a worker of the shared scheduler after the poll interval, unless it is scheduled or
+     * running already. Batches that time out are sent again from there.
+     */
+    private void scheduleAckPoll() {
+        if (closed || !ackPollScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ackPollTask = HttpEventCollectorScheduler.scheduleWork(this::pollAcks, ackPollIntervalNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            ackPollScheduled.set(false);
+        }
+    }
+
+    /**
+     * A poll is finished, start the next one while batches wait for their acknowledgement.
+     */
+    private void ackPollDone(HttpEventCollectorAckTracker tracker) {
+        ackPollScheduled.set(false);
+        if (tracker.size() > 0) {
+            scheduleAckPoll();
+        }
+    }
+
+    /**
+     * Send again the batches that timed out, then query the acknowledgement of all the
+     * others in a single request per endpoint.
+     */
+    private void pollAcks() {
+        final HttpEventCollectorAckTracker tracker = ackTracker;
+        if (tracker == null || closed) {
+            ackPollScheduled.set(false);
+            return;
+        }
+        for (HttpEventCollectorAckTracker.Batch batch : tracker.expire(ackTimeoutNanos)) {
+            if (batch.resends < MaxAckResends) {
+                postEventsAsync(batch.events, batch.resends + 1);
+            } else {
+                releasePending(batch.events);
+                spoolEvents(batch.events, new TimeoutException(
+                        "Batch was not acknowledged after " + (MaxAckResends + 1) + " attempts"));
+                wakeDispatch();
+            }
+        }
+        Map<HttpEventCollectorEndpoints.Endpoint, List<Long>> ackIds = tracker.ackIds();
+        if (ackIds.isEmpty()) {
+            ackPollDone(tracker);
+            return;
+        }
+        OkHttpClient client = closed ? null : startHttpClient();
+        if (client == null) {
+            ackPollScheduled.set(false);
+            return;
+        }
+        final AtomicInteger queries = new AtomicInteger(ackIds.size());
+        for (Map.Entry<HttpEventCollectorEndpoints.Endpoint, List<Long>> entry : ackIds.entrySet()) {
+            queryAcks(client, tracker, entry.getKey(), entry.getValue(), () -> {
+                if (queries.decrementAndGet() == 0) {
+                    ackPollDone(tracker);
+                }
+            });
+        }
+    }
+
+    /**
+     * Ask an endpoint whether the batches with the ackIds are indexed
+     * @param done run once the query is answered or failed
+     */
+    private void queryAcks(OkHttpClient client, final HttpEventCollectorAckTracker tracker,
+                           final HttpEventCollectorEndpoints.Endpoint endpoint, List<Long> ackIds,
+                           final Runnable done) {
+        JsonArray acks = new JsonArray();
+        for (Long ackId : ackIds) {
+            acks.add(ackId);
+        }
+        JsonObject query = new JsonObject();
+        query.add("acks", acks);
+        Request request = new Request.Builder()
+                .url(endpoint.ackUrl)
+                .addHeader(AuthorizationHeaderTag, String.format(AuthorizationHeaderScheme, token))
+                .addHeader(ChannelHeaderTag, channel)
+                .post(RequestBody.create(query.toString(), MediaType.parse(AckHttpContentType)))
+                .build();
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onResponse(Call call, final Response response) {
+                String reply = null;
+                try (ResponseBody body = response.body()) {
+                    if (response.code() == 200 && body != null) {
+                        reply = body.string();
+                    }
+                } catch (IOException e) {
+                    // the next poll asks again
+                }
+                if (reply != null) {
+                    acknowledge(tracker, endpoint, reply);
+                }
+                done.run();
+            }
+
+            @Override
+            public void onFailure(Call call, IOException ex) {
+                // the batches are sent again once they time out
+                done.run();
+            }
+        });
+    }
+
+    /**
+     * Release the batches the ack endpoint reply reports as indexed,
+     * e.g. {"acks":{"0":true,"1":false}}.
+     */
+    private void acknowledge(HttpEventCollectorAckTracker tracker, HttpEventCollectorEndpoints.Endpoint endpoint,
+                             String reply) {
+        List<Long> acknowledged = new ArrayList<>();
+        try {
+            JsonElement json = JsonParser.parseString(reply);
+            if (!json.isJsonObject() || !json.getAsJsonObject().has("acks")) {
+                return;
+            }
+            for (Map.Entry<String, JsonElement> ack : json.getAsJsonObject().getAsJsonObject("acks").entrySet()) {
+                if (ack.getValue().getAsBoolean()) {
+                    acknowledged.add(Long.parseLong(ack.getKey()));
+                }
+            }
+        } catch (JsonParseException | IllegalStateException | ClassCastException
+                 | UnsupportedOperationException | NumberFormatException e) {
+            HttpEventCollectorErrorHandler.error(null, new HttpEventCollectorErrorHandler.ServerErrorException(reply));
+            return;
+        }
+        for (HttpEventCollectorAckTracker.Batch batch : tracker.acknowledge(endpoint, acknowledged)) {
+            releasePending(batch.events);
+            metrics.eventsSent(batch.events.size());
+        }
+        wakeDispatch();
+    }
+
+    /**
+     * Append a batch to the spool, or hand it to the error handler when there is no spool
+     * or the spool cannot take it.
+     * @param cause why the batch could not be delivered, null when it was not attempted
+     */
+    private void spoolEvents(List<HttpEventCollectorEventInfo> events, Exception cause) {
+        HttpEventCollectorSpool spool = this.spool;
+        if (spool != null) {
+            try {
+                spool.append(events);
+                scheduleReplay();
+                return;
+            } catch (IOException e) {
+                if (cause == null) {
+                    cause = e;
+                } else {
+                    cause.addSuppressed(e);
+                }
+            }
+        }
+        metrics.eventsFailed(events.size());
+        HttpEventCollectorErrorHandler.error(events, cause);
+    }
+
+    /**
+     * Run replaySpool on a worker of the shared scheduler after the replay delay, unless it is scheduled
+     * already, so that spooled batches are replayed without further traffic.
+     */
+    private void scheduleReplay() {
+        if (spool == null || closed || !replayScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            replayTask = HttpEventCollectorScheduler.scheduleWork(() -> {
+                replayScheduled.set(false);
+                replaySpool();
+            }, replayDelayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            replayScheduled.set(false);
+        }
+    }
+
+    /**
+     * A replay did not go through, try again once the replay delay has doubled, up to a minute.
+     * The delay starts over once a replayed batch is delivered.
+     */
+    private void replayFailed() {
+        replayDelayNanos = Math.min(replayDelayNanos * 2, MaxSpoolReplayDelayNanos);
+        replayingSpool.set(false);
+        scheduleReplay();
+    }
+
+    /**
+     * Send the oldest spooled batch, and the next one once it is delivered. Only one
+     * replayed batch is in flight at a time, a failed one stays in the spool and is
+     * retried after a backoff, or by the next flush.
+     */
+    private void replaySpool() {
+        final HttpEventCollectorSpool spool = this.spool;
+        if (spool == null || !replayingSpool.compareAndSet(false, true)) {
+            return;
+        }
+        HttpEventCollectorSpool.Record next;
+        while (true) {
+            try {
+                next = spool.peek();
+                break;
+            } catch (HttpEventCollectorSpool.CorruptRecordException e) {
+                // the corrupt bytes are skipped, go on with the batches after them
+                HttpEventCollectorErrorHandler.error(null, e);
+            } catch (IOException e) {
+                HttpEventCollectorErrorHandler.error(null, e);
+                replayFailed();
+                return;
+            }
+        }
+        final HttpEventCollectorSpool.Record record = next;
+        if (record == null) {
+            replayingSpool.set(false);
+            return;
+        }
+        this.middleware.postEvents(record.getEvents(), this, new HttpEventCollectorMiddleware.IHttpSenderCallback() {
 
             @Override
             public void completed(int statusCode, String reply) {
                 if (statusCode != 200) {
+                    if (isServerFailure(statusCode)) {
+                        replayFailed();
+                        return;
+                    }
+                    // the server refuses the batch, replaying it again would not help
+                    metrics.eventsFailed(record.getEvents().size());
                     HttpEventCollectorErrorHandler.error(
-                            events,
+                            record.getEvents(),
                             new HttpEventCollectorErrorHandler.ServerErrorException(reply));
+                } else {
+                    metrics.eventsSent(record.getEvents().size());
+                }
+                try {
+                    spool.acknowledge(record);
+                } catch (IOException e) {
+                    HttpEventCollectorErrorHandler.error(null, e);
+                    replayFailed();
+                    return;
                 }
+                replayDelayNanos = MinSpoolReplayDelayNanos;
+                replayingSpool.set(false);
+                replaySpool();
             }
 
             @Override
             public void failed(Exception exception) {
-                HttpEventCollectorErrorHandler.error(events, exception);
+                replayFailed();
             }
         });
     }
 
     public void postEvents(final List<HttpEventCollectorEventInfo> events,
                            final HttpEventCollectorMiddleware.IHttpSenderCallback callback) {
-        startHttpClient(); // make sure http client is started
+        OkHttpClient client = startHttpClient(); // make sure http client is started
+        if (client == null) {
+            callback.failed(new IOException("Sender is closed"));
+            return;
+        }
         // create http request
+        final HttpEventCollectorEndpoints.Endpoint endpoint = endpoints.start();
         Request.Builder requestBldr = new Request.Builder()
-                .url(url)
+                .url(endpoint.url)
                 .addHeader(AuthorizationHeaderTag, String.format(AuthorizationHeaderScheme, token));
-        if ("Raw".equalsIgnoreCase(type)) {
-            String lineSeparatedEvents = events.stream()
-                    .map(HttpEventCollectorEventInfo::getMessage)
-                    .collect(Collectors.joining(System.lineSeparator()));
-            requestBldr.post(RequestBody.create(MediaType.parse(PlainTextHttpContentType), lineSeparatedEvents));
-        } else {
-            // convert events list into a string
-            StringBuilder eventsBatchString = new StringBuilder();
-            for (HttpEventCollectorEventInfo eventInfo : events) {
-                eventsBatchString.append(serializer.serialize(eventInfo));
+        if (ackTracker != null) {
+            requestBldr.addHeader(ChannelHeaderTag, channel);
+        }
+        // events are encoded once and streamed into the connection by the request body
+        for (HttpEventCollectorEventInfo eventInfo : events) {
+            if (eventInfo.getEncoded() == null) {
+                // the event did not come through send, e.g. it was built by a middleware
+                encode(eventInfo);
             }
-            requestBldr.post(RequestBody.create(MediaType.parse(JsonHttpContentType), eventsBatchString.toString()));
+        }
+        HttpEventCollectorBatchBody body;
+        if (isRaw()) {
+            body = HttpEventCollectorBatchBody.raw(MediaType.parse(PlainTextHttpContentType), events);
+        } else {
+            body = HttpEventCollectorBatchBody.json(MediaType.parse(JsonHttpContentType), events);
+        }
+        if (compressionEnabled && body.contentLength() >= compressionMinSize) {
+            HttpEventCollectorBatchBody.CompressedBody compressed = body.gzip(compressionLevel);
+            compressedBatchesInputBytes.addAndGet(body.contentLength());
+            compressedBatchesOutputBytes.addAndGet(compressed.contentLength());
+            metrics.requestSent(body.contentLength(), compressed.contentLength());
+            requestBldr.addHeader(ContentEncodingHeaderTag, GzipContentEncoding);
+            requestBldr.post(compressed);
+        } else {
+            metrics.requestSent(body.contentLength(), body.contentLength());
+            requestBldr.post(body);
         }
 
-        httpClient.newCall(requestBldr.build()).enqueue(new Callback() {
+        final long start = System.nanoTime();
+        client.newCall(requestBldr.build()).enqueue(new Callback() {
             @Override
             public void onResponse(Call call, final Response response) {
                 String reply = "";
                 int httpStatusCode = response.code();
-                // read reply only in case of a server error
+                long latency = System.nanoTime() - start;
+                metrics.requestCompleted(latency);
+                if (httpStatusCode == ServiceUnavailable) {
+                    endpointFailed(endpoint);
+                } else {
+                    endpoints.succeeded(endpoint, latency);
+                }
+                HttpEventCollectorBatchController controller = batchController;
+                if (controller != null) {
+                    // other batches waiting to be sent call for larger batches
+                    controller.completed(latency, httpStatusCode, !outbox.isEmpty() || inFlightBatches.get() > 1);
+                }
+                // read reply only in case of a server error, or for the ackId of an accepted batch
                 try (ResponseBody body = response.body()) {
-                    if (httpStatusCode != 200 && body != null) {
+                    if ((httpStatusCode != 200 || ackTracker != null) && body != null) {
                         try {
                             reply = body.string();
                         } catch (IOException e) {
@@ -445,16 +1796,78 @@ public class HttpEventCollectorSender extends TimerTask implements HttpEventColl
                         }
                     }
                 }
-                callback.completed(httpStatusCode, reply);
+                if (callback instanceof EndpointCallback) {
+                    ((EndpointCallback) callback).completed(endpoint, httpStatusCode, reply);
+                } else {
+                    callback.completed(httpStatusCode, reply);
+                }
             }
 
             @Override
             public void onFailure(Call call, IOException ex) {
+                endpointFailed(endpoint);
+                HttpEventCollectorBatchController controller = batchController;
+                if (controller != null) {
+                    controller.failed();
+                }
                 callback.failed(ex);
             }
         });
     }
 
+    /**
+     * Eject an endpoint that failed a request and schedule its health probe.
+     */
+    private void endpointFailed(HttpEventCollectorEndpoints.Endpoint endpoint) {
+        scheduleProbe(endpoint, endpoints.failed(endpoint));
+    }
+
+    private void scheduleProbe(final HttpEventCollectorEndpoints.Endpoint endpoint, long delayNanos) {
+        if (delayNanos <= 0 || closed) {
+            return;
+        }
+        try {
+            HttpEventCollectorScheduler.get().schedule(() -> probe(endpoint), delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // the endpoint stays ejected, it is used again once all endpoints are
+        }
+    }
+
+    /**
+     * Ask the health endpoint of an ejected endpoint whether it can take batches again.
+     */
+    private void probe(final HttpEventCollectorEndpoints.Endpoint endpoint) {
+        OkHttpClient client = closed ? null : startHttpClient();
+        if (client == null) {
+            return;
+        }
+        if (endpoint.healthUrl == null) {
+            endpoints.probeSucceeded(endpoint);
+            return;
+        }
+        Request request = new Request.Builder()
+                .url(endpoint.healthUrl)
+                .addHeader(AuthorizationHeaderTag, String.format(AuthorizationHeaderScheme, token))
+                .get()
+                .build();
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onResponse(Call call, final Response response) {
+                response.close();
+                if (response.code() == 200) {
+                    endpoints.probeSucceeded(endpoint);
+                } else {
+                    scheduleProbe(endpoint, endpoints.probeFailed(endpoint));
+                }
+            }
+
+            @Override
+            public void onFailure(Call call, IOException ex) {
+                scheduleProbe(endpoint, endpoints.probeFailed(endpoint));
+            }
+        });
+    }
+
     public static class TimeoutSettings {
         public static final long DEFAULT_CONNECT_TIMEOUT = 3000;
         public static final long DEFAULT_WRITE_TIMEOUT = 10000; // 0 means no timeout
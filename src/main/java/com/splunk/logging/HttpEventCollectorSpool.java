@@ -0,0 +1,471 @@
+package com.splunk.logging;
+
+/**
+ * @copyright
+ *
+ * Copyright 2013-2015 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only disk spool of event batches that could not be delivered.
+ *
+ * Batches are appended as records to segment files in the spool directory and read back
+ * oldest first. A record is
+ * [payload length: int][payload crc32: int][state: byte][payload], the payload being
+ * [event count: int] followed by [time millis: long][length: int][encoded event] for
+ * every event. Once a batch is delivered its state byte is overwritten in place, so a
+ * restarted sender does not replay it again, and a segment is deleted as soon as all of
+ * its records are delivered. On open, a record torn by a crash is cut off the segment.
+ * A record found corrupt while replaying is skipped up to the next valid record, and
+ * reported by peek.
+ *
+ * All methods are synchronized, the sender appends from the OkHttp callback threads and
+ * replays from whichever thread flushes.
+ */
+final class HttpEventCollectorSpool implements Closeable {
+    /**
+     * When appended records are forced to the storage device.
+     */
+    enum SyncPolicy {
+        Always,   // after every record, nothing acknowledged by append is lost on a crash
+        Rollover, // when a segment is completed and on close
+        Never     // left to the operating system
+    }
+
+    private static final Pattern SegmentFileName = Pattern.compile("(\\d{20})\\.spool");
+    private static final int RecordHeaderSize = 9;
+    private static final int StateOffset = 8;
+    private static final byte Pending = 0;
+    private static final byte Delivered = 1;
+
+    private final File directory;
+    private final long maxBytes;
+    private final long segmentSize;
+    private final SyncPolicy syncPolicy;
+    private final Deque<Segment> segments = new ArrayDeque<>(); // oldest first
+    private Segment writeSegment = null; // last segment, null until something is appended
+    private long readPosition = 0; // offset of the next record to replay in the first segment
+    private long totalBytes = 0;
+    private long nextSequence = 0;
+    private long droppedBytes = 0;
+    private long droppedRecords = 0;
+    private boolean closed = false;
+
+    /**
+     * Thrown by peek when it skipped corrupt bytes, the next peek returns the following valid batch
+     */
+    @SuppressWarnings("serial")
+    static final class CorruptRecordException extends IOException {
+        private final long droppedBytes;
+
+        CorruptRecordException(File file, long position, long droppedBytes) {
+            super("Dropped " + droppedBytes + " corrupt bytes at offset " + position + " of spool segment " + file);
+            this.droppedBytes = droppedBytes;
+        }
+
+        /**
+         * @return bytes skipped, they held at least one batch
+         */
+        long getDroppedBytes() {
+            return droppedBytes;
+        }
+    }
+
+    /**
+     * A spooled batch
+     */
+    static final class Record {
+        private final Segment segment;
+        private final long position;
+        private final long length;
+        private final List<HttpEventCollectorEventInfo> events;
+
+        private Record(Segment segment, long position, long length, List<HttpEventCollectorEventInfo> events) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.events = events;
+        }
+
+        /**
+         * @return the events of the batch, they carry their encoded form and time only
+         */
+        List<HttpEventCollectorEventInfo> getEvents() {
+            return events;
+        }
+    }
+
+    private static final class Segment {
+        final long sequence;
+        final File file;
+        final FileChannel channel;
+        long size;
+
+        Segment(long sequence, File file) throws IOException {
+            this.sequence = sequence;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    /**
+     * Open a spool, recovering the batches a previous sender left in the directory
+     * @param directory spool directory, created if missing
+     * @param maxBytes disk quota of all segments
+     * @param segmentSize size after which a new segment file is started
+     * @param syncPolicy when appends are forced to disk
+     * @throws IOException when the directory cannot be created or read
+     */
+    HttpEventCollectorSpool(File directory, long maxBytes, long segmentSize, SyncPolicy syncPolicy) throws IOException {
+        if (maxBytes <= 0 || segmentSize <= 0) {
+            throw new IllegalArgumentException("Spool sizes must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + directory);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentSize = segmentSize;
+        this.syncPolicy = syncPolicy;
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list spool directory " + directory);
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            Matcher matcher = SegmentFileName.matcher(file.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+            Segment segment = new Segment(Long.parseLong(matcher.group(1)), file);
+            nextSequence = segment.sequence + 1;
+            boolean pending = false;
+            long position = 0;
+            while (position < segment.size) {
+                long length = validRecordLength(segment, position);
+                if (length == 0) {
+                    long next = nextValidRecord(segment, position);
+                    if (next == segment.size) {
+                        break;
+                    }
+                    // corrupt bytes followed by valid records are not a torn write, peek skips and reports them
+                    pending = true;
+                    position = next;
+                    continue;
+                }
+                if (readState(segment, position) == Pending) {
+                    pending = true;
+                }
+                position += length;
+            }
+            if (position < segment.size) {
+                // a crash tore the last record, drop it
+                segment.channel.truncate(position);
+                segment.size = position;
+            }
+            if (pending) {
+                segments.addLast(segment);
+                totalBytes += segment.size;
+            } else {
+                delete(segment);
+            }
+        }
+    }
+
+    /**
+     * @return length of the record at the position, 0 when it is incomplete or corrupt
+     */
+    private static long validRecordLength(Segment segment, long position) throws IOException {
+        if (position + RecordHeaderSize > segment.size) {
+            return 0;
+        }
+        ByteBuffer header = readFully(segment, position, RecordHeaderSize);
+        int payloadLength = header.getInt();
+        int crc = header.getInt();
+        if (payloadLength < 4 || position + RecordHeaderSize + payloadLength > segment.size) {
+            return 0;
+        }
+        ByteBuffer payload = readFully(segment, position + RecordHeaderSize, payloadLength);
+        if ((int) crc32(payload.array(), 0, payloadLength) != crc) {
+            return 0;
+        }
+        return RecordHeaderSize + payloadLength;
+    }
+
+    /**
+     * @return position of the first valid record after the position, the segment size when there is none
+     */
+    private static long nextValidRecord(Segment segment, long position) throws IOException {
+        long remaining = segment.size - position;
+        if (remaining > Integer.MAX_VALUE) {
+            return segment.size;
+        }
+        // corruption is rare, scan the rest of the segment in memory rather than with a read per offset
+        ByteBuffer bytes = readFully(segment, position, (int) remaining);
+        for (int offset = 1; offset + RecordHeaderSize <= bytes.limit(); offset++) {
+            int payloadLength = bytes.getInt(offset);
+            if (payloadLength < 4 || payloadLength > bytes.limit() - offset - RecordHeaderSize) {
+                continue;
+            }
+            int crc = bytes.getInt(offset + 4);
+            if ((int) crc32(bytes.array(), offset + RecordHeaderSize, payloadLength) == crc) {
+                return position + offset;
+            }
+        }
+        return segment.size;
+    }
+
+    /**
+     * Append a batch
+     * @param events encoded events
+     * @throws IOException when the batch does not fit the disk quota or cannot be written
+     */
+    synchronized void append(List<HttpEventCollectorEventInfo> events) throws IOException {
+        if (closed) {
+            throw new IOException("Spool is closed");
+        }
+        int payloadLength = 4;
+        for (HttpEventCollectorEventInfo event : events) {
+            payloadLength += 12 + event.getEncoded().length;
+        }
+        int recordLength = RecordHeaderSize + payloadLength;
+        if (totalBytes + recordLength > maxBytes) {
+            throw new IOException("Spool quota of " + maxBytes + " bytes exceeded");
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.position(RecordHeaderSize);
+        record.putInt(events.size());
+        for (HttpEventCollectorEventInfo event : events) {
+            byte[] encoded = event.getEncoded();
+            record.putLong(event.getTimeMillis());
+            record.putInt(encoded.length);
+            record.put(encoded);
+        }
+        byte[] array = record.array();
+        int crc = (int) crc32(array, RecordHeaderSize, payloadLength);
+        record.clear();
+        record.putInt(payloadLength).putInt(crc).put(Pending);
+        record.clear();
+
+        Segment segment = writeSegment;
+        if (segment == null || (segment.size > 0 && segment.size + recordLength > segmentSize)) {
+            segment = roll();
+        }
+        long position = segment.size;
+        while (record.hasRemaining()) {
+            segment.channel.write(record, position + record.position());
+        }
+        segment.size += recordLength;
+        totalBytes += recordLength;
+        if (syncPolicy == SyncPolicy.Always) {
+            segment.channel.force(false);
+        }
+    }
+
+    private Segment roll() throws IOException {
+        if (writeSegment != null && syncPolicy == SyncPolicy.Rollover) {
+            writeSegment.channel.force(false);
+        }
+        long sequence = nextSequence++;
+        Segment segment = new Segment(sequence, new File(directory, String.format("%020d.spool", sequence)));
+        segments.addLast(segment);
+        writeSegment = segment;
+        return segment;
+    }
+
+    /**
+     * Read the oldest batch that has not been delivered, the same batch is returned until it is acknowledged
+     * @return the batch or null when the spool is empty
+     * @throws CorruptRecordException when corrupt bytes were skipped, peek again for the next batch
+     * @throws IOException when the segment cannot be read
+     */
+    synchronized Record peek() throws IOException {
+        while (!closed) {
+            Segment segment = segments.peekFirst();
+            if (segment == null) {
+                return null;
+            }
+            if (readPosition >= segment.size) {
+                removeFirst();
+                continue;
+            }
+            long length = validRecordLength(segment, readPosition);
+            if (length == 0) {
+                long position = readPosition;
+                readPosition = nextValidRecord(segment, position);
+                droppedBytes += readPosition - position;
+                droppedRecords++;
+                throw new CorruptRecordException(segment.file, position, readPosition - position);
+            }
+            if (readState(segment, readPosition) == Delivered) {
+                readPosition += length;
+                continue;
+            }
+            ByteBuffer payload = readFully(segment, readPosition + RecordHeaderSize, (int) length - RecordHeaderSize);
+            int count = payload.getInt();
+            List<HttpEventCollectorEventInfo> events = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long timeMillis = payload.getLong();
+                byte[] encoded = new byte[payload.getInt()];
+                payload.get(encoded);
+                HttpEventCollectorEventInfo event = new HttpEventCollectorEventInfo(
+                        timeMillis, null, new String(encoded, StandardCharsets.UTF_8), null, null, null, null, null);
+                event.setEncoded(encoded);
+                events.add(event);
+            }
+            return new Record(segment, readPosition, length, events);
+        }
+        return null;
+    }
+
+    /**
+     * Mark a batch returned by peek as delivered
+     * @param record spooled batch
+     * @throws IOException when the record state cannot be written
+     */
+    synchronized void acknowledge(Record record) throws IOException {
+        if (closed || record.segment != segments.peekFirst() || record.position != readPosition) {
+            return;
+        }
+        ByteBuffer state = ByteBuffer.wrap(new byte[]{Delivered});
+        record.segment.channel.write(state, record.position + StateOffset);
+        if (syncPolicy == SyncPolicy.Always) {
+            record.segment.channel.force(false);
+        }
+        readPosition += record.length;
+        if (readPosition >= record.segment.size) {
+            removeFirst();
+        }
+    }
+
+    /**
+     * @return true when all spooled batches have been delivered
+     */
+    synchronized boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * @return bytes taken on disk by batches that have not been delivered and their segments
+     */
+    synchronized long size() {
+        return totalBytes;
+    }
+
+    /**
+     * @return bytes skipped by peek because they were corrupt
+     */
+    synchronized long droppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * @return number of corrupt runs of bytes skipped by peek, each one held at least one batch
+     */
+    synchronized long droppedRecords() {
+        return droppedRecords;
+    }
+
+    /**
+     * @return number of segment files
+     */
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    private void removeFirst() throws IOException {
+        Segment segment = segments.removeFirst();
+        if (segment == writeSegment) {
+            writeSegment = null;
+        }
+        totalBytes -= segment.size;
+        readPosition = 0;
+        delete(segment);
+    }
+
+    private static void delete(Segment segment) throws IOException {
+        segment.channel.close();
+        if (!segment.file.delete() && segment.file.exists()) {
+            throw new IOException("Cannot delete spool segment " + segment.file);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        IOException failure = null;
+        for (Segment segment : segments) {
+            try {
+                if (segment == writeSegment && syncPolicy != SyncPolicy.Never) {
+                    segment.channel.force(false);
+                }
+                segment.channel.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        segments.clear();
+        writeSegment = null;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static byte readState(Segment segment, long position) throws IOException {
+        return readFully(segment, position + StateOffset, 1).get();
+    }
+
+    private static ByteBuffer readFully(Segment segment, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (segment.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of spool segment " + segment.file);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static long crc32(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+}
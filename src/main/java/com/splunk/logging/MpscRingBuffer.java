@@ -0,0 +1,118 @@
+package com.splunk.logging;
+
+/**
+ * @copyright
+ *
+ * Copyright 2013-2015 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free multi-producer single-consumer ring buffer.
+ *
+ * Every slot carries a sequence number. A producer claims a slot by advancing the
+ * shared tail with a CAS and publishes the element by bumping the slot sequence, so
+ * producers never block each other or the consumer. Only one thread at a time may
+ * call the consumer methods (poll, isEmpty); HttpEventCollectorSender guarantees that
+ * by polling under its own monitor.
+ */
+final class MpscRingBuffer<E> {
+    private static final int MaxCapacity = 1 << 30;
+
+    private final int mask;
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0; // written by the consumer only
+
+    /**
+     * Create a ring buffer
+     * @param requestedCapacity minimum number of slots, rounded up to a power of two
+     */
+    MpscRingBuffer(int requestedCapacity) {
+        if (requestedCapacity <= 0) {
+            throw new IllegalArgumentException("Ring buffer capacity must be positive: " + requestedCapacity);
+        }
+        int capacity = 1;
+        while (capacity < requestedCapacity && capacity < MaxCapacity) {
+            capacity <<= 1;
+        }
+        this.mask = capacity - 1;
+        this.elements = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return number of slots in the ring
+     */
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Append an element, safe to call from any number of threads.
+     * @param element element to publish
+     * @return false if the ring is full
+     */
+    boolean offer(E element) {
+        for (;;) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                // the consumer has not released this slot yet
+                return false;
+            }
+            // another producer claimed the slot, retry with the new tail
+        }
+    }
+
+    /**
+     * Remove the oldest published element. Consumer side only.
+     * @return the element or null when nothing is published
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        E element = (E) elements[index];
+        elements[index] = null;
+        sequences.set(index, position + mask + 1);
+        head = position + 1;
+        return element;
+    }
+
+    /**
+     * @return true when there is no published element to poll. Consumer side only.
+     */
+    boolean isEmpty() {
+        long position = head;
+        return sequences.get((int) position & mask) != position + 1;
+    }
+}
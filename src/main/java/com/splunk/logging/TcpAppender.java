@@ -20,18 +20,13 @@ import ch.qos.logback.core.AppenderBase;
 import ch.qos.logback.core.Layout;
 import ch.qos.logback.core.encoder.Encoder;
 import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
-import ch.qos.logback.core.net.DefaultSocketConnector;
-import ch.qos.logback.core.net.SocketConnector;
-import ch.qos.logback.core.util.CloseUtil;
 import ch.qos.logback.core.util.Duration;
 
-import javax.net.SocketFactory;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
-import java.net.*;
-import java.util.concurrent.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 
 /**
  * Logback Appender which writes its events to a TCP port.
@@ -39,17 +34,23 @@ import java.util.concurrent.*;
  * This class is based on the logic of Logback's SocketAppender, but does not try to serialize Java
  * objects for deserialization and logging elsewhere.
  */
-public class TcpAppender extends AppenderBase<ILoggingEvent> implements Runnable, SocketConnector.ExceptionHandler {
+public class TcpAppender extends AppenderBase<ILoggingEvent> {
     private static final int DEFAULT_RECONNECTION_DELAY = 30000; // in ms
     private static final int DEFAULT_QUEUE_SIZE = 0;
     private static final int DEFAULT_ACCEPT_CONNECTION_DELAY = 5000;
 
     /**
      * Default timeout for how long to wait when inserting an event into
-     * the BlockingQueue.
+     * the backlog.
      */
     private static final int DEFAULT_EVENT_DELAY_TIMEOUT = 100;
 
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+    private static final int DEFAULT_LINGER_TIME = 0;
+    private static final int DEFAULT_REPLAY_WINDOW = 10000;
+    private static final long DEFAULT_OVERFLOW_SIZE = 16 * 1024 * 1024;
+
     private String host;
     private int port;
     private InetAddress address;
@@ -58,143 +59,43 @@ public class TcpAppender extends AppenderBase<ILoggingEvent> implements Runnable
      * Layout is replaced with Encoder because Logback has deprecated the use of Layout directly to format message.
      */
     private Encoder<ILoggingEvent> encoder;
-    private ExecutorService executor;
-    private Future<Socket> connectorTask;
 
     private int reconnectionDelay = DEFAULT_RECONNECTION_DELAY;
     private int queueSize = DEFAULT_QUEUE_SIZE;
     private int acceptConnectionTimeout = DEFAULT_ACCEPT_CONNECTION_DELAY;
     private Duration eventDelayLimit = new Duration(DEFAULT_EVENT_DELAY_TIMEOUT);
-
-    private BlockingQueue<ILoggingEvent> queue;
-
-    // The socket will be modified by the another thread (in SocketConnector) which
-    // handles reconnection of dropped connections.
-    private volatile Socket socket;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private Duration lingerTime = new Duration(DEFAULT_LINGER_TIME);
+    private int replayBufferSize;
+    private Duration replayWindow = new Duration(DEFAULT_REPLAY_WINDOW);
+    private String overflow;
+    private long overflowSize = DEFAULT_OVERFLOW_SIZE;
+    private String overflowDir;
+
+    private TcpSelector selector;
+    private TcpChannelWriter writer;
+    private boolean dropReported;
 
     // The appender is created by Logback calling a superclass constructor with no arguments.
     // Then it calls setters (and the setters defined by the class define what arguments are
     // understood. Once all the fields have been set, Logback calls start(), When shutting down,
     // Logback calls stop().
     //
-    // start() queues the appender as a Runnable, so run() eventually gets invoked to do the
-    // actual work. run() opens a port using Logback utilities that reconnect when a connection
-    // is lost, and then block on a queue of events, writing them to TCP as soon as they
-    // become available.
+    // start() hands a non-blocking connection to the selector thread shared by all the TCP
+    // appenders of the process, see TcpSelector. The connection is opened, and opened again
+    // after reconnectionDelay when it breaks, without blocking any thread.
     //
-    // The append method, which Logback logging calls invoke, pushes events to that queue and nothing else.
-
-    @Override
-    public void connectionFailed(SocketConnector socketConnector, Exception e) {
-        if (e instanceof InterruptedException) {
-            addInfo("connector interrupted");
-        } else if (e instanceof ConnectException) {
-            addInfo(host + ":" + port + " connection refused");
-        } else {
-            addInfo(host + ":" + port + " " + e);
-        }
-    }
-
-    @Override
-    public void run() {
-        try {
-            while (!Thread.currentThread().isInterrupted()) {
-                SocketConnector connector = initSocketConnector();
-                connector.setExceptionHandler(this);
-                connector.setSocketFactory(SocketFactory.getDefault());
-
-                try {
-                    connectorTask = getContext().getExecutorService().submit(connector);
-                } catch (RejectedExecutionException e) {
-                    connectorTask = null;
-                    break;
-                }
-
-                try {
-                    socket = connectorTask.get();
-                    connectorTask = null;
-                } catch (ExecutionException e) {
-                    socket = null;
-                    break;
-                }
-
-                try {
-                    socket.setSoTimeout(acceptConnectionTimeout);
-                    OutputStreamWriter writer = new OutputStreamWriter(socket.getOutputStream());
-                    socket.setSoTimeout(0);
-
-                    addInfo(host + ":" + port + " connection established");
-
-                    while (true) {
-                        ILoggingEvent event = queue.take();
-                        String formatted = new String(encoder.encode(event));
-                        writer.write(formatted);
-                        writer.flush();
-                    }
-                } catch (SocketException e) {
-                    addInfo(host + ":" + port + " connection failed: " + e);
-                } catch (IOException e) {
-                    CloseUtil.closeQuietly(socket);
-                    socket = null;
-                    addInfo(host + ":" + port + " connection closed");
-                }
-            }
-        } catch (InterruptedException ex) {
-            // Exiting.
-        }
-        addInfo("exiting");
-    }
-
-    private SocketConnector initSocketConnector() {
-
-        DefaultSocketConnector connector = null;
-
-        try {
-            connector = getDefaultSocketConnectorConstr().newInstance(address, port, 0, reconnectionDelay);
-        }
-
-        catch (InvocationTargetException e) {
-            throwRuntimeException(e);
-        }
-        catch (InstantiationException e) {
-            throwRuntimeException(e);
-        }
-        catch (IllegalAccessException e) {
-            throwRuntimeException(e);
-        }
-
-        return connector;
-    }
-
-    private void throwRuntimeException(Exception e) throws RuntimeException {
-        throw new RuntimeException("Could not invoke DefaultSocketConnector constructor, check your Logback version.", e);
-    }
-
-    private Constructor<DefaultSocketConnector> getDefaultSocketConnectorConstr() {
-
-        try {
-            return getLogback_1_1_version();
-        }
-        catch (NoSuchMethodException ex) {
-            // do nothing - just go on
-        }
-
-        try {
-            return getLogback_1_0_version();
-        }
-        catch (NoSuchMethodException e) {
-            throw new RuntimeException("No known DefaultSocketConnector implementation available. Check your Logback version.", e);
-        }
-
-    }
-
-    private Constructor<DefaultSocketConnector> getLogback_1_0_version() throws NoSuchMethodException {
-        return DefaultSocketConnector.class.getConstructor(InetAddress.class, Integer.TYPE, Integer.TYPE, Integer.TYPE);
-    }
-
-    private Constructor<DefaultSocketConnector> getLogback_1_1_version() throws NoSuchMethodException {
-        return DefaultSocketConnector.class.getConstructor(InetAddress.class, Integer.TYPE, Long.TYPE, Long.TYPE);
-    }
+    // The append method, which Logback logging calls invoke, encodes the event and copies
+    // its bytes into the buffers of the connection, see TcpChannelWriter. They are written
+    // once batchSize events are buffered or lingerTime has elapsed. At most queueSize
+    // events, or batchSize when queueSize is 0, wait to be written; append waits up to
+    // eventDelayLimit for room and drops the event after that.
+    //
+    // To survive an outage without losing events, replayBufferSize keeps the buffers written
+    // within replayWindow to send them again on the next connection, and overflow (memory or
+    // disk) keeps the events that do not fit in the backlog instead of waiting and dropping
+    // them. Dropped events are counted, see getDroppedEvents, rather than reported one by one.
 
     @Override
     public void start() {
@@ -224,6 +125,27 @@ public class TcpAppender extends AppenderBase<ILoggingEvent> implements Runnable
             addError("Queue size must be non-negative");
         }
 
+        if (batchSize <= 0) {
+            errorPresent = true;
+            addError("Batch size must be positive");
+        }
+
+        if (bufferSize <= 0) {
+            errorPresent = true;
+            addError("Buffer size must be positive");
+        }
+
+        if (replayBufferSize < 0) {
+            errorPresent = true;
+            addError("Replay buffer size must be non-negative");
+        }
+
+        if (overflow != null && !overflow.isEmpty() && !"none".equalsIgnoreCase(overflow)
+                && !"memory".equalsIgnoreCase(overflow) && !"disk".equalsIgnoreCase(overflow)) {
+            errorPresent = true;
+            addError("Unknown overflow store: " + overflow);
+        }
+
         if (this.encoder == null) {
             addError("No encoder set for the appender named [" + name + "].");
             errorPresent = true;
@@ -238,27 +160,35 @@ public class TcpAppender extends AppenderBase<ILoggingEvent> implements Runnable
             }
         }
 
-
-        try {
-            address = InetAddress.getByName(host);
-        } catch (UnknownHostException e) {
-            addError("Unknown host: " + host);
-            errorPresent = true;
+        // Dispatch this instance of the appender.
+        if (!errorPresent) {
+            try {
+                selector = TcpSelector.acquire();
+            } catch (IOException e) {
+                addError("Cannot open a selector for appender " + name, e);
+                errorPresent = true;
+            }
         }
 
-        // Dispatch this instance of the appender.
         if (!errorPresent) {
-            queue = queueSize <= 0 ? new SynchronousQueue<ILoggingEvent>() : new ArrayBlockingQueue<ILoggingEvent>(queueSize);
-            ThreadFactory factory = new ThreadFactory() {
-                @Override
-                public Thread newThread(Runnable r) {
-                    Thread t = new Thread(r, "splunk-tcp-appender");
-                    t.setDaemon(true);
-                    return t;
+            writer = new TcpChannelWriter(selector, new InetSocketAddress(address, port), this,
+                    reconnectionDelay, acceptConnectionTimeout,
+                    queueSize > 0 ? queueSize : batchSize, batchSize, bufferSize, lingerTime.getMilliseconds());
+            try {
+                if (replayBufferSize > 0) {
+                    writer.enableReplay(replayBufferSize, replayWindow.getMilliseconds());
+                }
+                if ("memory".equalsIgnoreCase(overflow)) {
+                    writer.setOverflowStore(new TcpMemoryOverflowStore(overflowSize));
+                } else if ("disk".equalsIgnoreCase(overflow)) {
+                    File directory = new File(overflowDir != null ? overflowDir : System.getProperty("java.io.tmpdir"));
+                    writer.setOverflowStore(new TcpDiskOverflowStore(directory, overflowSize));
                 }
-            };
-            executor = Executors.newSingleThreadExecutor(factory);
-            executor.execute(this);
+            } catch (IOException | IllegalArgumentException e) {
+                addError("Cannot set up the overflow store of appender " + name, e);
+            }
+            dropReported = false;
+            writer.start();
         }
 
         super.start();
@@ -269,38 +199,73 @@ public class TcpAppender extends AppenderBase<ILoggingEvent> implements Runnable
         if (!started)
             return;
 
-        CloseUtil.closeQuietly(socket);
-        if (executor != null) {
-            executor.shutdownNow();
+        if (writer != null) {
+            writer.close();
+            writer = null;
         }
-        if (connectorTask != null) {
-            connectorTask.cancel(true);
+        if (selector != null) {
+            selector.release();
+            selector = null;
         }
         super.stop();
     }
 
     @Override
     protected void append(ILoggingEvent event) {
+        if (event == null || !started || writer == null) return;
+
         // Get runtime information now, rather than when
         // the event is actually logged, so that it has
         // the right thread and environment information.
         event.prepareForDeferredProcessing();
         event.getCallerData();
 
-        if (event == null || !started) return;
-
-        // Append to the queue to be logged.
+        // Append to the backlog to be written.
         try {
-            final boolean inserted = queue.offer(event, eventDelayLimit.getMilliseconds(), TimeUnit.MILLISECONDS);
-            if (!inserted) {
-                addInfo("Dropping event due to timeout limit of [" + eventDelayLimit +
-                    "] milliseconds being exceeded");
+            final boolean inserted = writer.offer(encoder.encode(event), eventDelayLimit.getMilliseconds());
+            if (!inserted && !dropReported) {
+                // the next ones are only counted
+                dropReported = true;
+                addWarn("Dropping events due to timeout limit of [" + eventDelayLimit +
+                    "] milliseconds being exceeded, see getDroppedEvents");
             }
         } catch (InterruptedException e) {
             addError("Interrupted while appending event to TcpAppender", e);
         }
     }
 
+    /**
+     * @return events accepted but not written to the connection yet
+     */
+    public int getPendingEvents() {
+        TcpChannelWriter writer = this.writer;
+        return writer != null ? writer.getPendingEvents() : 0;
+    }
+
+    /**
+     * @return events kept in the overflow store until the connection takes them
+     */
+    public int getOverflowEvents() {
+        TcpChannelWriter writer = this.writer;
+        return writer != null ? writer.getOverflowEvents() : 0;
+    }
+
+    /**
+     * @return events dropped since start, because the backlog or the overflow store was full
+     */
+    public long getDroppedEvents() {
+        TcpChannelWriter writer = this.writer;
+        return writer != null ? writer.getDroppedEvents() : 0;
+    }
+
+    /**
+     * @return events sent again from the replay buffer after a broken connection
+     */
+    public long getReplayedEvents() {
+        TcpChannelWriter writer = this.writer;
+        return writer != null ? writer.getReplayedEvents() : 0;
+    }
+
     // The setters are peculiar here. They are used by Logback (via reflection) to set
     // the parameters of the appender, but they should never be called except by
     // Logback before start() is called.
@@ -316,6 +281,30 @@ public class TcpAppender extends AppenderBase<ILoggingEvent> implements Runnable
     public void setQueueSize(int queueSize) { this.queueSize = queueSize; }
     public int getQueueSize() { return this.queueSize; }
 
+    public void setBatchSize(int batchSize) { this.batchSize = batchSize; }
+    public int getBatchSize() { return this.batchSize; }
+
+    public void setBufferSize(int bufferSize) { this.bufferSize = bufferSize; }
+    public int getBufferSize() { return this.bufferSize; }
+
+    public void setReplayBufferSize(int replayBufferSize) { this.replayBufferSize = replayBufferSize; }
+    public int getReplayBufferSize() { return this.replayBufferSize; }
+
+    /**
+     * @param overflow where the events that do not fit in the backlog are kept: "memory",
+     *                 "disk" (a temporary file in overflowDir), or "none" not to keep them.
+     *                 Both stores hold up to overflowSize bytes and then drop their oldest
+     *                 events to make room for new ones, see getDroppedEvents.
+     */
+    public void setOverflow(String overflow) { this.overflow = overflow; }
+    public String getOverflow() { return this.overflow; }
+
+    public void setOverflowSize(long overflowSize) { this.overflowSize = overflowSize; }
+    public long getOverflowSize() { return this.overflowSize; }
+
+    public void setOverflowDir(String overflowDir) { this.overflowDir = overflowDir; }
+    public String getOverflowDir() { return this.overflowDir; }
+
     public void setLayout(Layout<ILoggingEvent> layout) {
         this.addWarn("This appender no longer admits a layout as a sub-component, set an encoder instead.");
         this.addWarn("To ensure compatibility, wrapping your layout in LayoutWrappingEncoder.");
@@ -334,8 +323,8 @@ public class TcpAppender extends AppenderBase<ILoggingEvent> implements Runnable
 
     /**
      * The <b>eventDelayLimit</b> takes a non-negative integer representing the
-     * number of milliseconds to allow the appender to block if the underlying
-     * BlockingQueue is full. Once this limit is reached, the event is dropped.
+     * number of milliseconds to allow the appender to block if the backlog of
+     * events waiting to be written is full. Once this limit is reached, the event is dropped.
      *
      * @param eventDelayLimit the event delay limit
      */
@@ -349,4 +338,40 @@ public class TcpAppender extends AppenderBase<ILoggingEvent> implements Runnable
     public Duration getEventDelayLimit() {
         return eventDelayLimit;
     }
+
+    /**
+     * The <b>lingerTime</b> is how long, in milliseconds, the appender waits for more
+     * events before it writes a batch that is not full, by default 0, i.e., the events
+     * buffered so far are written as soon as the connection is free.
+     *
+     * @param lingerTime the linger time
+     */
+    public void setLingerTime(Duration lingerTime) {
+        this.lingerTime = lingerTime;
+    }
+
+    /**
+     * Returns the value of the <b>lingerTime</b> property.
+     */
+    public Duration getLingerTime() {
+        return lingerTime;
+    }
+
+    /**
+     * The <b>replayWindow</b> is how long, in milliseconds, written events are kept in
+     * the replay buffer, by default 10000. Events written earlier are taken as read by
+     * the peer when the connection breaks.
+     *
+     * @param replayWindow the replay window
+     */
+    public void setReplayWindow(Duration replayWindow) {
+        this.replayWindow = replayWindow;
+    }
+
+    /**
+     * Returns the value of the <b>replayWindow</b> property.
+     */
+    public Duration getReplayWindow() {
+        return replayWindow;
+    }
 }
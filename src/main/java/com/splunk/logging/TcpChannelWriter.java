@@ -0,0 +1,678 @@
+package com.splunk.logging;
+/*
+ * Copyright 2013-2014 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import ch.qos.logback.core.spi.ContextAware;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Non-blocking connection of a TcpAppender, driven by the shared TcpSelector.
+ *
+ * Logging threads copy encoded events into pooled direct buffers; a buffer only holds
+ * whole events. Full buffers, and the current one once batchSize events are in it,
+ * lingerTime has elapsed or, without linger time, the previous buffers are written, are
+ * queued and written by the selector thread with gathering writes. A partial write
+ * leaves the rest of the buffers queued until the channel is writable again. When the
+ * connection breaks, a new one is opened after the reconnection delay without blocking
+ * anybody, and a buffer cut by the break is sent again from its start so that no event
+ * arrives truncated. An unexpected failure on the selector thread, e.g. running out of
+ * direct memory, is reported and handled like a broken connection.
+ *
+ * With a replay buffer, written buffers are kept for the replay window, as the peer may
+ * not have read them when the connection breaks, and are sent again on the next
+ * connection, so events may arrive twice but are not lost. With an overflow store, the
+ * events that do not fit in the backlog are kept in the store rather than waited for
+ * and dropped; once the connection is back, the store is emptied in large gathering
+ * writes after the backlog, and new events go after it until it is empty.
+ */
+final class TcpChannelWriter implements TcpSelector.Handler {
+    // free buffers kept for reuse
+    private static final int MaxPooledBuffers = 16;
+
+    private static final class Chunk {
+        final ByteBuffer buffer;
+        // events in the buffer, released from the backlog once it is written
+        int events;
+        long writtenAt;
+
+        Chunk(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final TcpSelector selector;
+    private final InetSocketAddress address;
+    private final ContextAware status;
+    private final long reconnectionDelay;
+    private final long connectTimeout;
+    private final int capacity;
+    private final int batchSize;
+    private final int bufferSize;
+    private final long lingerMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    // guarded by lock
+    private final ArrayDeque<Chunk> ready = new ArrayDeque<>();
+    private final ArrayDeque<Chunk> pool = new ArrayDeque<>();
+    private Chunk filling;
+    private int fillingEvents;
+    private int pendingEvents;
+    private boolean writeRequested;
+    private boolean lingerScheduled;
+    private boolean closed;
+    private boolean online;
+    // written buffers that are sent again if the connection breaks
+    private final ArrayDeque<Chunk> replay = new ArrayDeque<>();
+    private long replayBytes;
+    private long maxReplayBytes;
+    private long replayWindowNanos;
+    private TcpOverflowStore overflow;
+    private boolean overflowing;
+    private long droppedEvents;
+    private long replayedEvents;
+
+    // only used on the selector thread
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean connected;
+    private int attempt;
+    private ByteBuffer[] gather = new ByteBuffer[MaxPooledBuffers];
+    private final ByteBuffer discard = ByteBuffer.allocate(256);
+
+    /**
+     * @param selector selector serving the connection
+     * @param address where to connect
+     * @param status receives the connection status messages
+     * @param reconnectionDelay milliseconds to wait before connecting again
+     * @param connectTimeout milliseconds a connection attempt may take
+     * @param capacity events waiting to be written, before offer blocks
+     * @param batchSize events after which the buffered events are written
+     * @param bufferSize size of the pooled buffers
+     * @param lingerMillis milliseconds to wait for batchSize events, 0 to write at once
+     */
+    TcpChannelWriter(TcpSelector selector, InetSocketAddress address, ContextAware status,
+                     long reconnectionDelay, long connectTimeout,
+                     int capacity, int batchSize, int bufferSize, long lingerMillis) {
+        this.selector = selector;
+        this.address = address;
+        this.status = status;
+        this.reconnectionDelay = reconnectionDelay;
+        this.connectTimeout = connectTimeout;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.bufferSize = bufferSize;
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * Keep written buffers to send them again if the connection breaks, before start.
+     * @param maxBytes size limit of the kept buffers
+     * @param windowMillis how long a written buffer is kept
+     */
+    void enableReplay(long maxBytes, long windowMillis) {
+        if (maxBytes <= 0 || windowMillis <= 0) {
+            throw new IllegalArgumentException("Replay buffer size and window must be positive");
+        }
+        this.maxReplayBytes = maxBytes;
+        this.replayWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    /**
+     * Keep the events that do not fit in the backlog in a store, before start. The
+     * store is closed with the writer.
+     */
+    void setOverflowStore(TcpOverflowStore overflow) {
+        this.overflow = overflow;
+    }
+
+    /**
+     * Open the first connection.
+     */
+    void start() {
+        selector.add(this);
+        selector.execute(this::connect);
+    }
+
+    /**
+     * Queue an encoded event, waiting for room while the backlog is full.
+     * @param event encoded event
+     * @param timeoutMillis how long to wait for room
+     * @return false if the event was dropped
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean offer(byte[] event, long timeoutMillis) throws InterruptedException {
+        boolean write;
+        boolean linger;
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (pendingEvents >= capacity && overflow == null && !closed) {
+                if (nanos <= 0) {
+                    droppedEvents++;
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            if (closed) {
+                return false;
+            }
+            if (overflow != null && (overflowing || pendingEvents >= capacity)) {
+                // keep the order, the events go after the stored ones
+                overflowing = true;
+                store(event);
+                write = online && !writeRequested;
+                writeRequested |= write;
+            } else {
+                append(event);
+                write = false;
+            }
+            linger = false;
+            if (fillingEvents >= batchSize) {
+                seal();
+            }
+            // without linger time the selector thread takes what is buffered when it gets to it
+            if ((lingerMillis == 0 || !ready.isEmpty()) && !writeRequested) {
+                writeRequested = write = true;
+            }
+            if (lingerMillis > 0 && filling != null && !lingerScheduled) {
+                lingerScheduled = linger = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (write) {
+            selector.execute(this::write);
+        }
+        if (linger) {
+            selector.schedule(this::lingerElapsed, lingerMillis);
+        }
+        return true;
+    }
+
+    /**
+     * @return events accepted but not written yet
+     */
+    int getPendingEvents() {
+        lock.lock();
+        try {
+            return pendingEvents;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return events kept in the overflow store
+     */
+    int getOverflowEvents() {
+        lock.lock();
+        try {
+            return overflow != null ? overflow.size() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return events dropped because the backlog or the overflow store was full
+     */
+    long getDroppedEvents() {
+        lock.lock();
+        try {
+            return droppedEvents;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return events sent again from the replay buffer after a broken connection
+     */
+    long getReplayedEvents() {
+        lock.lock();
+        try {
+            return replayedEvents;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write what the channel accepts at once and close the connection. Events that are
+     * still waiting, or in the overflow store, are dropped.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            seal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        selector.remove(this);
+        selector.execute(() -> {
+            if (connected) {
+                try {
+                    writeReady();
+                } catch (IOException | RuntimeException | Error e) {
+                    // closing anyway
+                }
+            }
+            closeChannel();
+            closeOverflow();
+        });
+    }
+
+    @Override
+    public void ready(SelectionKey selected) {
+        try {
+            if (selected.isConnectable()) {
+                finishConnect();
+                return;
+            }
+            if (selected.isReadable() && readEnd()) {
+                connectionLost("connection closed by peer");
+                return;
+            }
+            if (selected.isWritable()) {
+                write();
+            }
+        } catch (IOException e) {
+            connectionLost("connection failed: " + e);
+        }
+    }
+
+    @Override
+    public void failed(Throwable cause) {
+        status.addError(address + " failed on the selector thread, reconnecting", cause);
+        connectionLost("connection dropped after the failure");
+    }
+
+    @Override
+    public void stopped(Throwable cause) {
+        status.addError(address + " selector thread failed, events are dropped until the appender is restarted", cause);
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // guarded by lock
+    private void append(byte[] event) {
+        if (filling != null && filling.buffer.remaining() < event.length) {
+            seal();
+        }
+        if (event.length > bufferSize) {
+            // too large for a pooled buffer, queue it as is
+            Chunk large = new Chunk(ByteBuffer.wrap(event));
+            large.events = 1;
+            ready.add(large);
+            pendingEvents++;
+            return;
+        }
+        if (filling == null) {
+            filling = pool.isEmpty() ? new Chunk(ByteBuffer.allocateDirect(bufferSize)) : pool.poll();
+        }
+        // counted once it is in, the allocation may fail
+        pendingEvents++;
+        filling.buffer.put(event);
+        filling.events++;
+        fillingEvents++;
+    }
+
+    // guarded by lock
+    private void seal() {
+        if (filling != null && filling.buffer.position() > 0) {
+            filling.buffer.flip();
+            ready.add(filling);
+            filling = null;
+        }
+        fillingEvents = 0;
+    }
+
+    // guarded by lock
+    private void store(byte[] event) {
+        try {
+            droppedEvents += overflow.add(event);
+        } catch (IOException e) {
+            droppedEvents++;
+        }
+    }
+
+    // guarded by lock
+    private void written(Chunk chunk, long now) {
+        pendingEvents -= chunk.events;
+        if (maxReplayBytes == 0) {
+            recycle(chunk);
+            return;
+        }
+        chunk.writtenAt = now;
+        replay.add(chunk);
+        replayBytes += chunk.buffer.limit();
+        while (!replay.isEmpty()
+                && (replayBytes > maxReplayBytes || now - replay.peek().writtenAt > replayWindowNanos)) {
+            Chunk expired = replay.poll();
+            replayBytes -= expired.buffer.limit();
+            recycle(expired);
+        }
+    }
+
+    // guarded by lock
+    private void recycle(Chunk chunk) {
+        if (chunk.buffer.isDirect() && chunk.buffer.capacity() == bufferSize && pool.size() < MaxPooledBuffers) {
+            chunk.buffer.clear();
+            chunk.events = 0;
+            pool.add(chunk);
+        }
+    }
+
+    private void lingerElapsed() {
+        lock.lock();
+        try {
+            lingerScheduled = false;
+            seal();
+        } finally {
+            lock.unlock();
+        }
+        write();
+    }
+
+    private void write() {
+        lock.lock();
+        try {
+            writeRequested = false;
+        } finally {
+            lock.unlock();
+        }
+        if (!connected) {
+            // written once connected
+            return;
+        }
+        try {
+            boolean more;
+            do {
+                more = writeReady();
+            } while (!more && (takeFilling() || takeOverflow()));
+            key.interestOps(SelectionKey.OP_READ | (more ? SelectionKey.OP_WRITE : 0));
+        } catch (IOException e) {
+            connectionLost("connection failed: " + e);
+        } catch (RuntimeException | Error e) {
+            // run as a task, where nobody else would start over
+            failed(e);
+        }
+    }
+
+    /**
+     * Without linger time, the buffer being filled is queued whenever the previous ones
+     * are written, so that events are batched while the channel is busy.
+     * @return true if events were queued
+     */
+    private boolean takeFilling() {
+        if (lingerMillis > 0) {
+            return false;
+        }
+        lock.lock();
+        try {
+            if (filling == null || filling.buffer.position() == 0) {
+                return false;
+            }
+            seal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Once the backlog is written, queue the stored events, as many as the pooled
+     * buffers take, so that they are written in large gathering writes.
+     * @return true if events were queued
+     */
+    private boolean takeOverflow() {
+        lock.lock();
+        try {
+            if (!overflowing) {
+                return false;
+            }
+            // the buffer being filled holds older events
+            seal();
+            try {
+                byte[] event;
+                while (ready.size() < MaxPooledBuffers && (event = overflow.poll()) != null) {
+                    append(event);
+                }
+            } catch (IOException e) {
+                status.addError(address + " cannot read the overflow store, dropping "
+                        + overflow.size() + " events", e);
+                droppedEvents += overflow.size();
+                closeOverflow();
+            }
+            seal();
+            if (overflow == null || overflow.size() == 0) {
+                overflowing = false;
+            }
+            return !ready.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeOverflow() {
+        lock.lock();
+        try {
+            if (overflow != null) {
+                try {
+                    overflow.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+                overflow = null;
+                overflowing = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the queued buffers with a gathering write.
+     * @return true if some are left, i.e. the write was partial
+     */
+    private boolean writeReady() throws IOException {
+        int count;
+        lock.lock();
+        try {
+            if (ready.isEmpty()) {
+                return false;
+            }
+            if (gather.length < ready.size()) {
+                gather = new ByteBuffer[ready.size()];
+            }
+            count = 0;
+            // the queued buffers are not touched by the logging threads
+            for (Chunk chunk : ready) {
+                gather[count++] = chunk.buffer;
+            }
+        } finally {
+            lock.unlock();
+        }
+        channel.write(gather, 0, count);
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            while (!ready.isEmpty() && !ready.peek().buffer.hasRemaining()) {
+                written(ready.poll(), now);
+            }
+            notFull.signalAll();
+            return !ready.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true once the peer closed the connection, what it sends is ignored
+     */
+    private boolean readEnd() throws IOException {
+        discard.clear();
+        return channel.read(discard) < 0;
+    }
+
+    private void connect() {
+        if (isClosed() || channel != null) {
+            // closed, or a failure scheduled a second attempt
+            return;
+        }
+        final int current = ++attempt;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (channel.connect(address)) {
+                key = selector.register(channel, 0, this);
+                connectionEstablished();
+                return;
+            }
+            key = selector.register(channel, SelectionKey.OP_CONNECT, this);
+        } catch (IOException e) {
+            connectionFailed(e);
+            return;
+        } catch (RuntimeException | Error e) {
+            failed(e);
+            return;
+        }
+        selector.schedule(() -> {
+            if (current == attempt && channel != null && !connected) {
+                connectionFailed(new ConnectException("connection timed out"));
+            }
+        }, connectTimeout);
+    }
+
+    private void finishConnect() {
+        try {
+            if (channel.finishConnect()) {
+                connectionEstablished();
+            }
+        } catch (IOException e) {
+            connectionFailed(e);
+        }
+    }
+
+    private void connectionEstablished() {
+        connected = true;
+        status.addInfo(address + " connection established");
+        lock.lock();
+        try {
+            online = true;
+        } finally {
+            lock.unlock();
+        }
+        write();
+    }
+
+    private void connectionFailed(Exception e) {
+        if (e instanceof ConnectException) {
+            status.addInfo(address + " connection refused");
+        } else {
+            status.addInfo(address + " " + e);
+        }
+        closeChannel();
+        reconnect();
+    }
+
+    private void connectionLost(String reason) {
+        status.addInfo(address + " " + reason);
+        closeChannel();
+        lock.lock();
+        try {
+            Chunk head = ready.peek();
+            if (head != null) {
+                // a buffer cut by the broken connection is sent again as a whole
+                head.buffer.rewind();
+            }
+            // then the buffers the peer may not have read, in their order
+            long now = System.nanoTime();
+            while (!replay.isEmpty()) {
+                Chunk chunk = replay.pollLast();
+                replayBytes -= chunk.buffer.limit();
+                if (now - chunk.writtenAt > replayWindowNanos) {
+                    recycle(chunk);
+                    continue;
+                }
+                chunk.buffer.rewind();
+                ready.addFirst(chunk);
+                pendingEvents += chunk.events;
+                replayedEvents += chunk.events;
+            }
+        } finally {
+            lock.unlock();
+        }
+        reconnect();
+    }
+
+    private void reconnect() {
+        if (!isClosed()) {
+            selector.schedule(this::connect, reconnectionDelay);
+        }
+    }
+
+    private void closeChannel() {
+        connected = false;
+        lock.lock();
+        try {
+            online = false;
+        } finally {
+            lock.unlock();
+        }
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+            channel = null;
+        }
+    }
+
+    private boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
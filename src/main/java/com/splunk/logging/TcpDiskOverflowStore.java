@@ -0,0 +1,233 @@
+package com.splunk.logging;
+/*
+ * Copyright 2013-2014 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Overflow store kept in a disk segment, so that a long outage does not take memory.
+ * Events are appended to the segment as length prefixed records through a write buffer
+ * and read back in order through a read buffer; the segment is truncated whenever it has
+ * been read entirely, and the unread records are moved to its start once more has been
+ * read than is left, so that it does not grow under steady traffic. Like the memory
+ * store, once maxBytes are stored the oldest events make room for the new ones.
+ *
+ * The segment is a temporary file deleted on close, it is not replayed by the next process.
+ */
+final class TcpDiskOverflowStore implements TcpOverflowStore {
+    private static final int BufferSize = 65536;
+    // read bytes after which the segment may be compacted
+    private static final long CompactionThreshold = 1 << 20; // 1MB
+
+    private final File file;
+    private final FileChannel channel;
+    private final long maxBytes;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(BufferSize);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BufferSize);
+    // end of the data written to the segment, and of the data loaded in readBuffer
+    private long writePosition;
+    private long readPosition;
+    private long bytes;
+    private int events;
+
+    /**
+     * @param directory where to create the segment
+     * @param maxBytes size limit of the stored events
+     * @throws IOException if the segment cannot be created
+     */
+    TcpDiskOverflowStore(File directory, long maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Overflow size must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create overflow directory " + directory);
+        }
+        this.maxBytes = maxBytes;
+        file = File.createTempFile("splunk-tcp-", ".overflow", directory);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        readBuffer.flip();
+    }
+
+    @Override
+    public int add(byte[] event) throws IOException {
+        int length = 4 + event.length;
+        if (length > maxBytes) {
+            return 1;
+        }
+        int dropped = 0;
+        while (bytes + length > maxBytes) {
+            skip();
+            dropped++;
+        }
+        if (writeBuffer.remaining() < length) {
+            flushWrites();
+        }
+        if (writeBuffer.remaining() < length) {
+            ByteBuffer header = ByteBuffer.allocate(4).putInt(event.length);
+            header.flip();
+            write(header);
+            write(ByteBuffer.wrap(event));
+        } else {
+            writeBuffer.putInt(event.length).put(event);
+        }
+        bytes += length;
+        events++;
+        return dropped;
+    }
+
+    @Override
+    public byte[] poll() throws IOException {
+        if (events == 0) {
+            return null;
+        }
+        fill(4);
+        byte[] event = new byte[readBuffer.getInt()];
+        int copied = Math.min(event.length, readBuffer.remaining());
+        readBuffer.get(event, 0, copied);
+        if (copied < event.length) {
+            // larger than the read buffer, read the rest directly
+            flushWrites();
+            ByteBuffer rest = ByteBuffer.wrap(event, copied, event.length - copied);
+            while (rest.hasRemaining()) {
+                int read = channel.read(rest, readPosition);
+                if (read < 0) {
+                    throw new EOFException("Truncated overflow segment " + file);
+                }
+                readPosition += read;
+            }
+        }
+        removed(event.length);
+        return event;
+    }
+
+    /**
+     * Drop the oldest event without copying it.
+     */
+    private void skip() throws IOException {
+        fill(4);
+        int length = readBuffer.getInt();
+        int buffered = Math.min(length, readBuffer.remaining());
+        readBuffer.position(readBuffer.position() + buffered);
+        if (buffered < length) {
+            // the rest is past the read buffer, possibly still in the write buffer
+            flushWrites();
+            readPosition += length - buffered;
+        }
+        removed(length);
+    }
+
+    private void removed(int length) throws IOException {
+        bytes -= 4 + length;
+        if (--events == 0) {
+            reset();
+        } else if (readPosition >= CompactionThreshold && readPosition >= writePosition - readPosition) {
+            compact();
+        }
+    }
+
+    /**
+     * Move the records that are not loaded in the read buffer yet to the start of the
+     * segment. The copy goes forward a buffer at a time, so it never overwrites what is
+     * still to be copied.
+     */
+    private void compact() throws IOException {
+        flushWrites();
+        long remaining = writePosition - readPosition;
+        // the write buffer is empty, use it for the copy
+        long from = readPosition;
+        long to = 0;
+        while (from < writePosition) {
+            writeBuffer.clear();
+            if (writePosition - from < writeBuffer.capacity()) {
+                writeBuffer.limit((int) (writePosition - from));
+            }
+            int read = channel.read(writeBuffer, from);
+            if (read < 0) {
+                throw new EOFException("Truncated overflow segment " + file);
+            }
+            from += read;
+            writeBuffer.flip();
+            while (writeBuffer.hasRemaining()) {
+                to += channel.write(writeBuffer, to);
+            }
+        }
+        writeBuffer.clear();
+        channel.truncate(remaining);
+        writePosition = remaining;
+        readPosition = 0;
+    }
+
+    @Override
+    public int size() {
+        return events;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /**
+     * Make sure count bytes can be read from readBuffer.
+     */
+    private void fill(int count) throws IOException {
+        if (readBuffer.remaining() >= count) {
+            return;
+        }
+        readBuffer.compact();
+        flushWrites();
+        while (readBuffer.position() < count) {
+            int read = channel.read(readBuffer, readPosition);
+            if (read < 0) {
+                throw new EOFException("Truncated overflow segment " + file);
+            }
+            readPosition += read;
+        }
+        readBuffer.flip();
+    }
+
+    private void flushWrites() throws IOException {
+        writeBuffer.flip();
+        write(writeBuffer);
+        writeBuffer.clear();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            writePosition += channel.write(buffer, writePosition);
+        }
+    }
+
+    private void reset() throws IOException {
+        channel.truncate(0);
+        writePosition = 0;
+        readPosition = 0;
+        bytes = 0;
+        writeBuffer.clear();
+        readBuffer.clear();
+        readBuffer.flip();
+    }
+}
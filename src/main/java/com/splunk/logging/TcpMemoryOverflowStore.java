@@ -0,0 +1,73 @@
+package com.splunk.logging;
+/*
+ * Copyright 2013-2014 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayDeque;
+
+/**
+ * Overflow store kept in memory. It behaves as a ring: once maxBytes are stored, the
+ * oldest events make room for the new ones.
+ */
+final class TcpMemoryOverflowStore implements TcpOverflowStore {
+    private final long maxBytes;
+    private final ArrayDeque<byte[]> events = new ArrayDeque<>();
+    private long bytes;
+
+    /**
+     * @param maxBytes size limit of the stored events
+     */
+    TcpMemoryOverflowStore(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Overflow size must be positive");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public int add(byte[] event) {
+        if (event.length > maxBytes) {
+            return 1;
+        }
+        int dropped = 0;
+        while (bytes + event.length > maxBytes) {
+            bytes -= events.poll().length;
+            dropped++;
+        }
+        events.add(event);
+        bytes += event.length;
+        return dropped;
+    }
+
+    @Override
+    public byte[] poll() {
+        byte[] event = events.poll();
+        if (event != null) {
+            bytes -= event.length;
+        }
+        return event;
+    }
+
+    @Override
+    public int size() {
+        return events.size();
+    }
+
+    @Override
+    public void close() {
+        events.clear();
+        bytes = 0;
+    }
+}
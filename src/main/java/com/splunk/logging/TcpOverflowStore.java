@@ -0,0 +1,45 @@
+package com.splunk.logging;
+/*
+ * Copyright 2013-2014 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where a TcpAppender keeps the events that do not fit in its backlog, e.g. while the
+ * connection is down, until they can be written.
+ */
+interface TcpOverflowStore extends Closeable {
+
+    /**
+     * Store an encoded event after the others.
+     * @param event encoded event
+     * @return number of events dropped to stay within the size limit, the given one or older ones
+     * @throws IOException if the event cannot be stored
+     */
+    int add(byte[] event) throws IOException;
+
+    /**
+     * @return the oldest event, removed from the store, or null if it is empty
+     * @throws IOException if the event cannot be read
+     */
+    byte[] poll() throws IOException;
+
+    /**
+     * @return number of events stored
+     */
+    int size();
+}
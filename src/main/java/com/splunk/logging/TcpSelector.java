@@ -0,0 +1,270 @@
+package com.splunk.logging;
+/*
+ * Copyright 2013-2014 Splunk, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"): you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Selector thread shared by the TCP appenders of the process. Channels are registered
+ * with a handler that the thread calls when they are ready; tasks and timers run on the
+ * same thread, so the handlers need no locking of their own for the channel state.
+ *
+ * The thread starts with the first appender that acquires it and ends once the last one
+ * releases it. If it ends on a failure instead, the next acquire opens a new selector and
+ * the handlers added to the failed one are told they are not served any more.
+ */
+final class TcpSelector implements Runnable {
+
+    interface Handler {
+        /**
+         * Called on the selector thread when a registered channel is ready.
+         */
+        void ready(SelectionKey key);
+
+        /**
+         * Called on the selector thread when ready threw, the handler should start over.
+         */
+        void failed(Throwable cause);
+
+        /**
+         * Called once the selector thread ended on a failure, nothing runs for the handler any more.
+         */
+        void stopped(Throwable cause);
+    }
+
+    private static TcpSelector shared;
+
+    // guarded by the class lock
+    private int references;
+    private final Set<Handler> handlers = ConcurrentHashMap.newKeySet();
+    private volatile Throwable failure;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // only used on the selector thread
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final AtomicLong timerSequence = new AtomicLong();
+    private volatile boolean running = true;
+
+    private static final class Timer implements Comparable<Timer> {
+        final long deadline;
+        final long sequence;
+        final Runnable task;
+
+        Timer(long deadline, long sequence, Runnable task) {
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            long diff = deadline - other.deadline;
+            if (diff != 0) {
+                return diff < 0 ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private TcpSelector() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "splunk-tcp-selector");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * @return the shared selector, started if needed
+     * @throws IOException if the selector cannot be opened
+     */
+    static synchronized TcpSelector acquire() throws IOException {
+        if (shared == null) {
+            shared = new TcpSelector();
+            shared.thread.start();
+        }
+        shared.references++;
+        return shared;
+    }
+
+    /**
+     * Release a selector returned by acquire. Tasks already submitted still run.
+     */
+    void release() {
+        synchronized (TcpSelector.class) {
+            if (--references > 0) {
+                return;
+            }
+            if (shared == this) {
+                shared = null;
+            }
+        }
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Add a handler to be told when the selector thread fails, at once if it has failed already.
+     */
+    void add(Handler handler) {
+        handlers.add(handler);
+        Throwable cause = failure;
+        if (cause != null && handlers.remove(handler)) {
+            handler.stopped(cause);
+        }
+    }
+
+    void remove(Handler handler) {
+        handlers.remove(handler);
+    }
+
+    /**
+     * Run a task on the selector thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Run a task on the selector thread once the delay has elapsed.
+     */
+    void schedule(Runnable task, long delayMillis) {
+        final Timer timer = new Timer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis),
+                timerSequence.getAndIncrement(), task);
+        execute(() -> timers.add(timer));
+    }
+
+    /**
+     * Register a channel, only on the selector thread.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        try {
+            serve();
+        } catch (IOException | RuntimeException | Error e) {
+            failure = e;
+            synchronized (TcpSelector.class) {
+                if (shared == this) {
+                    shared = null;
+                }
+            }
+            running = false;
+            for (Handler handler : handlers) {
+                if (handlers.remove(handler)) {
+                    try {
+                        handler.stopped(e);
+                    } catch (RuntimeException | Error ignored) {
+                        // tell the others anyway
+                    }
+                }
+            }
+        }
+        if (!selector.isOpen()) {
+            return;
+        }
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    private void serve() throws IOException {
+        while (true) {
+            runTasks();
+            long timeout = runTimers();
+            if (!running) {
+                return;
+            }
+            if (timeout > 0) {
+                selector.select(timeout);
+            } else {
+                selector.select();
+            }
+            for (SelectionKey key : selector.selectedKeys()) {
+                if (key.isValid()) {
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        handler.ready(key);
+                    } catch (RuntimeException | Error e) {
+                        // a failing handler must not stop the other appenders
+                        try {
+                            handler.failed(e);
+                        } catch (RuntimeException | Error again) {
+                            key.cancel();
+                        }
+                    }
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException | Error e) {
+                // keep serving the other appenders
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds until the next timer, 0 if there is none
+     */
+    private long runTimers() {
+        while (!timers.isEmpty()) {
+            long remaining = timers.peek().deadline - System.nanoTime();
+            if (remaining > 0) {
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+            }
+            try {
+                timers.poll().task.run();
+            } catch (RuntimeException | Error e) {
+                // keep serving the other appenders
+            }
+            // a timer task may submit tasks
+            runTasks();
+        }
+        return 0;
+    }
+}
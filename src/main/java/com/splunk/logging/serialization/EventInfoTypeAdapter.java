@@ -13,6 +13,11 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class EventInfoTypeAdapter implements JsonSerializer<HttpEventCollectorEventInfo> {
+    private MessageParsing messageParsing = MessageParsing.AUTO;
+
+    public void setMessageParsing(MessageParsing messageParsing) {
+        this.messageParsing = messageParsing;
+    }
 
     @Override
     public JsonElement serialize(HttpEventCollectorEventInfo src, Type typeOfSrc, JsonSerializationContext context) {
@@ -23,15 +28,14 @@ public class EventInfoTypeAdapter implements JsonSerializer<HttpEventCollectorEv
         }
 
         // Always put a message, even if it's empty.
-        try {
-            JsonElement parsed = JsonParser.parseString(src.getMessage());
-            if(parsed instanceof JsonNull && !src.getMessage().isEmpty()) {
-                event.put("message", src.getMessage());
-            } else {
-                event.put("message", parsed);
+        String message = src.getMessage();
+        if (message != null) {
+            JsonElement parsed = null;
+            if (messageParsing == MessageParsing.JSON
+                    || (messageParsing == MessageParsing.AUTO && JsonMessageScanner.looksLikeJson(message))) {
+                parsed = JsonMessageScanner.parseLenient(message);
             }
-        } catch (JsonSyntaxException e) {
-            event.put("message", src.getMessage());
+            event.put("message", parsed != null ? parsed : message);
         }
 
         if (src.getLoggerName() != null && !src.getLoggerName().isEmpty()) {
@@ -7,16 +7,33 @@ package com.splunk.logging.serialization;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
 import com.splunk.logging.EventBodySerializer;
 import com.splunk.logging.EventHeaderSerializer;
 import com.splunk.logging.HttpEventCollectorEventInfo;
 import com.splunk.logging.hec.MetadataTags;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
+/**
+ * Serializes events into the HEC JSON format.
+ *
+ * Unless an EventHeaderSerializer is set, events are written directly to UTF-8 through
+ * a Utf8JsonWriter instead of building a map and a Gson tree for every event. The key
+ * order is the iteration order of the HashMaps the Gson based path used, computed once
+ * per serializer, so both paths produce the same bytes. Metadata (host, index, source,
+ * sourcetype and fields) never changes after construction, so it is rendered to UTF-8
+ * once and copied into every event; only time and event are written per event.
+ */
 public class HecJsonSerializer {
     private static final Set<String> KEYWORDS = MetadataTags.HEC_TAGS;
+    private static final String TIME = "time";
+    private static final String EVENT = "event";
+    // body keys in the iteration order of the HashMap built by EventInfoTypeAdapter
+    private static final String[] BODY_KEYS = orderOf(new HashMap<>(),
+            "severity", "message", "logger", "thread", "exception", "properties", "marker");
+    private static final ThreadLocal<Utf8JsonWriter> WRITER = ThreadLocal.withInitial(Utf8JsonWriter::new);
+
     private Map<String, Object> template = new LinkedHashMap<>();
     private EventInfoTypeAdapter typeAdapter = new EventInfoTypeAdapter();
     private Gson gson = new GsonBuilder()
@@ -25,11 +42,47 @@ public class HecJsonSerializer {
             .create();
     private EventBodySerializer eventBodySerializer;
     private EventHeaderSerializer eventHeaderSerializer;
+    private MessageParsing messageParsing = MessageParsing.AUTO;
+    private EnvelopeSegment[] envelope;
 
     public HecJsonSerializer(Map<String, String> metadata) {
         for (Map.Entry<String, String> entry : metadata.entrySet()) {
             setValue(entry.getKey(), entry.getValue());
         }
+        envelope = renderEnvelope(orderOf(new HashMap<>(template), TIME, EVENT));
+    }
+
+    // split the envelope into pre-rendered runs of metadata and the per event keys
+    private EnvelopeSegment[] renderEnvelope(String[] keys) {
+        List<EnvelopeSegment> segments = new ArrayList<>();
+        Utf8JsonWriter run = new Utf8JsonWriter(256);
+        for (String key : keys) {
+            if (TIME.equals(key) || EVENT.equals(key)) {
+                if (run.size() > 0) {
+                    segments.add(new EnvelopeSegment(run.toByteArray(), null));
+                    run.reset();
+                }
+                segments.add(new EnvelopeSegment(null, key));
+                continue;
+            }
+            Object value = template.get(key);
+            if (value == null) {
+                continue;
+            }
+            if (run.size() > 0) {
+                run.writeByte(',');
+            }
+            run.writeName(key);
+            if (value instanceof Map) {
+                run.writeStringMap((Map<?, ?>) value);
+            } else {
+                run.writeString(value.toString());
+            }
+        }
+        if (run.size() > 0) {
+            segments.add(new EnvelopeSegment(run.toByteArray(), null));
+        }
+        return segments.toArray(new EnvelopeSegment[0]);
     }
 
     @SuppressWarnings("unchecked")
@@ -47,14 +100,78 @@ public class HecJsonSerializer {
         }
     }
 
+    // iteration order of the map after the keys have been added
+    private static String[] orderOf(Map<String, Object> map, String... keys) {
+        for (String key : keys) {
+            map.put(key, Boolean.TRUE);
+        }
+        return map.keySet().toArray(new String[0]);
+    }
+
     public String serialize(HttpEventCollectorEventInfo info) {
-        Map<String, Object> event;
         if (this.eventHeaderSerializer != null) {
-            event = eventHeaderSerializer.serializeEventHeader(info, new HashMap<>(template));
-        } else {
-            event = new HashMap<>(template);
-            event.put("time", String.format(Locale.US, "%.3f", info.getTime()));
+            return gson.toJson(buildHeaderEvent(info));
         }
+        Utf8JsonWriter writer = WRITER.get();
+        writer.reset();
+        serialize(info, writer);
+        return writer.toString();
+    }
+
+    /**
+     * Append the serialized event to a writer.
+     * @param info event to serialize
+     * @param writer destination
+     */
+    public void serialize(HttpEventCollectorEventInfo info, Utf8JsonWriter writer) {
+        if (this.eventHeaderSerializer != null) {
+            writer.writeRaw(gson.toJson(buildHeaderEvent(info)));
+            return;
+        }
+        long timeMillis = info.getTimeMillis();
+        String formattedTime = null;
+        String body = null;
+        if (this.eventBodySerializer != null) {
+            body = eventBodySerializer.serializeEventBody(info, info.getMessage());
+            double eventTime = eventBodySerializer.getEventTime(info);
+            if (eventTime > 0) {
+                timeMillis = Math.round(eventTime * 1000);
+                if (timeMillis / 1000.0 != eventTime) {
+                    // not a whole number of milliseconds, leave the rounding to the formatter
+                    formattedTime = String.format(Locale.US, "%.3f", eventTime);
+                }
+            }
+        }
+
+        writer.writeByte('{');
+        boolean first = true;
+        for (EnvelopeSegment segment : envelope) {
+            if (segment.rendered != null) {
+                if (!first) {
+                    writer.writeByte(',');
+                }
+                writer.writeBytes(segment.rendered);
+                first = false;
+            } else if (TIME.equals(segment.key)) {
+                first = writeSeparator(writer, first, TIME);
+                if (formattedTime != null) {
+                    writer.writeString(formattedTime);
+                } else {
+                    writeEpochSeconds(timeMillis, writer);
+                }
+            } else if (this.eventBodySerializer == null) {
+                first = writeSeparator(writer, first, EVENT);
+                writeEventBody(info, writer);
+            } else if (body != null) {
+                first = writeSeparator(writer, first, EVENT);
+                writer.writeString(body);
+            }
+        }
+        writer.writeByte('}');
+    }
+
+    private Map<String, Object> buildHeaderEvent(HttpEventCollectorEventInfo info) {
+        Map<String, Object> event = eventHeaderSerializer.serializeEventHeader(info, new HashMap<>(template));
         if (this.eventBodySerializer != null) {
             event.put("event", eventBodySerializer.serializeEventBody(info, info.getMessage()));
             double eventTime = eventBodySerializer.getEventTime(info);
@@ -64,14 +181,146 @@ public class HecJsonSerializer {
         } else {
             event.put("event", info);
         }
-        return gson.toJson(event);
+        return event;
+    }
+
+    // same fields and rules as EventInfoTypeAdapter
+    private void writeEventBody(HttpEventCollectorEventInfo src, Utf8JsonWriter writer) {
+        writer.writeByte('{');
+        boolean first = true;
+        for (String key : BODY_KEYS) {
+            switch (key) {
+                case "severity":
+                    if (src.getSeverity() != null) {
+                        first = writeSeparator(writer, first, key);
+                        writer.writeString(src.getSeverity());
+                    }
+                    break;
+                case "message":
+                    first = writeMessage(src.getMessage(), writer, first);
+                    break;
+                case "logger":
+                    if (src.getLoggerName() != null && !src.getLoggerName().isEmpty()) {
+                        first = writeSeparator(writer, first, key);
+                        writer.writeString(src.getLoggerName());
+                    }
+                    break;
+                case "thread":
+                    if (src.getThreadName() != null && !src.getThreadName().isEmpty()) {
+                        first = writeSeparator(writer, first, key);
+                        writer.writeString(src.getThreadName());
+                    }
+                    break;
+                case "exception":
+                    if (src.getExceptionMessage() != null && !src.getExceptionMessage().isEmpty()) {
+                        first = writeSeparator(writer, first, key);
+                        writer.writeString(src.getExceptionMessage());
+                    }
+                    break;
+                case "properties":
+                    Map<String, String> props = src.getProperties();
+                    if (props != null && props.size() > 0) {
+                        first = writeSeparator(writer, first, key);
+                        writer.writeStringMap(props);
+                    }
+                    break;
+                case "marker":
+                    if (src.getMarker() != null) {
+                        String markerString = src.getMarker().toString();
+                        if (!markerString.isEmpty()) {
+                            first = writeSeparator(writer, first, key);
+                            writer.writeString(markerString);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        writer.writeByte('}');
+    }
+
+    private boolean writeMessage(String message, Utf8JsonWriter writer, boolean first) {
+        if (message == null) {
+            return first;
+        }
+        writeSeparator(writer, first, "message");
+        if (messageParsing == MessageParsing.TEXT
+                || (messageParsing == MessageParsing.AUTO && !JsonMessageScanner.looksLikeJson(message))) {
+            writer.writeString(message);
+            return false;
+        }
+        int start = writer.size();
+        if (JsonMessageScanner.copy(message, writer) && !isNullLiteral(writer, start)) {
+            return false;
+        }
+        // not strict JSON, or left to the tree, still accept what the lenient parser understands
+        writer.truncate(start);
+        JsonElement parsed = JsonMessageScanner.parseLenient(message);
+        if (parsed != null) {
+            writer.writeJsonElement(parsed);
+        } else {
+            writer.writeString(message);
+        }
+        return false;
+    }
+
+    private static boolean isNullLiteral(Utf8JsonWriter writer, int start) {
+        return writer.size() - start == 4 && writer.buffer()[start] == 'n';
+    }
+
+    // same text as String.format(Locale.US, "%.3f", millis / 1000.0), in quotes
+    private static void writeEpochSeconds(long millis, Utf8JsonWriter writer) {
+        writer.writeByte('"');
+        if (millis < 0) {
+            writer.writeByte('-');
+        }
+        writer.writeLong(Math.abs(millis / 1000));
+        int fraction = (int) Math.abs(millis % 1000);
+        writer.writeByte('.')
+                .writeByte('0' + fraction / 100)
+                .writeByte('0' + fraction / 10 % 10)
+                .writeByte('0' + fraction % 10)
+                .writeByte('"');
+    }
+
+    private static boolean writeSeparator(Utf8JsonWriter writer, boolean first, String key) {
+        if (!first) {
+            writer.writeByte(',');
+        }
+        writer.writeName(key);
+        return false;
+    }
+
+    // either constant metadata already rendered as JSON members, or a key written per event
+    private static final class EnvelopeSegment {
+        final byte[] rendered;
+        final String key;
+
+        EnvelopeSegment(byte[] rendered, String key) {
+            this.rendered = rendered;
+            this.key = key;
+        }
     }
 
     public void setEventBodySerializer(EventBodySerializer eventBodySerializer) {
         this.eventBodySerializer = eventBodySerializer;
     }
 
+    /**
+     * A header serializer may rewrite any metadata per event, so once it is set the
+     * pre-rendered envelope is bypassed and events go through Gson.
+     * @param eventHeaderSerializer header serializer, null to restore the default
+     */
     public void setEventHeaderSerializer(EventHeaderSerializer eventHeaderSerializer) {
         this.eventHeaderSerializer = eventHeaderSerializer;
     }
+
+    /**
+     * @param messageParsing how messages are put into the event body
+     */
+    public void setMessageParsing(MessageParsing messageParsing) {
+        this.messageParsing = messageParsing;
+        typeAdapter.setMessageParsing(messageParsing);
+    }
 }
@@ -0,0 +1,379 @@
+/*
+ Copyright © 2019 Splunk Inc.
+ SPLUNK CONFIDENTIAL – Use or disclosure of this material in whole or in part
+ without a valid written license from Splunk Inc. is PROHIBITED.
+ */
+package com.splunk.logging.serialization;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.util.Arrays;
+
+/**
+ * Cheap checks for log messages that carry JSON.
+ *
+ * looksLikeJson only inspects the first and last non-whitespace characters, so plain text
+ * is recognized without parsing. copy validates a message against strict JSON and writes
+ * it in the same pass, no tree is built. The output is the one of a Gson tree written by
+ * Utf8JsonWriter.writeJsonElement: whitespace is removed, strings are escaped again and
+ * null object members are dropped. Objects with duplicate or escaped member names are
+ * left to the tree, which keeps the last of duplicate members.
+ */
+final class JsonMessageScanner {
+    private static final int MaxDepth = 512;
+    private static final int Invalid = -1;
+
+    private JsonMessageScanner() {
+    }
+
+    /**
+     * @param message log message
+     * @return true when the message is wrapped in {} or []
+     */
+    static boolean looksLikeJson(String message) {
+        int start = skipWhitespace(message, 0);
+        if (start >= message.length()) {
+            return false;
+        }
+        int end = message.length() - 1;
+        while (isWhitespace(message.charAt(end))) {
+            end--;
+        }
+        char first = message.charAt(start);
+        char last = message.charAt(end);
+        return (first == '{' && last == '}') || (first == '[' && last == ']');
+    }
+
+    /**
+     * Validate the message as a single strict JSON value and append it compacted.
+     * On failure the writer may contain a partial value, callers roll back with
+     * Utf8JsonWriter.truncate.
+     * @param message log message
+     * @param writer destination
+     * @return true if the whole message is valid JSON, false if it is not or if it is
+     *         left to a Gson tree
+     */
+    static boolean copy(String message, Utf8JsonWriter writer) {
+        int position = copyValue(message, skipWhitespace(message, 0), writer, 0, new Names());
+        return position != Invalid && skipWhitespace(message, position) == message.length();
+    }
+
+    /**
+     * Parse a message the lenient way Gson does, accepting unquoted names and similar.
+     * @param message log message
+     * @return the parsed value, or null if the message is not JSON or is the null literal
+     */
+    static JsonElement parseLenient(String message) {
+        try {
+            JsonElement parsed = JsonParser.parseString(message);
+            return parsed.isJsonNull() ? null : parsed;
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Start and end positions of the member names of the objects being copied, to find
+     * duplicates.
+     */
+    private static final class Names {
+        private int[] positions = new int[16];
+        private int size;
+
+        /**
+         * @return false if the name is already among the names from base
+         */
+        boolean add(String s, int start, int end, int base) {
+            int length = end - start;
+            for (int i = base; i < size; i += 2) {
+                if (positions[i + 1] - positions[i] == length && s.regionMatches(start, s, positions[i], length)) {
+                    return false;
+                }
+            }
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = start;
+            positions[size++] = end;
+            return true;
+        }
+    }
+
+    // returns the position after the value or Invalid
+    private static int copyValue(String s, int position, Utf8JsonWriter writer, int depth, Names names) {
+        if (position >= s.length()) {
+            return Invalid;
+        }
+        char c = s.charAt(position);
+        switch (c) {
+            case '{':
+                return copyObject(s, position, writer, depth + 1, names);
+            case '[':
+                return copyArray(s, position, writer, depth + 1, names);
+            case '"':
+                return copyString(s, position, writer);
+            case 't':
+                return copyLiteral(s, position, "true", writer);
+            case 'f':
+                return copyLiteral(s, position, "false", writer);
+            case 'n':
+                return copyLiteral(s, position, "null", writer);
+            default:
+                return copyNumber(s, position, writer);
+        }
+    }
+
+    private static int copyObject(String s, int position, Utf8JsonWriter writer, int depth, Names names) {
+        if (depth > MaxDepth) {
+            return Invalid;
+        }
+        writer.writeByte('{');
+        position = skipWhitespace(s, position + 1);
+        if (position < s.length() && s.charAt(position) == '}') {
+            writer.writeByte('}');
+            return position + 1;
+        }
+        int base = names.size;
+        boolean empty = true;
+        while (true) {
+            if (position >= s.length() || s.charAt(position) != '"') {
+                return Invalid;
+            }
+            int member = writer.size();
+            if (!empty) {
+                writer.writeByte(',');
+            }
+            int nameEnd = copyString(s, position, writer);
+            // an escaped name may match another one once decoded
+            if (nameEnd == Invalid || hasEscape(s, position, nameEnd)
+                    || !names.add(s, position, nameEnd, base)) {
+                return Invalid;
+            }
+            position = skipWhitespace(s, nameEnd);
+            if (position >= s.length() || s.charAt(position) != ':') {
+                return Invalid;
+            }
+            writer.writeByte(':');
+            position = skipWhitespace(s, position + 1);
+            boolean isNull = position < s.length() && s.charAt(position) == 'n';
+            position = copyValue(s, position, writer, depth, names);
+            if (position == Invalid) {
+                return Invalid;
+            }
+            if (isNull) {
+                // like Gson, null members are not written
+                writer.truncate(member);
+            } else {
+                empty = false;
+            }
+            position = skipWhitespace(s, position);
+            if (position >= s.length()) {
+                return Invalid;
+            }
+            char c = s.charAt(position);
+            if (c == '}') {
+                names.size = base;
+                writer.writeByte('}');
+                return position + 1;
+            } else if (c != ',') {
+                return Invalid;
+            }
+            position = skipWhitespace(s, position + 1);
+        }
+    }
+
+    private static int copyArray(String s, int position, Utf8JsonWriter writer, int depth, Names names) {
+        if (depth > MaxDepth) {
+            return Invalid;
+        }
+        writer.writeByte('[');
+        position = skipWhitespace(s, position + 1);
+        if (position < s.length() && s.charAt(position) == ']') {
+            writer.writeByte(']');
+            return position + 1;
+        }
+        while (true) {
+            position = copyValue(s, position, writer, depth, names);
+            if (position == Invalid) {
+                return Invalid;
+            }
+            position = skipWhitespace(s, position);
+            if (position >= s.length()) {
+                return Invalid;
+            }
+            char c = s.charAt(position);
+            if (c == ']') {
+                writer.writeByte(']');
+                return position + 1;
+            } else if (c != ',') {
+                return Invalid;
+            }
+            writer.writeByte(',');
+            position = skipWhitespace(s, position + 1);
+        }
+    }
+
+    private static int copyString(String s, int position, Utf8JsonWriter writer) {
+        int start = position;
+        boolean verbatim = true;
+        position++;
+        while (position < s.length()) {
+            char c = s.charAt(position);
+            if (c == '"') {
+                if (verbatim) {
+                    writer.writeRaw(s, start, position + 1);
+                } else {
+                    writer.writeString(unescape(s, start + 1, position));
+                }
+                return position + 1;
+            } else if (c == '\\') {
+                if (position + 1 >= s.length()) {
+                    return Invalid;
+                }
+                char escaped = s.charAt(position + 1);
+                if (escaped == 'u') {
+                    if (position + 5 >= s.length()) {
+                        return Invalid;
+                    }
+                    for (int i = position + 2; i < position + 6; i++) {
+                        char hex = s.charAt(i);
+                        if (!(hex >= '0' && hex <= '9') && !(hex >= 'a' && hex <= 'f') && !(hex >= 'A' && hex <= 'F')) {
+                            return Invalid;
+                        }
+                    }
+                    position += 6;
+                } else if ("\"\\/bfnrt".indexOf(escaped) >= 0) {
+                    position += 2;
+                } else {
+                    return Invalid;
+                }
+                verbatim = false;
+            } else if (c < 0x20) {
+                return Invalid;
+            } else {
+                // the writer escapes these two
+                if (c == 0x2028 || c == 0x2029) {
+                    verbatim = false;
+                }
+                position++;
+            }
+        }
+        return Invalid;
+    }
+
+    private static boolean hasEscape(String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == '\\') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // decodes the validated escapes of a string body, so that the writer escapes it again
+    private static String unescape(String s, int start, int end) {
+        StringBuilder value = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            char escaped = s.charAt(++i);
+            switch (escaped) {
+                case 'u':
+                    value.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                default:
+                    value.append(escaped);
+            }
+        }
+        return value.toString();
+    }
+
+    private static int copyLiteral(String s, int position, String literal, Utf8JsonWriter writer) {
+        if (!s.startsWith(literal, position)) {
+            return Invalid;
+        }
+        writer.writeRaw(literal);
+        return position + literal.length();
+    }
+
+    private static int copyNumber(String s, int position, Utf8JsonWriter writer) {
+        int start = position;
+        if (position < s.length() && s.charAt(position) == '-') {
+            position++;
+        }
+        if (position >= s.length()) {
+            return Invalid;
+        }
+        if (s.charAt(position) == '0') {
+            position++;
+        } else if (isDigit(s, position)) {
+            position = skipDigits(s, position);
+        } else {
+            return Invalid;
+        }
+        if (position < s.length() && s.charAt(position) == '.') {
+            if (!isDigit(s, position + 1)) {
+                return Invalid;
+            }
+            position = skipDigits(s, position + 1);
+        }
+        if (position < s.length() && (s.charAt(position) == 'e' || s.charAt(position) == 'E')) {
+            position++;
+            if (position < s.length() && (s.charAt(position) == '+' || s.charAt(position) == '-')) {
+                position++;
+            }
+            if (!isDigit(s, position)) {
+                return Invalid;
+            }
+            position = skipDigits(s, position);
+        }
+        writer.writeRaw(s, start, position);
+        return position;
+    }
+
+    private static boolean isDigit(String s, int position) {
+        return position < s.length() && s.charAt(position) >= '0' && s.charAt(position) <= '9';
+    }
+
+    private static int skipDigits(String s, int position) {
+        while (isDigit(s, position)) {
+            position++;
+        }
+        return position;
+    }
+
+    private static int skipWhitespace(String s, int position) {
+        if (position < 0) {
+            return position;
+        }
+        while (position < s.length() && isWhitespace(s.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+}
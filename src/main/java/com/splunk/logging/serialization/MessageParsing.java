@@ -0,0 +1,38 @@
+/*
+ Copyright © 2019 Splunk Inc.
+ SPLUNK CONFIDENTIAL – Use or disclosure of this material in whole or in part
+ without a valid written license from Splunk Inc. is PROHIBITED.
+ */
+package com.splunk.logging.serialization;
+
+/**
+ * How the message of an event is put into the HEC event body.
+ *
+ * Embedded JSON is written the way Gson writes it: without insignificant whitespace,
+ * with string escapes decoded and written again, without null object members and with
+ * the last value of duplicate keys.
+ */
+public enum MessageParsing {
+    /** JSON objects and arrays are embedded as JSON, anything else is sent as text. */
+    AUTO,
+    /** Messages are always sent as text, no detection is done. */
+    TEXT,
+    /** Messages are expected to be JSON values; invalid ones are still sent as text. */
+    JSON;
+
+    /**
+     * @param value configuration value: auto, text or json; empty means auto
+     * @return the matching mode
+     */
+    public static MessageParsing fromString(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return AUTO;
+        }
+        for (MessageParsing mode : values()) {
+            if (mode.name().equalsIgnoreCase(value.trim())) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown message parsing mode: " + value);
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ Copyright © 2019 Splunk Inc.
+ SPLUNK CONFIDENTIAL – Use or disclosure of this material in whole or in part
+ without a valid written license from Splunk Inc. is PROHIBITED.
+ */
+package com.splunk.logging.serialization;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Growable byte buffer that writes compact JSON straight to UTF-8.
+ *
+ * Strings are escaped exactly like Gson does with HTML escaping disabled, and unpaired
+ * surrogates are encoded as '?' like String.getBytes(UTF_8), so the output matches what
+ * the Gson based serialization produced. The writer is meant to be reset and reused;
+ * it does not track JSON structure, callers emit separators themselves.
+ */
+public class Utf8JsonWriter {
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buffer;
+    private int size = 0;
+
+    public Utf8JsonWriter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public Utf8JsonWriter(int initialCapacity) {
+        buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    /**
+     * Discard the content, keeping the allocated buffer.
+     */
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * Drop everything written after the given size.
+     * @param newSize size to go back to, at most size()
+     */
+    public void truncate(int newSize) {
+        if (newSize < 0 || newSize > size) {
+            throw new IllegalArgumentException("Cannot truncate " + size + " bytes to " + newSize);
+        }
+        size = newSize;
+    }
+
+    /**
+     * @return number of bytes written since the last reset
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the backing array, valid from 0 to size()
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+
+    public Utf8JsonWriter writeByte(int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+        return this;
+    }
+
+    public Utf8JsonWriter writeBytes(byte[] bytes) {
+        return writeBytes(bytes, 0, bytes.length);
+    }
+
+    public Utf8JsonWriter writeBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+        return this;
+    }
+
+    /**
+     * Write characters as UTF-8 without any quoting or escaping.
+     * @param value text that already is valid JSON
+     * @return this writer
+     */
+    public Utf8JsonWriter writeRaw(CharSequence value) {
+        return writeRaw(value, 0, value.length());
+    }
+
+    /**
+     * Write a range of characters as UTF-8 without any quoting or escaping.
+     * @param value text that already is valid JSON
+     * @param start index of the first character
+     * @param end index after the last character
+     * @return this writer
+     */
+    public Utf8JsonWriter writeRaw(CharSequence value, int start, int end) {
+        int length = end;
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                ensureCapacity(1);
+                buffer[size++] = (byte) c;
+            } else {
+                i = writeNonAscii(value, i, length);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Write a quoted and escaped JSON string.
+     * @param value string value, must not be null
+     * @return this writer
+     */
+    public Utf8JsonWriter writeString(CharSequence value) {
+        return writeString(value, false);
+    }
+
+    /**
+     * Write a quoted and escaped JSON string that is also safe to embed in HTML, escaping
+     * {@code < > & = '} like Gson does with its default HTML escaping.
+     * @param value string value, must not be null
+     * @return this writer
+     */
+    public Utf8JsonWriter writeHtmlSafeString(CharSequence value) {
+        return writeString(value, true);
+    }
+
+    private Utf8JsonWriter writeString(CharSequence value, boolean htmlSafe) {
+        int length = value.length();
+        ensureCapacity(length + 2);
+        buffer[size++] = '"';
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    if (htmlSafe && (c == '<' || c == '>' || c == '&' || c == '=' || c == '\'')) {
+                        writeUnicodeEscape(c);
+                    } else {
+                        ensureCapacity(1);
+                        buffer[size++] = (byte) c;
+                    }
+                } else {
+                    writeEscaped(c);
+                }
+            } else if (c == 0x2028 || c == 0x2029) {
+                writeUnicodeEscape(c);
+            } else {
+                i = writeNonAscii(value, i, length);
+            }
+        }
+        ensureCapacity(1);
+        buffer[size++] = '"';
+        return this;
+    }
+
+    /**
+     * Write an object member name followed by the colon.
+     * @param name member name
+     * @return this writer
+     */
+    public Utf8JsonWriter writeName(CharSequence name) {
+        writeString(name);
+        return writeByte(':');
+    }
+
+    /**
+     * Write a long in decimal notation.
+     * @param value number to write
+     * @return this writer
+     */
+    public Utf8JsonWriter writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            return writeRaw("-9223372036854775808");
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long bound = 10; digits < 19 && value >= bound; bound *= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+        return this;
+    }
+
+    public Utf8JsonWriter writeNull() {
+        return writeBytes(NULL);
+    }
+
+    public Utf8JsonWriter writeBoolean(boolean value) {
+        return writeBytes(value ? TRUE : FALSE);
+    }
+
+    /**
+     * Write a map as a JSON object. Entries with null values are skipped, null keys are
+     * written as "null".
+     * @param map map to write
+     * @return this writer
+     */
+    public Utf8JsonWriter writeStringMap(Map<?, ?> map) {
+        writeByte('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            if (value == null) {
+                continue;
+            }
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeName(String.valueOf(entry.getKey()));
+            writeString(value.toString());
+        }
+        return writeByte('}');
+    }
+
+    /**
+     * Write a Gson tree. As with Gson's default settings, null members of objects are
+     * skipped while null array elements are kept.
+     * @param element tree to write
+     * @return this writer
+     */
+    public Utf8JsonWriter writeJsonElement(JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            return writeNull();
+        }
+        if (element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isString()) {
+                return writeString(primitive.getAsString());
+            } else if (primitive.isBoolean()) {
+                return writeBoolean(primitive.getAsBoolean());
+            }
+            return writeRaw(primitive.getAsNumber().toString());
+        }
+        if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            writeByte('[');
+            for (int i = 0; i < array.size(); i++) {
+                if (i > 0) {
+                    writeByte(',');
+                }
+                writeJsonElement(array.get(i));
+            }
+            return writeByte(']');
+        }
+        JsonObject object = element.getAsJsonObject();
+        writeByte('{');
+        boolean first = true;
+        for (Map.Entry<String, JsonElement> member : object.entrySet()) {
+            if (member.getValue() == null || member.getValue().isJsonNull()) {
+                continue;
+            }
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeName(member.getKey());
+            writeJsonElement(member.getValue());
+        }
+        return writeByte('}');
+    }
+
+    private void writeEscaped(char c) {
+        switch (c) {
+            case '"':
+                writeByte('\\').writeByte('"');
+                break;
+            case '\\':
+                writeByte('\\').writeByte('\\');
+                break;
+            case '\t':
+                writeByte('\\').writeByte('t');
+                break;
+            case '\b':
+                writeByte('\\').writeByte('b');
+                break;
+            case '\n':
+                writeByte('\\').writeByte('n');
+                break;
+            case '\r':
+                writeByte('\\').writeByte('r');
+                break;
+            case '\f':
+                writeByte('\\').writeByte('f');
+                break;
+            default:
+                writeUnicodeEscape(c);
+        }
+    }
+
+    private void writeUnicodeEscape(char c) {
+        ensureCapacity(6);
+        buffer[size++] = '\\';
+        buffer[size++] = 'u';
+        buffer[size++] = HEX[(c >> 12) & 0xf];
+        buffer[size++] = HEX[(c >> 8) & 0xf];
+        buffer[size++] = HEX[(c >> 4) & 0xf];
+        buffer[size++] = HEX[c & 0xf];
+    }
+
+    // encodes value[index] (>= 0x80) and returns the index of the last consumed char
+    private int writeNonAscii(CharSequence value, int index, int length) {
+        char c = value.charAt(index);
+        ensureCapacity(4);
+        if (c < 0x800) {
+            buffer[size++] = (byte) (0xc0 | (c >> 6));
+            buffer[size++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            if (index + 1 < length && Character.isLowSurrogate(value.charAt(index + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+                buffer[size++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[size++] = (byte) (0x80 | (codePoint & 0x3f));
+                return index + 1;
+            }
+            buffer[size++] = '?';
+        } else if (Character.isLowSurrogate(c)) {
+            buffer[size++] = '?';
+        } else {
+            buffer[size++] = (byte) (0xe0 | (c >> 12));
+            buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buffer[size++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return index;
+    }
+
+    private void ensureCapacity(int additional) {
+        int required = size + additional;
+        if (required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+        }
+    }
+}
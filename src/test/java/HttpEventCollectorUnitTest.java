@@ -228,7 +228,8 @@ public class HttpEventCollectorUnitTest {
             }
         };
         LOGGER.info("hello");
-        // the system should make 2 retries
+        // the system should make 2 retries, retries are sent in the background
+        waitForEvents(2, 10000);
         Assert.assertEquals(2, HttpEventCollectorUnitTestMiddleware.eventsReceived);
         Assert.assertEquals(1, HttpEventCollectorUnitTestMiddleware.eventsWithFailures);
     }
@@ -268,9 +269,52 @@ public class HttpEventCollectorUnitTest {
         });
         LOGGER.info("hello");
         // the system should make only 2 retries and stop after that
+        waitForEvents(3, 10000);
+        // a third retry would be sent within its backoff ceiling of 4 seconds
+        sleep(4500);
         Assert.assertEquals(3, HttpEventCollectorUnitTestMiddleware.eventsReceived);
     }
 
+    @Test
+    public void java_util_logger_resend_server_busy() {
+        java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger("splunk.java.util");
+        readConf(
+            "handlers=com.splunk.logging.HttpEventCollectorLoggingHandler\n" +
+            "com.splunk.logging.HttpEventCollectorLoggingHandler.url=http://localhost:8088\n" +
+            "com.splunk.logging.HttpEventCollectorLoggingHandler.token=TOKEN\n" +
+            "com.splunk.logging.HttpEventCollectorLoggingHandler.middleware=HttpEventCollectorUnitTestMiddleware\n" +
+            "com.splunk.logging.HttpEventCollectorLoggingHandler.batch_size_count=0\n" +
+            "com.splunk.logging.HttpEventCollectorLoggingHandler.batch_size_bytes=0\n" +
+            "com.splunk.logging.HttpEventCollectorLoggingHandler.batch_interval=0\n" +
+            "com.splunk.logging.HttpEventCollectorLoggingHandler.retries_on_error=2\n"
+        );
+
+        HttpEventCollectorUnitTestMiddleware.resetCounters();
+        HttpEventCollectorUnitTestMiddleware.io = new HttpEventCollectorUnitTestMiddleware.IO() {
+            int replies = 0;
+            @Override
+            public HttpEventCollectorUnitTestMiddleware.HttpResponse output() {
+                replies++;
+                if (replies == 1) {
+                    // mimic server busy
+                    return new HttpEventCollectorUnitTestMiddleware.HttpResponse(
+                            503, "{\"text\":\"Server is busy\",\"code\":9}");
+                } else if (replies == 2) {
+                    // mimic throttling
+                    return new HttpEventCollectorUnitTestMiddleware.HttpResponse(
+                            429, "{\"text\":\"Too many requests\",\"code\":9}");
+                } else {
+                    return new HttpEventCollectorUnitTestMiddleware.HttpResponse();
+                }
+            }
+        };
+        LOGGER.info("hello");
+        // busy replies are retried like network errors
+        waitForEvents(3, 10000);
+        Assert.assertEquals(3, HttpEventCollectorUnitTestMiddleware.eventsReceived);
+        Assert.assertEquals(2, HttpEventCollectorUnitTestMiddleware.eventsWithFailures);
+    }
+
     @Test
     public void java_util_logger_batching() {
         java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger("splunk.java.util");
@@ -373,9 +417,58 @@ public class HttpEventCollectorUnitTest {
         Assert.assertEquals(0, HttpEventCollectorUnitTestMiddleware.eventsWithFailures);
     }
 
+    @Test
+    public void java_util_logger_ingestion_queue() {
+        java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger("splunk.java.util");
+        readConf(
+                "handlers=com.splunk.logging.HttpEventCollectorLoggingHandler\n" +
+                "com.splunk.logging.HttpEventCollectorLoggingHandler.url=http://localhost:8088\n" +
+                "com.splunk.logging.HttpEventCollectorLoggingHandler.token=TOKEN\n" +
+                "com.splunk.logging.HttpEventCollectorLoggingHandler.middleware=HttpEventCollectorUnitTestMiddleware\n" +
+                "com.splunk.logging.HttpEventCollectorLoggingHandler.batch_size_count=10\n" +
+                "com.splunk.logging.HttpEventCollectorLoggingHandler.ingestion_queue_size=64\n"
+        );
+        final int threads = 8;
+        final int eventsPerThread = 500;
+        HttpEventCollectorUnitTestMiddleware.resetCounters();
+        HttpEventCollectorUnitTestMiddleware.io = new HttpEventCollectorUnitTestMiddleware.IO() {
+            @Override
+            public void input(List<HttpEventCollectorEventInfo> events) {
+                Assert.assertEquals(10, events.size());
+            }
+        };
+        Thread[] loggers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            loggers[t] = new Thread(() -> {
+                for (int i = 0; i < eventsPerThread; i++) {
+                    LOGGER.info("queued");
+                }
+            });
+            loggers[t].start();
+        }
+        for (Thread logger : loggers) {
+            try {
+                logger.join();
+            } catch (InterruptedException e) {
+                Assert.fail();
+            }
+        }
+        waitForEvents(threads * eventsPerThread, 10000);
+        Assert.assertEquals(threads * eventsPerThread, HttpEventCollectorUnitTestMiddleware.eventsReceived);
+        Assert.assertEquals(0, HttpEventCollectorUnitTestMiddleware.eventsWithFailures);
+    }
+
     //--------------------------------------------------------------------------
     // utils
 
+    private void waitForEvents(int expected, int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (HttpEventCollectorUnitTestMiddleware.eventsReceived < expected
+                && System.currentTimeMillis() < deadline) {
+            sleep(10);
+        }
+    }
+
     private void readConf(final String conf) {
         try {
             LogManager.getLogManager().readConfiguration(new ByteArrayInputStream(conf.getBytes()));
@@ -0,0 +1,195 @@
+package com.splunk.logging;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+
+public class HttpEventCollectorAckTest {
+    private HttpServer server;
+    private final AtomicLong nextAckId = new AtomicLong();
+    private volatile LongPredicate indexed = ackId -> true;
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> channels = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> ackQuerySizes = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Stands in for an event collector with indexer acknowledgement enabled.
+     */
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/services/collector/event/1.0", exchange -> {
+            events.add(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8));
+            channels.add(exchange.getRequestHeaders().getFirst("X-Splunk-Request-Channel"));
+            reply(exchange, "{\"text\":\"Success\",\"code\":0,\"ackId\":" + nextAckId.getAndIncrement() + "}");
+        });
+        server.createContext("/services/collector/ack", exchange -> {
+            String query = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+            JsonObject acks = new JsonObject();
+            int size = 0;
+            for (JsonElement ackId : JsonParser.parseString(query).getAsJsonObject().getAsJsonArray("acks")) {
+                acks.addProperty(ackId.getAsString(), indexed.test(ackId.getAsLong()));
+                size++;
+            }
+            ackQuerySizes.add(size);
+            JsonObject json = new JsonObject();
+            json.add("acks", acks);
+            reply(exchange, json.toString());
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void reusedAckIdMovesToTheEndOfTheTable() throws Exception {
+        HttpEventCollectorEndpoints.Endpoint endpoint = new HttpEventCollectorEndpoints.Endpoint(
+                HttpUrl.parse("http://127.0.0.1/services/collector/event/1.0"), null, null);
+        HttpEventCollectorAckTracker tracker = new HttpEventCollectorAckTracker(10);
+        List<HttpEventCollectorEventInfo> first = new ArrayList<>();
+        List<HttpEventCollectorEventInfo> second = new ArrayList<>();
+        List<HttpEventCollectorEventInfo> third = new ArrayList<>();
+        tracker.add(endpoint, 0, first, 0);
+        tracker.add(endpoint, 1, second, 0);
+        Thread.sleep(100);
+        // the channel started over and gave out ackId 0 again
+        Assert.assertSame(first, tracker.add(endpoint, 0, third, 0).events);
+
+        // the fresh batch must not shield the older one from expiring
+        List<HttpEventCollectorAckTracker.Batch> expired = tracker.expire(TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertEquals(1, expired.size());
+        Assert.assertSame(second, expired.get(0).events);
+        Assert.assertEquals(1, tracker.size());
+    }
+
+    @Test
+    public void pollsManyAckIdsPerRequest() throws Exception {
+        HttpEventCollectorSender sender = createSender();
+        sender.enableAck(200, 60000, 100);
+        for (int i = 0; i < 20; i++) {
+            sender.send(i, "INFO", "event " + i, "logger", "thread", null, null, null);
+        }
+        waitFor(() -> sender.getUnackedBatchCount() == 0 && events.size() == 20);
+        Assert.assertEquals(0, sender.getPendingBytes());
+        // every batch was acknowledged, in far fewer queries than batches
+        Assert.assertTrue(ackQuerySizes.toString(), ackQuerySizes.size() < 20);
+        Assert.assertTrue(ackQuerySizes.toString(), Collections.max(ackQuerySizes) > 1);
+        // all batches went through the same channel
+        Assert.assertNotNull(channels.get(0));
+        Assert.assertEquals(Collections.nCopies(20, channels.get(0)), channels);
+        sender.close();
+    }
+
+    @Test
+    public void resendsBatchNotAcknowledgedInTime() throws Exception {
+        // the first post is lost by the indexers
+        indexed = ackId -> ackId != 0;
+        HttpEventCollectorSender sender = createSender();
+        sender.enableAck(50, 300, 100);
+        sender.send(0, "INFO", "lost", "logger", "thread", null, null, null);
+        // the resent batch leaves the tracker before it is acknowledged, wait for its release too
+        waitFor(() -> events.size() == 2 && sender.getUnackedBatchCount() == 0 && sender.getPendingBytes() == 0);
+        Assert.assertTrue(events.get(1).contains("\"lost\""));
+        Assert.assertEquals(events.get(0), events.get(1));
+        Assert.assertEquals(0, sender.getPendingBytes());
+        sender.close();
+    }
+
+    @Test
+    public void holdsBatchesBackWhileAckTableIsFull() throws Exception {
+        indexed = ackId -> false;
+        HttpEventCollectorSender sender = createSender();
+        sender.enableAck(50, 60000, 2);
+        for (int i = 0; i < 5; i++) {
+            sender.send(i, "INFO", "event " + i, "logger", "thread", null, null, null);
+        }
+        waitFor(() -> sender.getUnackedBatchCount() == 2);
+        Thread.sleep(200);
+        Assert.assertEquals(2, events.size());
+
+        indexed = ackId -> true;
+        waitFor(() -> events.size() == 5 && sender.getUnackedBatchCount() == 0);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(events.get(i), events.get(i).contains("\"event " + i + "\""));
+        }
+        sender.close();
+    }
+
+    @Test
+    public void unacknowledgedBatchesGoToErrorHandlerOnClose() throws Exception {
+        final List<List<HttpEventCollectorEventInfo>> errors = Collections.synchronizedList(new ArrayList<>());
+        HttpEventCollectorErrorHandler.onError((data, ex) -> errors.add(data));
+        try {
+            indexed = ackId -> false;
+            HttpEventCollectorSender sender = createSender();
+            sender.enableAck(50, 60000, 100);
+            sender.send(0, "INFO", "event 0", "logger", "thread", null, null, null);
+            waitFor(() -> sender.getUnackedBatchCount() == 1);
+            sender.close();
+            Assert.assertEquals(1, errors.size());
+            Assert.assertEquals("event 0", errors.get(0).get(0).getMessage());
+        } finally {
+            HttpEventCollectorErrorHandler.onError(null);
+        }
+    }
+
+    private HttpEventCollectorSender createSender() {
+        return new HttpEventCollectorSender(
+                "http://127.0.0.1:" + server.getAddress().getPort(), "token", null, null,
+                0, 1, 0, "sequential", new HashMap<>(), null);
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.holds() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(condition.holds());
+    }
+
+    private static void reply(HttpExchange exchange, String reply) throws IOException {
+        byte[] text = reply.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, text.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(text);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,92 @@
+package com.splunk.logging;
+
+import com.splunk.logging.serialization.HecJsonSerializer;
+import okhttp3.MediaType;
+import okio.Buffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+public class HttpEventCollectorBatchBodyTest {
+    private static final MediaType Json = MediaType.parse("application/json; charset=utf-8");
+
+    @Test
+    public void streamsSerializedEventsRepeatably() throws IOException {
+        HecJsonSerializer serializer = new HecJsonSerializer(new HashMap<>());
+        List<HttpEventCollectorEventInfo> events = events(serializer, "first", "zweite é", "{\"third\":3}");
+        StringBuilder expected = new StringBuilder();
+        for (HttpEventCollectorEventInfo event : events) {
+            expected.append(serializer.serialize(event));
+        }
+
+        HttpEventCollectorBatchBody body = HttpEventCollectorBatchBody.json(Json, events);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Buffer sink = new Buffer();
+            body.writeTo(sink);
+            Assert.assertEquals(body.contentLength(), sink.size());
+            Assert.assertEquals(expected.toString(), sink.readUtf8());
+        }
+    }
+
+    @Test
+    public void separatesRawEventsWithLineSeparator() throws IOException {
+        HttpEventCollectorBatchBody body = HttpEventCollectorBatchBody.raw(Json, events(null, "a", "b"));
+        Buffer sink = new Buffer();
+        body.writeTo(sink);
+        Assert.assertEquals("a" + System.lineSeparator() + "b", sink.readUtf8());
+    }
+
+    @Test
+    public void gzipRoundTrip() throws IOException {
+        HecJsonSerializer serializer = new HecJsonSerializer(new HashMap<>());
+        List<HttpEventCollectorEventInfo> events = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            events.addAll(events(serializer, "repeated message " + i));
+        }
+        HttpEventCollectorBatchBody body = HttpEventCollectorBatchBody.json(Json, events);
+        Buffer plain = new Buffer();
+        body.writeTo(plain);
+        String plainText = plain.readUtf8();
+
+        HttpEventCollectorBatchBody.CompressedBody compressed = body.gzip(9);
+        Assert.assertTrue(compressed.contentLength() < body.contentLength());
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Buffer sink = new Buffer();
+            compressed.writeTo(sink);
+            Assert.assertEquals(compressed.contentLength(), sink.size());
+            byte[] inflated = readAll(new GZIPInputStream(sink.inputStream()));
+            Assert.assertEquals(plainText, new String(inflated, StandardCharsets.UTF_8));
+        }
+    }
+
+    // events encoded the way the sender does, raw when there is no serializer
+    private static List<HttpEventCollectorEventInfo> events(HecJsonSerializer serializer, String... messages) {
+        List<HttpEventCollectorEventInfo> events = new ArrayList<>();
+        for (String message : messages) {
+            HttpEventCollectorEventInfo event =
+                    new HttpEventCollectorEventInfo(1000, "INFO", message, "logger", "thread", null, null, null);
+            String encoded = serializer != null ? serializer.serialize(event) : message;
+            event.setEncoded(encoded.getBytes(StandardCharsets.UTF_8));
+            events.add(event);
+        }
+        return events;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
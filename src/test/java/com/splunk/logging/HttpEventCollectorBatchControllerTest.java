@@ -0,0 +1,87 @@
+package com.splunk.logging;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class HttpEventCollectorBatchControllerTest {
+    private static final long Fast = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long Slow = TimeUnit.SECONDS.toNanos(2);
+
+    private final HttpEventCollectorBatchController controller =
+            new HttpEventCollectorBatchController(1000, 100000, 10000, TimeUnit.MILLISECONDS.toNanos(500));
+
+    @Test
+    public void growsWhileRequestsQueueUp() {
+        controller.completed(Fast, 200, true);
+        Assert.assertEquals(12500, controller.getBatchSize());
+        for (int i = 0; i < 100; i++) {
+            controller.completed(Fast, 200, true);
+        }
+        Assert.assertEquals(100000, controller.getBatchSize());
+        Assert.assertTrue(controller.getGrowCount() > 1);
+        Assert.assertEquals(0, controller.getShrinkCount());
+    }
+
+    @Test
+    public void keepsSizeWithoutBacklog() {
+        controller.completed(Fast, 200, false);
+        Assert.assertEquals(10000, controller.getBatchSize());
+        Assert.assertEquals(Fast, controller.getLatencyNanos());
+    }
+
+    @Test
+    public void shrinksWhenLatencyRises() {
+        controller.completed(Slow, 200, true);
+        Assert.assertEquals(7500, controller.getBatchSize());
+        for (int i = 0; i < 100; i++) {
+            controller.completed(Slow, 200, true);
+        }
+        Assert.assertEquals(1000, controller.getBatchSize());
+        Assert.assertEquals(0, controller.getGrowCount());
+    }
+
+    @Test
+    public void halvesWhenRejected() {
+        controller.completed(Fast, 413, true);
+        Assert.assertEquals(5000, controller.getBatchSize());
+        controller.completed(Fast, 503, true);
+        Assert.assertEquals(2500, controller.getBatchSize());
+        controller.failed();
+        Assert.assertEquals(1250, controller.getBatchSize());
+        controller.failed();
+        Assert.assertEquals(1000, controller.getBatchSize());
+        Assert.assertEquals(4, controller.getShrinkCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidBounds() {
+        new HttpEventCollectorBatchController(1000, 100, 500, 1);
+    }
+
+    @Test
+    public void senderBatchesBySizeLimit() {
+        HttpEventCollectorSender sender = HttpEventCollectorSenderTest.createSender(10, 0);
+        sender.enableAdaptiveBatching(100, 5000, 500);
+        Assert.assertEquals(5000, sender.getBatchSizeLimit());
+        HttpEventCollectorSenderTest.CapturingMiddleware middleware = new HttpEventCollectorSenderTest.CapturingMiddleware();
+        sender.addMiddleware(middleware);
+        for (int i = 0; i < 100; i++) {
+            sender.send(i, "INFO", "event " + i, "logger", "thread", null, null, null);
+        }
+        sender.flush();
+
+        Assert.assertEquals(100, middleware.messages().size());
+        // the batch count is not a limit any more
+        Assert.assertTrue(middleware.batches.get(0).size() > 10);
+        for (List<HttpEventCollectorEventInfo> batch : middleware.batches) {
+            long size = 0;
+            for (HttpEventCollectorEventInfo event : batch) {
+                size += event.getEncoded().length;
+            }
+            Assert.assertTrue("batch of " + size + " bytes", size <= 5000);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.splunk.logging;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+public class HttpEventCollectorCompressionTest {
+    private HttpServer server;
+    private final BlockingQueue<String[]> requests = new LinkedBlockingQueue<>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/services/collector/event/1.0", exchange -> {
+            String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            byte[] body = readAll(exchange.getRequestBody());
+            if ("gzip".equals(encoding)) {
+                body = readAll(new GZIPInputStream(new ByteArrayInputStream(body)));
+            }
+            requests.add(new String[]{encoding, new String(body, StandardCharsets.UTF_8)});
+            byte[] reply = "{\"text\":\"Success\",\"code\":0}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, reply.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(reply);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void compressesBatchesAboveThreshold() throws Exception {
+        HttpEventCollectorSender sender = createSender(20);
+        sender.enableCompression(9, 0);
+        for (int i = 0; i < 20; i++) {
+            sender.send(0, "INFO", "the same compressible message " + i, "logger", "thread", null, null, null);
+        }
+        String[] request = requests.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(request);
+        Assert.assertEquals("gzip", request[0]);
+        Assert.assertTrue(request[1].contains("the same compressible message 19"));
+        Assert.assertTrue(sender.getCompressionRatio() > 1);
+        sender.close();
+    }
+
+    @Test
+    public void sendsSmallBatchesUncompressed() throws Exception {
+        HttpEventCollectorSender sender = createSender(1);
+        sender.enableCompression(-1, 1024);
+        sender.send(0, "INFO", "short", "logger", "thread", null, null, null);
+        String[] request = requests.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(request);
+        Assert.assertNull(request[0]);
+        Assert.assertTrue(request[1].contains("short"));
+        Assert.assertEquals(0, sender.getCompressionRatio(), 0);
+        sender.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidLevel() {
+        createSender(1).enableCompression(10, 0);
+    }
+
+    private HttpEventCollectorSender createSender(int batchCount) {
+        return new HttpEventCollectorSender(
+                "http://127.0.0.1:" + server.getAddress().getPort(), "token", null, null,
+                0, batchCount, 0, "sequential", new HashMap<>(), null);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
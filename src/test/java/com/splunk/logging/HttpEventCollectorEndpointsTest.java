@@ -0,0 +1,226 @@
+package com.splunk.logging;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HttpEventCollectorEndpointsTest {
+
+    /**
+     * Stands in for an event collector endpoint.
+     */
+    private static class Endpoint {
+        final HttpServer server;
+        final AtomicInteger events = new AtomicInteger();
+        final AtomicInteger probes = new AtomicInteger();
+        volatile int status = 200;
+
+        Endpoint() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/services/collector/event/1.0", exchange -> {
+                drain(exchange.getRequestBody());
+                if (status == 200) {
+                    events.incrementAndGet();
+                }
+                reply(exchange, status);
+            });
+            server.createContext("/services/collector/health", exchange -> {
+                probes.incrementAndGet();
+                reply(exchange, status);
+            });
+            server.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        private static void drain(InputStream in) throws IOException {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) > 0) {
+            }
+        }
+
+        private static void reply(HttpExchange exchange, int status) throws IOException {
+            byte[] text = (status == 200
+                    ? "{\"text\":\"Success\",\"code\":0}"
+                    : "{\"text\":\"Server is busy\",\"code\":9}").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, text.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(text);
+            }
+        }
+    }
+
+    private final List<Endpoint> servers = new ArrayList<>();
+
+    @After
+    public void stopServers() {
+        for (Endpoint endpoint : servers) {
+            endpoint.server.stop(0);
+        }
+    }
+
+    @Test
+    public void roundRobinTakesEndpointsInTurn() {
+        HttpEventCollectorEndpoints endpoints = pool(3);
+        List<HttpEventCollectorEndpoints.Endpoint> selected = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            HttpEventCollectorEndpoints.Endpoint endpoint = endpoints.start();
+            selected.add(endpoint);
+            endpoints.succeeded(endpoint, 1000);
+        }
+        for (int i = 0; i < 3; i++) {
+            Assert.assertSame(selected.get(i), selected.get(i + 3));
+            Assert.assertNotSame(selected.get(i), selected.get((i + 1) % 3));
+        }
+    }
+
+    @Test
+    public void leastOutstandingAvoidsBusyEndpoints() {
+        HttpEventCollectorEndpoints endpoints = pool(2);
+        endpoints.setPolicy(HttpEventCollectorEndpoints.Policy.LeastOutstanding);
+        HttpEventCollectorEndpoints.Endpoint busy = endpoints.start();
+        for (int i = 0; i < 5; i++) {
+            HttpEventCollectorEndpoints.Endpoint endpoint = endpoints.start();
+            Assert.assertNotSame(busy, endpoint);
+            endpoints.succeeded(endpoint, 1000);
+        }
+    }
+
+    @Test
+    public void latencyWeightedPrefersFastEndpoints() {
+        HttpEventCollectorEndpoints endpoints = pool(2);
+        HttpEventCollectorEndpoints.Endpoint fast = endpoints.get(0);
+        HttpEventCollectorEndpoints.Endpoint slow = endpoints.get(1);
+        endpoints.succeeded(started(endpoints, fast), TimeUnit.MILLISECONDS.toNanos(1));
+        endpoints.succeeded(started(endpoints, slow), TimeUnit.MILLISECONDS.toNanos(100));
+        endpoints.setPolicy(HttpEventCollectorEndpoints.Policy.LatencyWeighted);
+        int fastCount = 0;
+        for (int i = 0; i < 1000; i++) {
+            HttpEventCollectorEndpoints.Endpoint endpoint = endpoints.start();
+            if (endpoint == fast) {
+                fastCount++;
+            }
+            endpoints.succeeded(endpoint, endpoint.getLatencyNanos());
+        }
+        Assert.assertTrue("fast endpoint got " + fastCount, fastCount > 900);
+    }
+
+    @Test
+    public void ejectedEndpointGetsNoBatchesUntilProbed() {
+        HttpEventCollectorEndpoints endpoints = pool(2);
+        HttpEventCollectorEndpoints.Endpoint failing = endpoints.start();
+        Assert.assertEquals(TimeUnit.SECONDS.toNanos(1), endpoints.failed(failing));
+        Assert.assertTrue(failing.isEjected());
+        for (int i = 0; i < 4; i++) {
+            HttpEventCollectorEndpoints.Endpoint endpoint = endpoints.start();
+            Assert.assertNotSame(failing, endpoint);
+            endpoints.succeeded(endpoint, 1000);
+        }
+        // the probe delay doubles while the endpoint stays down
+        Assert.assertEquals(TimeUnit.SECONDS.toNanos(2), endpoints.probeFailed(failing));
+        endpoints.probeSucceeded(failing);
+        Assert.assertFalse(failing.isEjected());
+    }
+
+    @Test
+    public void allEjectedStillSends() {
+        HttpEventCollectorEndpoints endpoints = pool(2);
+        endpoints.failed(started(endpoints, endpoints.get(0)));
+        endpoints.failed(started(endpoints, endpoints.get(1)));
+        // the endpoint probed first is used
+        Assert.assertSame(endpoints.get(0), endpoints.start());
+    }
+
+    @Test
+    public void singleEndpointIsNeverEjected() {
+        HttpEventCollectorEndpoints endpoints = pool(1);
+        HttpEventCollectorEndpoints.Endpoint endpoint = endpoints.start();
+        Assert.assertEquals(0, endpoints.failed(endpoint));
+        Assert.assertFalse(endpoint.isEjected());
+    }
+
+    @Test
+    public void senderFailsOverAndProbesEndpointBack() throws Exception {
+        Endpoint healthy = new Endpoint();
+        Endpoint busy = new Endpoint();
+        servers.add(healthy);
+        servers.add(busy);
+        busy.status = 503;
+        HttpEventCollectorSender sender = new HttpEventCollectorSender(
+                healthy.url() + ", " + busy.url(), "token", null, null,
+                0, 1, 0, "parallel", new HashMap<>(), null);
+        sender.addMiddleware(new HttpEventCollectorResendMiddleware(3));
+        for (int i = 0; i < 10; i++) {
+            sender.send(i, "INFO", "event " + i, "logger", "thread", null, null, null);
+        }
+        waitFor(() -> healthy.events.get() == 10);
+        Assert.assertEquals(0, busy.events.get());
+
+        // the busy endpoint is taken back once its health probe succeeds
+        int probes = busy.probes.get();
+        busy.status = 200;
+        waitFor(() -> busy.probes.get() > probes);
+        Thread.sleep(100);
+        for (int i = 0; i < 10; i++) {
+            sender.send(i, "INFO", "event " + i, "logger", "thread", null, null, null);
+        }
+        waitFor(() -> healthy.events.get() + busy.events.get() == 20);
+        Assert.assertTrue(busy.events.get() > 0);
+        sender.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownPolicy() {
+        new HttpEventCollectorSender("http://localhost:8088", "token", null, null,
+                0, 1, 0, "parallel", new HashMap<>(), null).setLoadBalancingPolicy("random");
+    }
+
+    private static HttpEventCollectorEndpoints pool(int size) {
+        List<HttpEventCollectorEndpoints.Endpoint> endpoints = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            HttpUrl url = HttpUrl.parse("http://hec" + i + ":8088/services/collector/event/1.0");
+            endpoints.add(new HttpEventCollectorEndpoints.Endpoint(url, null, null));
+        }
+        return new HttpEventCollectorEndpoints(endpoints);
+    }
+
+    /**
+     * Account a request to a given endpoint, as start would if it picked it
+     */
+    private static HttpEventCollectorEndpoints.Endpoint started(HttpEventCollectorEndpoints endpoints,
+                                                                HttpEventCollectorEndpoints.Endpoint endpoint) {
+        HttpEventCollectorEndpoints.Endpoint other;
+        while ((other = endpoints.start()) != endpoint) {
+            endpoints.succeeded(other, other.getLatencyNanos());
+        }
+        return endpoint;
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.holds() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(condition.holds());
+    }
+}
@@ -0,0 +1,47 @@
+package com.splunk.logging;
+
+import com.google.gson.Gson;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class HttpEventCollectorExceptionDetailTest {
+
+    @Test
+    public void matchesGsonRendering() {
+        StackTraceElement origin = new StackTraceElement("com.example.App", "run", "App.java", 42);
+        Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("detailMessage", "bad \"input\"\n<a href='x'>&</a>");
+        expected.put("exceptionClass", IllegalStateException.class.toString());
+        expected.put("fileName", "App.java");
+        expected.put("methodName", "run");
+        expected.put("lineNumber", "42");
+        Assert.assertEquals(new Gson().toJson(expected),
+                HttpEventCollectorExceptionDetail.toJson("bad \"input\"\n<a href='x'>&</a>",
+                        IllegalStateException.class.toString(), origin));
+    }
+
+    @Test
+    public void escapesHtmlCharacters() {
+        Assert.assertEquals("{\"detailMessage\":\"\\u003c\\u003e\\u0026\\u003d\\u0027\"}",
+                HttpEventCollectorExceptionDetail.toJson("<>&='", null, null));
+    }
+
+    @Test
+    public void leavesOutNullFields() {
+        Assert.assertEquals("{\"exceptionClass\":\"class java.lang.Error\"}",
+                HttpEventCollectorExceptionDetail.toJson(null, Error.class.toString(), null));
+        StackTraceElement nativeOrigin = new StackTraceElement("com.example.App", "run", null, -2);
+        Assert.assertEquals("{\"methodName\":\"run\",\"lineNumber\":\"-2\"}",
+                HttpEventCollectorExceptionDetail.toJson(null, null, nativeOrigin));
+    }
+
+    @Test
+    public void reusesBufferAcrossCalls() {
+        String longMessage = new String(new char[1000]).replace('\0', 'x');
+        Assert.assertTrue(HttpEventCollectorExceptionDetail.toJson(longMessage, "c", null).contains(longMessage));
+        Assert.assertEquals("{\"detailMessage\":\"short\"}", HttpEventCollectorExceptionDetail.toJson("short", null, null));
+    }
+}
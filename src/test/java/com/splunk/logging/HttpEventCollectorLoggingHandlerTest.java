@@ -0,0 +1,112 @@
+package com.splunk.logging;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+public class HttpEventCollectorLoggingHandlerTest {
+    static final List<HttpEventCollectorEventInfo> events = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Keeps the events of every handler, the handler creates the middleware itself.
+     */
+    public static class RecordingMiddleware extends HttpEventCollectorMiddleware.HttpSenderMiddleware {
+        @Override
+        public void postEvents(List<HttpEventCollectorEventInfo> batch,
+                               HttpEventCollectorMiddleware.IHttpSender sender,
+                               HttpEventCollectorMiddleware.IHttpSenderCallback callback) {
+            events.addAll(batch);
+            callback.completed(200, "{\"text\":\"Success\",\"code\":0}");
+        }
+    }
+
+    public static class CountingFormatter extends Formatter {
+        static final AtomicInteger instances = new AtomicInteger();
+
+        public CountingFormatter() {
+            instances.incrementAndGet();
+        }
+
+        @Override
+        public String format(LogRecord record) {
+            return "counted: " + formatMessage(record);
+        }
+    }
+
+    @After
+    public void resetConfiguration() {
+        events.clear();
+        LogManager.getLogManager().reset();
+    }
+
+    @Test
+    public void resolvesFormatterOnce() throws IOException {
+        configure(CountingFormatter.class.getName());
+        CountingFormatter.instances.set(0);
+        HttpEventCollectorLoggingHandler handler = new HttpEventCollectorLoggingHandler();
+        for (int i = 0; i < 3; i++) {
+            handler.publish(record(Level.INFO, "event {0}", i));
+        }
+        handler.close();
+        Assert.assertEquals(1, CountingFormatter.instances.get());
+        Assert.assertEquals(3, events.size());
+        Assert.assertEquals("counted: event 2", events.get(2).getMessage());
+    }
+
+    @Test
+    public void reconfigureReplacesFormatter() throws IOException {
+        configure(CountingFormatter.class.getName());
+        HttpEventCollectorLoggingHandler handler = new HttpEventCollectorLoggingHandler();
+        configure(null);
+        handler.reconfigureFormatter();
+        handler.publish(record(Level.INFO, "event {0}", 1));
+        handler.close();
+        Assert.assertEquals("event 1", events.get(0).getMessage());
+    }
+
+    @Test
+    public void fillsThreadAndExceptionDetail() throws IOException {
+        configure(null);
+        HttpEventCollectorLoggingHandler handler = new HttpEventCollectorLoggingHandler();
+        LogRecord record = record(Level.SEVERE, "failed", 0);
+        record.setThreadID(1234567);
+        record.setThrown(new IllegalStateException("boom"));
+        handler.publish(record);
+        handler.close();
+        HttpEventCollectorEventInfo event = events.get(0);
+        Assert.assertEquals("1234567", event.getThreadName());
+        Assert.assertTrue(event.getExceptionMessage().startsWith(
+                "{\"detailMessage\":\"boom\",\"exceptionClass\":\"class java.lang.IllegalStateException\","));
+    }
+
+    private static LogRecord record(Level level, String message, int parameter) {
+        LogRecord record = new LogRecord(level, message);
+        record.setLoggerName("logger");
+        record.setParameters(new Object[]{parameter});
+        return record;
+    }
+
+    private static void configure(String formatter) throws IOException {
+        String prefix = HttpEventCollectorLoggingHandler.class.getName() + ".";
+        String conf = prefix + "url=http://localhost:8088\n"
+                + prefix + "token=token\n"
+                + prefix + "batch_interval=0\n"
+                + prefix + "batch_size_count=1\n"
+                + prefix + "middleware=" + RecordingMiddleware.class.getName() + "\n"
+                + (formatter != null ? prefix + "formatter=" + formatter + "\n" : "");
+        LogManager.getLogManager().readConfiguration(
+                new ByteArrayInputStream(conf.getBytes(StandardCharsets.UTF_8)));
+    }
+}
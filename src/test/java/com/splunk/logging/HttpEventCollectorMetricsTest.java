@@ -0,0 +1,140 @@
+package com.splunk.logging;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+
+public class HttpEventCollectorMetricsTest {
+
+    /**
+     * Refuses every batch as invalid.
+     */
+    static class RefusingMiddleware extends HttpEventCollectorMiddleware.HttpSenderMiddleware {
+        @Override
+        public void postEvents(List<HttpEventCollectorEventInfo> events,
+                               HttpEventCollectorMiddleware.IHttpSender sender,
+                               HttpEventCollectorMiddleware.IHttpSenderCallback callback) {
+            callback.completed(400, "{\"text\":\"Invalid data format\",\"code\":6}");
+        }
+    }
+
+    @Test
+    public void histogramPercentilesAreWithinPrecision() {
+        HttpEventCollectorHistogram histogram = new HttpEventCollectorHistogram();
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(100000, histogram.getCount());
+        Assert.assertEquals(100000, histogram.getMax());
+        Assert.assertEquals(50000.5, histogram.getMean(), 0.001);
+        long median = histogram.getValueAtPercentile(50);
+        Assert.assertTrue("median " + median, median >= 50000 && median <= 50000 * 1.07);
+        Assert.assertEquals(100000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void histogramBucketsCoverAllValues() {
+        long[] values = {0, 1, 31, 32, 33, 63, 64, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = HttpEventCollectorHistogram.bucketOf(value);
+            Assert.assertTrue(HttpEventCollectorHistogram.highestValueOf(bucket) >= value);
+            if (bucket > 0) {
+                Assert.assertTrue(HttpEventCollectorHistogram.highestValueOf(bucket - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void countsSentAndPendingEvents() {
+        HttpEventCollectorSender sender = HttpEventCollectorSenderTest.createSender(3, 0);
+        sender.addMiddleware(new HttpEventCollectorSenderTest.CapturingMiddleware());
+        send(sender, 10);
+        HttpEventCollectorMetrics metrics = sender.getMetrics();
+        Assert.assertEquals(10, metrics.getEventsAccepted());
+        Assert.assertEquals(9, metrics.getEventsSent());
+        Assert.assertEquals(1, metrics.getPendingEvents());
+        Assert.assertEquals(sender.getPendingBytes(), metrics.getPendingBytes());
+        sender.close();
+        Assert.assertEquals(10, metrics.getEventsSent());
+        Assert.assertEquals(0, metrics.getPendingEvents());
+    }
+
+    @Test
+    public void countsDroppedAndFailedEvents() {
+        HttpEventCollectorPendingBudgetTest.HoldingMiddleware holding = new HttpEventCollectorPendingBudgetTest.HoldingMiddleware();
+        HttpEventCollectorSender sender = HttpEventCollectorSenderTest.createSender(1, 0);
+        sender.addMiddleware(holding);
+        sender.setPendingBudget(1, 0, "drop_newest", 0, null);
+        send(sender, 3);
+        HttpEventCollectorMetrics metrics = sender.getMetrics();
+        Assert.assertEquals(1, metrics.getEventsAccepted());
+        Assert.assertEquals(2, metrics.getEventsDropped());
+        Assert.assertEquals(1, metrics.getInFlightRequests());
+        holding.complete(0);
+        Assert.assertEquals(0, metrics.getInFlightRequests());
+
+        HttpEventCollectorErrorHandler.onError((data, ex) -> { });
+        try {
+            HttpEventCollectorSender refused = HttpEventCollectorSenderTest.createSender(2, 0);
+            refused.addMiddleware(new RefusingMiddleware());
+            send(refused, 4);
+            Assert.assertEquals(4, refused.getMetrics().getEventsFailed());
+            Assert.assertEquals(0, refused.getMetrics().getEventsSent());
+        } finally {
+            HttpEventCollectorErrorHandler.onError(null);
+        }
+    }
+
+    @Test
+    public void recordsRequestsOverHttp() throws Exception {
+        try (LocalHttpEventCollector collector = new LocalHttpEventCollector()) {
+            collector.setLatency(20);
+            HttpEventCollectorSender sender = new HttpEventCollectorSender(collector.getUrl(), "token", null, null,
+                    0, 5, 0, "sequential", new HashMap<>(), null);
+            send(sender, 20);
+            Assert.assertTrue(collector.awaitEvents(20, 5000));
+            sender.close();
+            HttpEventCollectorMetrics metrics = sender.getMetrics();
+            // the collector counts the events before it replies, the last callbacks may still run
+            long deadline = System.currentTimeMillis() + 5000;
+            while (metrics.getEventsSent() < 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(20, metrics.getEventsSent());
+            Assert.assertEquals(collector.getBytesReceived(), metrics.getBytesSent());
+            Assert.assertEquals(4, metrics.getBatchSize().getCount());
+            Assert.assertEquals(4, metrics.getRequestLatency().getCount());
+            Assert.assertTrue(metrics.getRequestLatency().getValueAtPercentile(50) >= 20000000);
+        }
+    }
+
+    @Test
+    public void jmxExporterRegistersUntilClose() throws Exception {
+        HttpEventCollectorSender sender = HttpEventCollectorSenderTest.createSender(1, 0);
+        sender.addMiddleware(new HttpEventCollectorSenderTest.CapturingMiddleware());
+        sender.enableMetricsExport("metrics-test", "jmx");
+        send(sender, 2);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = HttpEventCollectorJmxExporter.objectName("metrics-test");
+        Assert.assertEquals(2L, server.getAttribute(name, "EventsSent"));
+        sender.close();
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownExporter() {
+        HttpEventCollectorSenderTest.createSender(1, 0).enableMetricsExport("test", "com.example.NoSuchExporter");
+    }
+
+    private static void send(HttpEventCollectorSender sender, int count) {
+        for (int i = 0; i < count; i++) {
+            sender.send(i, "INFO", "event " + i, "logger", "thread", null, null, null);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.splunk.logging;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class HttpEventCollectorParallelismTest {
+    private final HttpEventCollectorPendingBudgetTest.HoldingMiddleware middleware =
+            new HttpEventCollectorPendingBudgetTest.HoldingMiddleware();
+
+    private HttpEventCollectorSender createSender(int batchCount, String ordering, String orderingKey) {
+        HttpEventCollectorSender sender = HttpEventCollectorSenderTest.createSender(batchCount, 0);
+        sender.addMiddleware(middleware);
+        sender.setParallelism(0, 0, ordering, orderingKey);
+        return sender;
+    }
+
+    @Test
+    public void loggerOrderingPipelinesAcrossLoggers() {
+        HttpEventCollectorSender sender = createSender(1, "logger", null);
+        sender.send(0, "INFO", "a1", "a", "thread", null, null, null);
+        sender.send(1, "INFO", "a2", "a", "thread", null, null, null);
+        sender.send(2, "INFO", "b1", "b", "thread", null, null, null);
+        sender.send(3, "INFO", "a3", "a", "thread", null, null, null);
+        // the second batch of logger a waits for the first one
+        Assert.assertEquals(Arrays.asList("a1", "b1"), middleware.messages());
+
+        middleware.complete(0);
+        Assert.assertEquals(Arrays.asList("a1", "b1", "a2"), middleware.messages());
+        middleware.complete(1);
+        Assert.assertEquals(3, middleware.size());
+        middleware.complete(2);
+        Assert.assertEquals(Arrays.asList("a1", "b1", "a2", "a3"), middleware.messages());
+        middleware.complete(3);
+        Assert.assertEquals(0, sender.getPendingBytes());
+    }
+
+    @Test
+    public void partitionOrderingSplitsBatchesByKey() {
+        HttpEventCollectorSender sender = createSender(4, "partition", "tenant");
+        for (int i = 0; i < 4; i++) {
+            String tenant = i % 2 == 0 ? "x" : "y";
+            sender.send(i, "INFO", tenant + i, "logger", "thread",
+                    Collections.singletonMap("tenant", tenant), null, null);
+        }
+        Assert.assertEquals(2, middleware.size());
+        Assert.assertEquals(Arrays.asList("x0", "x2", "y1", "y3"), middleware.messages());
+    }
+
+    @Test
+    public void noOrderingSendsAllBatches() {
+        HttpEventCollectorSender sender = createSender(1, "none", null);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            sender.send(i, "INFO", "event " + i, "logger", "thread", null, null, null);
+            expected.add("event " + i);
+        }
+        Assert.assertEquals(expected, middleware.messages());
+    }
+
+    @Test
+    public void closeReleasesWaitingBatches() {
+        HttpEventCollectorSender sender = createSender(1, "logger", null);
+        sender.send(0, "INFO", "a1", "a", "thread", null, null, null);
+        sender.send(1, "INFO", "a2", "a", "thread", null, null, null);
+        Assert.assertEquals(1, middleware.size());
+        sender.close();
+        Assert.assertEquals(Arrays.asList("a1", "a2"), middleware.messages());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void partitionOrderingNeedsKey() {
+        createSender(1, "partition", null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownOrdering() {
+        createSender(1, "random", null);
+    }
+}
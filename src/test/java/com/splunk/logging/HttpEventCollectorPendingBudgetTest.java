@@ -0,0 +1,163 @@
+package com.splunk.logging;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class HttpEventCollectorPendingBudgetTest {
+
+    /**
+     * Keeps batches in flight until the test completes them.
+     */
+    static class HoldingMiddleware extends HttpEventCollectorMiddleware.HttpSenderMiddleware {
+        final List<List<HttpEventCollectorEventInfo>> batches = new ArrayList<>();
+        final List<HttpEventCollectorMiddleware.IHttpSenderCallback> callbacks = new ArrayList<>();
+
+        @Override
+        public synchronized void postEvents(List<HttpEventCollectorEventInfo> events,
+                                            HttpEventCollectorMiddleware.IHttpSender sender,
+                                            HttpEventCollectorMiddleware.IHttpSenderCallback callback) {
+            batches.add(new ArrayList<>(events));
+            callbacks.add(callback);
+        }
+
+        void complete(int index) {
+            HttpEventCollectorMiddleware.IHttpSenderCallback callback;
+            synchronized (this) {
+                callback = callbacks.get(index);
+            }
+            callback.completed(200, "");
+        }
+
+        synchronized int size() {
+            return batches.size();
+        }
+
+        synchronized List<String> messages() {
+            List<String> messages = new ArrayList<>();
+            for (List<HttpEventCollectorEventInfo> batch : batches) {
+                for (HttpEventCollectorEventInfo event : batch) {
+                    messages.add(event.getMessage());
+                }
+            }
+            return messages;
+        }
+    }
+
+    private final HoldingMiddleware middleware = new HoldingMiddleware();
+
+    /**
+     * @return sender that posts every event on its own, with one event pending
+     */
+    private HttpEventCollectorSender createSender() {
+        HttpEventCollectorSender sender = HttpEventCollectorSenderTest.createSender(1, 0);
+        sender.addMiddleware(middleware);
+        sender.send(0, "INFO", "event 0", "logger", "thread", null, null, null);
+        return sender;
+    }
+
+    @Test
+    public void dropNewestKeepsPendingBytesWithinBudget() {
+        HttpEventCollectorSender sender = createSender();
+        long eventSize = sender.getPendingBytes();
+        sender.setPendingBudget(eventSize * 3, 0, "drop_newest", 0, null);
+        for (int i = 1; i < 10; i++) {
+            sender.send(i, "INFO", "event " + i, "logger", "thread", null, null, null);
+        }
+        Assert.assertEquals(3, middleware.size());
+        Assert.assertEquals(7, sender.getDroppedEventCount());
+        Assert.assertEquals(eventSize * 3, sender.getPendingBytes());
+
+        middleware.complete(0);
+        Assert.assertEquals(eventSize * 2, sender.getPendingBytes());
+        sender.send(10, "INFO", "event 9", "logger", "thread", null, null, null);
+        Assert.assertEquals(4, middleware.size());
+    }
+
+    @Test
+    public void maxPendingBatchesHoldsBatchesBack() {
+        HttpEventCollectorSender sender = createSender();
+        sender.setPendingBudget(0, 2, null, 0, null);
+        for (int i = 1; i < 5; i++) {
+            sender.send(i, "INFO", "event " + i, "logger", "thread", null, null, null);
+        }
+        Assert.assertEquals(2, middleware.size());
+        Assert.assertEquals(0, sender.getDroppedEventCount());
+
+        middleware.complete(0);
+        Assert.assertEquals(3, middleware.size());
+        middleware.complete(1);
+        middleware.complete(2);
+        middleware.complete(3);
+        Assert.assertEquals(5, middleware.size());
+        middleware.complete(4);
+        Assert.assertEquals(0, sender.getPendingBytes());
+    }
+
+    @Test
+    public void dropOldestDropsBatchesNotSentYet() {
+        HttpEventCollectorSender sender = createSender();
+        long eventSize = sender.getPendingBytes();
+        sender.setPendingBudget(eventSize * 3, 1, "drop_oldest", 0, null);
+        for (int i = 1; i < 10; i++) {
+            sender.send(i, "INFO", "event " + i, "logger", "thread", null, null, null);
+        }
+        Assert.assertEquals(7, sender.getDroppedEventCount());
+
+        middleware.complete(0);
+        middleware.complete(1);
+        middleware.complete(2);
+        List<String> expected = new ArrayList<>();
+        expected.add("event 0");
+        expected.add("event 8");
+        expected.add("event 9");
+        Assert.assertEquals(expected, middleware.messages());
+    }
+
+    @Test
+    public void dropBelowSeverityKeepsSevereEvents() {
+        HttpEventCollectorSender sender = createSender();
+        sender.setPendingBudget(1, 0, "drop_below_severity", 0, "WARN");
+        sender.send(1, "DEBUG", "debug", "logger", "thread", null, null, null);
+        sender.send(2, "INFO", "info", "logger", "thread", null, null, null);
+        sender.send(3, "ERROR", "error", "logger", "thread", null, null, null);
+        sender.send(4, "SEVERE", "severe", "logger", "thread", null, null, null);
+        Assert.assertEquals(2, sender.getDroppedEventCount());
+        List<String> expected = new ArrayList<>();
+        expected.add("event 0");
+        expected.add("error");
+        expected.add("severe");
+        Assert.assertEquals(expected, middleware.messages());
+    }
+
+    @Test
+    public void blockWaitsForRoomUntilTimeout() throws Exception {
+        HttpEventCollectorSender sender = createSender();
+        sender.setPendingBudget(1, 0, "block", 100, null);
+        long start = System.currentTimeMillis();
+        sender.send(1, "INFO", "event 1", "logger", "thread", null, null, null);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+        Assert.assertEquals(1, sender.getDroppedEventCount());
+
+        sender.setPendingBudget(1, 0, "block", 10000, null);
+        Thread completer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            middleware.complete(0);
+        });
+        completer.start();
+        sender.send(2, "INFO", "event 2", "logger", "thread", null, null, null);
+        completer.join();
+        Assert.assertEquals(1, sender.getDroppedEventCount());
+        Assert.assertEquals(2, middleware.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownPolicy() {
+        createSender().setPendingBudget(1, 0, "drop_everything", 0, null);
+    }
+}
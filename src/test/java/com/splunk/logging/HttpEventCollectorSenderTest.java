@@ -0,0 +1,137 @@
+package com.splunk.logging;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class HttpEventCollectorSenderTest {
+
+    /**
+     * Records batches instead of sending them.
+     */
+    static class CapturingMiddleware extends HttpEventCollectorMiddleware.HttpSenderMiddleware {
+        final List<List<HttpEventCollectorEventInfo>> batches = new ArrayList<>();
+
+        @Override
+        public synchronized void postEvents(List<HttpEventCollectorEventInfo> events,
+                                            HttpEventCollectorMiddleware.IHttpSender sender,
+                                            HttpEventCollectorMiddleware.IHttpSenderCallback callback) {
+            batches.add(new ArrayList<>(events));
+            callback.completed(200, "");
+        }
+
+        synchronized List<String> messages() {
+            List<String> messages = new ArrayList<>();
+            for (List<HttpEventCollectorEventInfo> batch : batches) {
+                for (HttpEventCollectorEventInfo event : batch) {
+                    messages.add(event.getMessage());
+                }
+            }
+            return messages;
+        }
+    }
+
+    static HttpEventCollectorSender createSender(long batchCount, long batchSize) {
+        return new HttpEventCollectorSender("http://localhost:8088", "token", null, null,
+                0, batchCount, batchSize, "sequential", new HashMap<>(), null);
+    }
+
+    @Test
+    public void batchSizeBytesIsACeiling() {
+        HttpEventCollectorSender sender = createSender(0, 1000);
+        CapturingMiddleware middleware = new CapturingMiddleware();
+        sender.addMiddleware(middleware);
+
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            StringBuilder message = new StringBuilder("event " + i + " ");
+            for (int j = 0; j < i % 7; j++) {
+                message.append("ünïcödé ");
+            }
+            sent.add(message.toString());
+            sender.send(i, "INFO", message.toString(), "logger", "thread", null, null, null);
+        }
+        sender.flush();
+
+        Assert.assertEquals(sent, middleware.messages());
+        Assert.assertTrue(middleware.batches.size() > 1);
+        for (List<HttpEventCollectorEventInfo> batch : middleware.batches) {
+            long size = 0;
+            for (HttpEventCollectorEventInfo event : batch) {
+                size += event.getEncoded().length;
+            }
+            Assert.assertTrue("batch of " + size + " bytes", size <= 1000);
+        }
+    }
+
+    @Test
+    public void oversizedEventIsSentAlone() {
+        HttpEventCollectorSender sender = createSender(0, 500);
+        CapturingMiddleware middleware = new CapturingMiddleware();
+        sender.addMiddleware(middleware);
+
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            large.append("0123456789");
+        }
+        sender.send(0, "INFO", "small", "logger", "thread", null, null, null);
+        sender.send(0, "INFO", large.toString(), "logger", "thread", null, null, null);
+        sender.send(0, "INFO", "small again", "logger", "thread", null, null, null);
+        sender.flush();
+
+        Assert.assertEquals(3, middleware.batches.size());
+        Assert.assertEquals(1, middleware.batches.get(1).size());
+        Assert.assertEquals(large.toString(), middleware.batches.get(1).get(0).getMessage());
+    }
+
+    @Test
+    public void batchIsSentOnceItsOldestEventLingeredForTheInterval() throws Exception {
+        HttpEventCollectorSender sender = new HttpEventCollectorSender("http://localhost:8088", "token", null, null,
+                200, 100, 0, "sequential", new HashMap<>(), null);
+        CapturingMiddleware middleware = new CapturingMiddleware();
+        sender.addMiddleware(middleware);
+
+        long start = System.nanoTime();
+        sender.send(0, "INFO", "first", "logger", "thread", null, null, null);
+        Thread.sleep(150);
+        sender.send(1, "INFO", "second", "logger", "thread", null, null, null);
+        Assert.assertTrue(middleware.messages().isEmpty());
+
+        while (middleware.messages().isEmpty() && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+            Thread.sleep(5);
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // the deadline follows the first event, the second one does not push it back
+        Assert.assertTrue("sent after " + elapsed + "ms", elapsed >= 200 && elapsed < 340);
+        Assert.assertEquals(1, middleware.batches.size());
+        Assert.assertEquals(2, middleware.batches.get(0).size());
+        sender.close();
+    }
+
+    @Test
+    public void sendersShareOneSchedulerThread() throws Exception {
+        List<HttpEventCollectorSender> senders = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            HttpEventCollectorSender sender = new HttpEventCollectorSender("http://localhost:8088", "token", null, null,
+                    10 + i, 100, 0, "sequential", new HashMap<>(), null);
+            sender.addMiddleware(new CapturingMiddleware());
+            sender.send(0, "INFO", "event", "logger", "thread", null, null, null);
+            senders.add(sender);
+        }
+        Thread.sleep(100);
+        int schedulerThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("splunk-hec-scheduler")) {
+                schedulerThreads++;
+            }
+        }
+        Assert.assertEquals(1, schedulerThreads);
+        for (HttpEventCollectorSender sender : senders) {
+            sender.close();
+        }
+    }
+}
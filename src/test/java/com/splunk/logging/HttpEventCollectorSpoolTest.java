@@ -0,0 +1,332 @@
+package com.splunk.logging;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class HttpEventCollectorSpoolTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private volatile int status = 200;
+    private final BlockingQueue<String> requests = new LinkedBlockingQueue<>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/services/collector/event/1.0", exchange -> {
+            int reply = status;
+            String body = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+            if (reply == 200) {
+                requests.add(body);
+            }
+            byte[] text = (reply == 200
+                    ? "{\"text\":\"Success\",\"code\":0}"
+                    : "{\"text\":\"Server is busy\",\"code\":9}").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(reply, text.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(text);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void replaysSpooledBatchesInOrderOnceServerRecovers() throws Exception {
+        File directory = folder.newFolder();
+        HttpEventCollectorSender sender = createSender();
+        sender.enableSpool(directory.getPath(), HttpEventCollectorSender.DefaultSpoolMaxBytes, 1024, "always");
+
+        status = 503;
+        sender.send(0, "INFO", "event 0", "logger", "thread", null, null, null);
+        // wait for the failed batch to reach the spool, later batches queue up behind it
+        waitForSegments(directory, 1);
+        for (int i = 1; i < 20; i++) {
+            sender.send(i, "INFO", "event " + i, "logger", "thread", null, null, null);
+        }
+        Assert.assertTrue(requests.isEmpty());
+        Assert.assertTrue(directory.list().length > 1);
+
+        status = 200;
+        List<String> delivered = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (delivered.size() < 20 && System.currentTimeMillis() < deadline) {
+            // stands in for the heartbeat, a replay still in flight from the outage may have failed
+            sender.flush();
+            String request = requests.poll(100, TimeUnit.MILLISECONDS);
+            if (request != null) {
+                delivered.add(request);
+            }
+        }
+        Assert.assertEquals(20, delivered.size());
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(delivered.get(i), delivered.get(i).contains("\"event " + i + "\""));
+        }
+        waitForSegments(directory, 0);
+        sender.close();
+    }
+
+    @Test
+    public void replaysBatchesLeftByPreviousSender() throws Exception {
+        File directory = folder.newFolder();
+        HttpEventCollectorSpool spool = new HttpEventCollectorSpool(directory, 1 << 20, 1 << 20,
+                HttpEventCollectorSpool.SyncPolicy.Never);
+        spool.append(batch("left over"));
+        spool.close();
+
+        HttpEventCollectorSender sender = createSender();
+        sender.enableSpool(directory.getPath(), HttpEventCollectorSender.DefaultSpoolMaxBytes,
+                HttpEventCollectorSender.DefaultSpoolSegmentSize, null);
+        sender.send(1, "INFO", "new", "logger", "thread", null, null, null);
+
+        String first = requests.poll(5, TimeUnit.SECONDS);
+        String second = requests.poll(5, TimeUnit.SECONDS);
+        Assert.assertEquals("left over", first);
+        Assert.assertNotNull(second);
+        Assert.assertTrue(second.contains("\"new\""));
+        sender.close();
+    }
+
+    @Test
+    public void rollsOverSegmentsAndDeletesDeliveredOnes() throws Exception {
+        File directory = folder.newFolder();
+        HttpEventCollectorSpool spool = new HttpEventCollectorSpool(directory, 1 << 20, 100,
+                HttpEventCollectorSpool.SyncPolicy.Rollover);
+        for (int i = 0; i < 5; i++) {
+            spool.append(batch("batch number " + i + " padded to take most of a segment ......"));
+        }
+        Assert.assertEquals(5, spool.segmentCount());
+        Assert.assertEquals(5, directory.list().length);
+
+        for (int i = 0; i < 5; i++) {
+            HttpEventCollectorSpool.Record record = spool.peek();
+            Assert.assertEquals("batch number " + i + " padded to take most of a segment ......",
+                    record.getEvents().get(0).getMessage());
+            spool.acknowledge(record);
+            Assert.assertEquals(4 - i, directory.list().length);
+        }
+        Assert.assertNull(spool.peek());
+        Assert.assertTrue(spool.isEmpty());
+        Assert.assertEquals(0, spool.size());
+        spool.close();
+    }
+
+    @Test
+    public void rejectsBatchesOverQuota() throws Exception {
+        File directory = folder.newFolder();
+        HttpEventCollectorSpool spool = new HttpEventCollectorSpool(directory, 100, 1 << 20,
+                HttpEventCollectorSpool.SyncPolicy.Never);
+        spool.append(batch("fits into the quota"));
+        try {
+            spool.append(batch("does not fit into the quota any more, the spool is almost full"));
+            Assert.fail("quota was not enforced");
+        } catch (IOException expected) {
+        }
+        Assert.assertTrue(spool.size() <= 100);
+
+        spool.acknowledge(spool.peek());
+        spool.append(batch("fits again"));
+        Assert.assertEquals("fits again", spool.peek().getEvents().get(0).getMessage());
+        spool.close();
+    }
+
+    @Test
+    public void overQuotaBatchesGoToErrorHandler() throws Exception {
+        final List<List<HttpEventCollectorEventInfo>> errors = Collections.synchronizedList(new ArrayList<>());
+        HttpEventCollectorErrorHandler.onError((data, ex) -> errors.add(data));
+        try {
+            File directory = folder.newFolder();
+            HttpEventCollectorSender sender = createSender();
+            sender.enableSpool(directory.getPath(), 1000, 1 << 20, "never");
+            status = 503;
+            sender.send(0, "INFO", "first", "logger", "thread", null, null, null);
+            waitForSegments(directory, 1);
+            StringBuilder large = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                large.append("0123456789");
+            }
+            sender.send(1, "INFO", large.toString(), "logger", "thread", null, null, null);
+            Assert.assertEquals(1, errors.size());
+            Assert.assertEquals(large.toString(), errors.get(0).get(0).getMessage());
+            sender.close();
+        } finally {
+            HttpEventCollectorErrorHandler.onError(null);
+        }
+    }
+
+    @Test
+    public void recoversFromTornWriteAndDeliveredRecords() throws Exception {
+        File directory = folder.newFolder();
+        HttpEventCollectorSpool spool = new HttpEventCollectorSpool(directory, 1 << 20, 1 << 20,
+                HttpEventCollectorSpool.SyncPolicy.Always);
+        spool.append(batch("delivered"));
+        spool.append(batch("pending"));
+        spool.append(batch("torn"));
+        spool.acknowledge(spool.peek());
+        spool.close();
+
+        // simulate a crash in the middle of the last append
+        File segment = directory.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        spool = new HttpEventCollectorSpool(directory, 1 << 20, 1 << 20, HttpEventCollectorSpool.SyncPolicy.Always);
+        HttpEventCollectorSpool.Record record = spool.peek();
+        Assert.assertEquals("pending", record.getEvents().get(0).getMessage());
+        Assert.assertEquals(7, record.getEvents().get(0).getTimeMillis());
+        spool.acknowledge(record);
+        Assert.assertNull(spool.peek());
+
+        // appends after recovery go to a new segment
+        spool.append(batch("after restart"));
+        Assert.assertEquals("after restart", spool.peek().getEvents().get(0).getMessage());
+        spool.close();
+    }
+
+    @Test
+    public void dropsFullyDeliveredSegmentsOnOpen() throws Exception {
+        File directory = folder.newFolder();
+        HttpEventCollectorSpool spool = new HttpEventCollectorSpool(directory, 1 << 20, 1 << 20,
+                HttpEventCollectorSpool.SyncPolicy.Never);
+        spool.append(batch("one"));
+        spool.close();
+
+        // simulate a crash after the record was marked delivered but before the segment was deleted
+        try (RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw")) {
+            file.seek(8);
+            file.write(1);
+        }
+
+        spool = new HttpEventCollectorSpool(directory, 1 << 20, 1 << 20, HttpEventCollectorSpool.SyncPolicy.Never);
+        Assert.assertTrue(spool.isEmpty());
+        Assert.assertEquals(0, directory.list().length);
+        spool.close();
+    }
+
+    @Test
+    public void skipsAndCountsCorruptRecords() throws Exception {
+        File directory = folder.newFolder();
+        HttpEventCollectorSpool spool = new HttpEventCollectorSpool(directory, 1 << 20, 1 << 20,
+                HttpEventCollectorSpool.SyncPolicy.Always);
+        spool.append(batch("first"));
+        spool.append(batch("broke"));
+        spool.append(batch("third"));
+        corruptSecondRecord(directory.listFiles()[0]);
+
+        HttpEventCollectorSpool.Record record = spool.peek();
+        Assert.assertEquals("first", record.getEvents().get(0).getMessage());
+        spool.acknowledge(record);
+        try {
+            spool.peek();
+            Assert.fail("corruption was not reported");
+        } catch (HttpEventCollectorSpool.CorruptRecordException expected) {
+            Assert.assertEquals(RecordLength, expected.getDroppedBytes());
+        }
+        Assert.assertEquals(RecordLength, spool.droppedBytes());
+        Assert.assertEquals(1, spool.droppedRecords());
+        record = spool.peek();
+        Assert.assertEquals("third", record.getEvents().get(0).getMessage());
+        spool.acknowledge(record);
+        Assert.assertNull(spool.peek());
+        Assert.assertEquals(0, directory.list().length);
+        spool.close();
+    }
+
+    @Test
+    public void corruptRecordsGoToErrorHandler() throws Exception {
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+        HttpEventCollectorErrorHandler.onError((data, ex) -> errors.add(ex));
+        try {
+            File directory = folder.newFolder();
+            HttpEventCollectorSpool spool = new HttpEventCollectorSpool(directory, 1 << 20, 1 << 20,
+                    HttpEventCollectorSpool.SyncPolicy.Never);
+            spool.append(batch("first"));
+            spool.append(batch("broke"));
+            spool.append(batch("third"));
+            spool.close();
+            corruptSecondRecord(directory.listFiles()[0]);
+
+            // replayed without any traffic, the batches after the corrupt one are kept
+            HttpEventCollectorSender sender = createSender();
+            sender.enableSpool(directory.getPath(), HttpEventCollectorSender.DefaultSpoolMaxBytes,
+                    HttpEventCollectorSender.DefaultSpoolSegmentSize, null);
+            Assert.assertEquals("first", requests.poll(5, TimeUnit.SECONDS));
+            Assert.assertEquals("third", requests.poll(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, errors.size());
+            Assert.assertTrue(errors.get(0) instanceof HttpEventCollectorSpool.CorruptRecordException);
+            Assert.assertEquals(RecordLength,
+                    ((HttpEventCollectorSpool.CorruptRecordException) errors.get(0)).getDroppedBytes());
+            sender.close();
+        } finally {
+            HttpEventCollectorErrorHandler.onError(null);
+        }
+    }
+
+    // header, event count, time and length of the single five byte event of each batch
+    private static final int RecordLength = 9 + 4 + 12 + 5;
+
+    private static void corruptSecondRecord(File segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(RecordLength + RecordLength - 1);
+            file.write('X');
+        }
+    }
+
+    private HttpEventCollectorSender createSender() {
+        return new HttpEventCollectorSender(
+                "http://127.0.0.1:" + server.getAddress().getPort(), "token", null, null,
+                0, 1, 0, "sequential", new HashMap<>(), null);
+    }
+
+    private static List<HttpEventCollectorEventInfo> batch(String encoded) {
+        HttpEventCollectorEventInfo event = new HttpEventCollectorEventInfo(
+                7, "INFO", encoded, "logger", "thread", null, null, null);
+        event.setEncoded(encoded.getBytes(StandardCharsets.UTF_8));
+        return Collections.singletonList(event);
+    }
+
+    private static void waitForSegments(File directory, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (directory.list().length != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, directory.list().length);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
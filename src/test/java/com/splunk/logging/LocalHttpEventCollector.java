@@ -0,0 +1,405 @@
+package com.splunk.logging;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonStreamParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for an HTTP event collector, so tests and benchmarks can go
+ * through the real OkHttp path without a Splunk instance. It serves the event, raw,
+ * ack and health endpoints, accepts gzip bodies, counts the events it receives and
+ * can be told to be slow, to cap its throughput or to fail requests.
+ */
+public class LocalHttpEventCollector implements Closeable {
+
+    /**
+     * Ways a request can be made to fail.
+     */
+    public enum Failure {
+        /** 503 server is busy */
+        Busy,
+        /** 400 invalid data format */
+        BadRequest,
+        /** the connection is dropped without a reply */
+        Reset
+    }
+
+    private static final String Success = "{\"text\":\"Success\",\"code\":0}";
+    private static final String ServerBusy = "{\"text\":\"Server is busy\",\"code\":9}";
+    private static final String InvalidDataFormat = "{\"text\":\"Invalid data format\",\"code\":6}";
+    private static final String AckDisabled = "{\"text\":\"ACK is disabled\",\"code\":14}";
+    private static final String Healthy = "{\"text\":\"HEC is healthy\",\"code\":17}";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "local-hec");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile long latencyMillis;
+    private volatile long maxEventsPerSecond;
+    private volatile boolean ackEnabled;
+    private volatile boolean recording;
+    private volatile Failure randomFailure;
+    private volatile double failureRate;
+    private Failure nextFailure;
+    private int nextFailureCount;
+    private long nextFreeNanos;
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong compressedRequests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong nextAckId = new AtomicLong();
+    private final AtomicInteger ackQueries = new AtomicInteger();
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Start listening on an ephemeral port of the loopback interface.
+     * @throws IOException if the server cannot bind
+     */
+    public LocalHttpEventCollector() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/services/collector/event/1.0", exchange -> handleEvents(exchange, false));
+        server.createContext("/services/collector/raw", exchange -> handleEvents(exchange, true));
+        server.createContext("/services/collector/ack", this::handleAck);
+        server.createContext("/services/collector/health", exchange -> reply(exchange, 200, Healthy));
+        server.start();
+    }
+
+    /**
+     * @return base url to configure a sender or appender with
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param millis delay added before every event reply
+     */
+    public void setLatency(long millis) {
+        latencyMillis = millis;
+    }
+
+    /**
+     * Hold replies back so that no more than the given number of events are
+     * accepted per second, like an overloaded indexer would.
+     * @param eventsPerSecond throughput cap, 0 for none
+     */
+    public void setMaxEventsPerSecond(long eventsPerSecond) {
+        synchronized (this) {
+            nextFreeNanos = System.nanoTime();
+        }
+        maxEventsPerSecond = eventsPerSecond;
+    }
+
+    /**
+     * Reply to event posts with an ackId and answer ack queries. Every ackId is
+     * reported as indexed.
+     * @param enabled true to behave like a token with indexer acknowledgement
+     */
+    public void setAckEnabled(boolean enabled) {
+        ackEnabled = enabled;
+    }
+
+    /**
+     * Keep the received events, see getEvents. Off by default so that long
+     * benchmarks do not hold every event.
+     * @param recording true to keep events
+     */
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Fail the next event posts.
+     * @param failure how to fail
+     * @param count number of requests to fail
+     */
+    public synchronized void failNext(Failure failure, int count) {
+        nextFailure = failure;
+        nextFailureCount = count;
+    }
+
+    /**
+     * Fail a random share of the event posts.
+     * @param failure how to fail, null for none
+     * @param rate share of the requests to fail, from 0 to 1
+     */
+    public void setFailureRate(Failure failure, double rate) {
+        failureRate = rate;
+        randomFailure = failure;
+    }
+
+    /**
+     * @return number of events accepted
+     */
+    public long getEventCount() {
+        return events.get();
+    }
+
+    /**
+     * @return number of event posts, including failed ones
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of event posts that were failed on purpose
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return number of event posts that came gzip compressed
+     */
+    public long getCompressedRequestCount() {
+        return compressedRequests.get();
+    }
+
+    /**
+     * @return number of body bytes received on the wire
+     */
+    public long getBytesReceived() {
+        return bytes.get();
+    }
+
+    /**
+     * @return number of ack queries answered
+     */
+    public int getAckQueryCount() {
+        return ackQueries.get();
+    }
+
+    /**
+     * @return the events accepted while recording, as json for the event endpoint
+     * and as text lines for the raw endpoint
+     */
+    public List<String> getEvents() {
+        synchronized (received) {
+            return new ArrayList<>(received);
+        }
+    }
+
+    /**
+     * Wait until the given number of events has been accepted.
+     * @param count events to wait for
+     * @param timeoutMillis how long to wait
+     * @return true if the events arrived in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitEvents(long count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (events.get() < count) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleEvents(HttpExchange exchange, boolean raw) throws IOException {
+        requests.incrementAndGet();
+        byte[] body = readBody(exchange);
+        Failure failure = nextFailure();
+        if (failure != null) {
+            failures.incrementAndGet();
+            fail(exchange, failure);
+            return;
+        }
+
+        List<String> parsed = raw ? splitLines(body) : splitEvents(body);
+        if (parsed == null) {
+            reply(exchange, 400, InvalidDataFormat);
+            return;
+        }
+        sleep(latencyMillis + throttle(parsed.size()));
+        events.addAndGet(parsed.size());
+        if (recording) {
+            received.addAll(parsed);
+        }
+        if (ackEnabled) {
+            reply(exchange, 200, "{\"text\":\"Success\",\"code\":0,\"ackId\":" + nextAckId.getAndIncrement() + "}");
+        } else {
+            reply(exchange, 200, Success);
+        }
+    }
+
+    private void handleAck(HttpExchange exchange) throws IOException {
+        byte[] body = readBody(exchange);
+        if (!ackEnabled) {
+            reply(exchange, 400, AckDisabled);
+            return;
+        }
+        JsonObject acks = new JsonObject();
+        try {
+            for (JsonElement ackId : JsonParser.parseString(new String(body, StandardCharsets.UTF_8))
+                    .getAsJsonObject().getAsJsonArray("acks")) {
+                acks.addProperty(ackId.getAsString(), ackId.getAsLong() < nextAckId.get());
+            }
+        } catch (RuntimeException e) {
+            reply(exchange, 400, InvalidDataFormat);
+            return;
+        }
+        ackQueries.incrementAndGet();
+        JsonObject reply = new JsonObject();
+        reply.add("acks", acks);
+        reply(exchange, 200, reply.toString());
+    }
+
+    private synchronized Failure nextFailure() {
+        if (nextFailureCount > 0) {
+            nextFailureCount--;
+            return nextFailure;
+        }
+        Failure failure = randomFailure;
+        if (failure != null && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            return failure;
+        }
+        return null;
+    }
+
+    private void fail(HttpExchange exchange, Failure failure) throws IOException {
+        switch (failure) {
+            case Busy:
+                reply(exchange, 503, ServerBusy);
+                break;
+            case BadRequest:
+                reply(exchange, 400, InvalidDataFormat);
+                break;
+            case Reset:
+                // closing before the reply headers makes the server drop the connection
+                exchange.close();
+                break;
+        }
+    }
+
+    /**
+     * @return milliseconds to hold the reply back to stay under the throughput cap
+     */
+    private long throttle(int count) {
+        long rate = maxEventsPerSecond;
+        if (rate <= 0) {
+            return 0;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFreeNanos);
+            nextFreeNanos = start + count * TimeUnit.SECONDS.toNanos(1) / rate;
+            return TimeUnit.NANOSECONDS.toMillis(start - now);
+        }
+    }
+
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        byte[] wire = readAll(exchange.getRequestBody());
+        bytes.addAndGet(wire.length);
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            compressedRequests.incrementAndGet();
+            return readAll(new GZIPInputStream(new ByteArrayInputStream(wire)));
+        }
+        return wire;
+    }
+
+    /**
+     * @return the concatenated json events of a post, null if it is not valid json
+     */
+    private static List<String> splitEvents(byte[] body) {
+        List<String> events = new ArrayList<>();
+        Reader reader = new StringReader(new String(body, StandardCharsets.UTF_8));
+        try {
+            JsonStreamParser parser = new JsonStreamParser(reader);
+            while (parser.hasNext()) {
+                JsonElement event = parser.next();
+                if (!event.isJsonObject() || !event.getAsJsonObject().has("event")) {
+                    return null;
+                }
+                events.add(event.toString());
+            }
+        } catch (JsonParseException e) {
+            return null;
+        }
+        return events;
+    }
+
+    private static List<String> splitLines(byte[] body) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void reply(HttpExchange exchange, int status, String reply) throws IOException {
+        byte[] text = reply.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, text.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(text);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
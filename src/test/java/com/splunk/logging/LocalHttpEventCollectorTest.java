@@ -0,0 +1,162 @@
+package com.splunk.logging;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+public class LocalHttpEventCollectorTest {
+    private final LocalHttpEventCollector collector;
+
+    public LocalHttpEventCollectorTest() throws IOException {
+        collector = new LocalHttpEventCollector();
+        collector.setRecording(true);
+    }
+
+    @After
+    public void stopCollector() {
+        collector.close();
+    }
+
+    @Test
+    public void countsEventsPostedBySender() throws Exception {
+        HttpEventCollectorSender sender = createSender(null, 5);
+        send(sender, 20);
+        Assert.assertTrue(collector.awaitEvents(20, 5000));
+        Assert.assertEquals(4, collector.getRequestCount());
+        Assert.assertTrue(collector.getEvents().get(0).contains("\"event 0\""));
+        sender.close();
+    }
+
+    @Test
+    public void acceptsGzipBodies() throws Exception {
+        HttpEventCollectorSender sender = createSender(null, 5);
+        sender.enableCompression(-1, 0);
+        send(sender, 10);
+        Assert.assertTrue(collector.awaitEvents(10, 5000));
+        Assert.assertEquals(2, collector.getCompressedRequestCount());
+        sender.close();
+    }
+
+    @Test
+    public void splitsRawPostsIntoLines() throws Exception {
+        HttpEventCollectorSender sender = createSender("Raw", 3);
+        send(sender, 3);
+        Assert.assertTrue(collector.awaitEvents(3, 5000));
+        Assert.assertEquals(1, collector.getRequestCount());
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            expected.add("event " + i);
+        }
+        Assert.assertEquals(expected, collector.getEvents());
+        sender.close();
+    }
+
+    @Test
+    public void injectedFailuresAreRetried() throws Exception {
+        HttpEventCollectorSender sender = createSender(null, 1);
+        sender.addMiddleware(new HttpEventCollectorResendMiddleware(5));
+        collector.failNext(LocalHttpEventCollector.Failure.Busy, 2);
+        send(sender, 1);
+        Assert.assertTrue(collector.awaitEvents(1, 10000));
+        Assert.assertEquals(2, collector.getFailureCount());
+
+        collector.failNext(LocalHttpEventCollector.Failure.Reset, 1);
+        send(sender, 1);
+        Assert.assertTrue(collector.awaitEvents(2, 10000));
+        Assert.assertEquals(3, collector.getFailureCount());
+        sender.close();
+    }
+
+    @Test
+    public void outageDoesNotGrowThreadCount() throws Exception {
+        HttpEventCollectorSender sender = createSender(null, 1);
+        sender.addMiddleware(new HttpEventCollectorResendMiddleware(10));
+        collector.setFailureRate(LocalHttpEventCollector.Failure.Busy, 1);
+        send(sender, 200);
+        Thread.sleep(200);
+        int baseline = Thread.activeCount();
+        // 200 batches back off with overlapping delays for a few seconds
+        long deadline = System.currentTimeMillis() + 3000;
+        while (System.currentTimeMillis() < deadline) {
+            int workers = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("splunk-hec-worker")) {
+                    workers++;
+                }
+            }
+            Assert.assertTrue(workers <= HttpEventCollectorScheduler.WorkerThreads);
+            Assert.assertTrue(Thread.activeCount() < baseline + 20);
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, collector.getEventCount());
+        collector.setFailureRate(null, 0);
+        Assert.assertTrue(collector.awaitEvents(200, 60000));
+        sender.close();
+    }
+
+    @Test
+    public void badRequestGoesToErrorHandler() throws Exception {
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+        HttpEventCollectorErrorHandler.onError((data, ex) -> errors.add(ex));
+        try {
+            HttpEventCollectorSender sender = createSender(null, 1);
+            sender.addMiddleware(new HttpEventCollectorResendMiddleware(5));
+            collector.failNext(LocalHttpEventCollector.Failure.BadRequest, 1);
+            send(sender, 1);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (errors.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            sender.close();
+            Assert.assertEquals(1, errors.size());
+            Assert.assertEquals(0, collector.getEventCount());
+        } finally {
+            HttpEventCollectorErrorHandler.onError(null);
+        }
+    }
+
+    @Test
+    public void answersAckQueries() throws Exception {
+        collector.setAckEnabled(true);
+        HttpEventCollectorSender sender = createSender(null, 1);
+        sender.enableAck(50, 60000, 100);
+        send(sender, 5);
+        Assert.assertTrue(collector.awaitEvents(5, 5000));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.getUnackedBatchCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, sender.getUnackedBatchCount());
+        Assert.assertTrue(collector.getAckQueryCount() > 0);
+        sender.close();
+    }
+
+    @Test
+    public void capsThroughput() throws Exception {
+        collector.setMaxEventsPerSecond(100);
+        HttpEventCollectorSender sender = createSender(null, 10);
+        long start = System.currentTimeMillis();
+        send(sender, 50);
+        Assert.assertTrue(collector.awaitEvents(50, 5000));
+        // the first batch goes through at once, the other four wait 100ms each
+        Assert.assertTrue(System.currentTimeMillis() - start >= 350);
+        sender.close();
+    }
+
+    private HttpEventCollectorSender createSender(String type, int batchCount) {
+        return new HttpEventCollectorSender(collector.getUrl(), "token", null, type,
+                0, batchCount, 0, "sequential", new HashMap<>(), null);
+    }
+
+    private static void send(HttpEventCollectorSender sender, int count) {
+        for (int i = 0; i < count; i++) {
+            sender.send(i, "INFO", "event " + i, "logger", "thread", null, null, null);
+        }
+    }
+}
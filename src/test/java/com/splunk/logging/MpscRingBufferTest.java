@@ -0,0 +1,81 @@
+package com.splunk.logging;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class MpscRingBufferTest {
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        Assert.assertEquals(1, new MpscRingBuffer<String>(1).capacity());
+        Assert.assertEquals(8, new MpscRingBuffer<String>(5).capacity());
+        Assert.assertEquals(1024, new MpscRingBuffer<String>(1024).capacity());
+    }
+
+    @Test
+    public void offerFailsWhenFullAndRecoversAfterPoll() {
+        MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(4);
+        Assert.assertTrue(ring.isEmpty());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(ring.offer(i));
+        }
+        Assert.assertFalse(ring.offer(4));
+        Assert.assertEquals(Integer.valueOf(0), ring.poll());
+        Assert.assertTrue(ring.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            Assert.assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        Assert.assertNull(ring.poll());
+        Assert.assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void concurrentProducersKeepPerProducerOrder() throws InterruptedException {
+        final int producers = 8;
+        final int eventsPerProducer = 50000;
+        final MpscRingBuffer<long[]> ring = new MpscRingBuffer<>(256);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (long i = 0; i < eventsPerProducer; i++) {
+                    long[] event = new long[]{producer, i};
+                    while (!ring.offer(event)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+
+        long[] next = new long[producers];
+        long received = 0;
+        while (received < (long) producers * eventsPerProducer) {
+            long[] event = ring.poll();
+            if (event == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer = (int) event[0];
+            Assert.assertEquals(next[producer], event[1]);
+            next[producer]++;
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,188 @@
+package com.splunk.logging;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.util.Duration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+public class TcpAppenderTest {
+    private final LoggerContext context = new LoggerContext();
+    private final Logger logger = context.getLogger("tcp");
+    private ServerSocket server;
+    private TcpAppender appender;
+
+    @Before
+    public void listen() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(5000);
+    }
+
+    @After
+    public void stop() throws IOException {
+        if (appender != null) {
+            appender.stop();
+        }
+        server.close();
+        context.stop();
+    }
+
+    @Test
+    public void writesQueuedEventsInOrder() throws IOException {
+        appender = createAppender(100);
+        try (Socket socket = server.accept();
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            for (int i = 0; i < 1000; i++) {
+                append("event " + i);
+            }
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertEquals("event " + i, reader.readLine());
+            }
+        }
+    }
+
+    @Test
+    public void flushesAfterLingerTime() throws IOException {
+        appender = new TcpAppender();
+        appender.setLingerTime(new Duration(50));
+        appender = createAppender(appender, 1000);
+        try (Socket socket = server.accept();
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            append("lonely event");
+            Assert.assertEquals("lonely event", reader.readLine());
+        }
+    }
+
+    @Test
+    public void sharesOneSelectorThread() throws IOException {
+        appender = createAppender(10);
+        TcpAppender second = createAppender(10);
+        try (Socket first = server.accept();
+             Socket other = server.accept()) {
+            int selectors = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("splunk-tcp-selector")) {
+                    selectors++;
+                }
+            }
+            Assert.assertEquals(1, selectors);
+        } finally {
+            second.stop();
+        }
+    }
+
+    @Test
+    public void reconnectsAfterPeerCloses() throws IOException {
+        appender = new TcpAppender();
+        appender.setReconnectionDelay(50);
+        appender = createAppender(appender, 10);
+        server.accept().close();
+        try (Socket socket = server.accept();
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            append("after reconnect");
+            Assert.assertEquals("after reconnect", reader.readLine());
+        }
+    }
+
+    @Test
+    public void keepsEventsInOverflowDuringOutage() throws IOException {
+        appender = new TcpAppender();
+        appender.setReconnectionDelay(50);
+        appender.setOverflow("memory");
+        appender.setReplayBufferSize(65536);
+        appender = createAppender(appender, 10);
+        int port = server.getLocalPort();
+        Socket first = server.accept();
+        server.close();
+        first.close();
+        sleep(200);
+        for (int i = 0; i < 500; i++) {
+            append("event " + i);
+        }
+        Assert.assertEquals(490, appender.getOverflowEvents());
+
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.setSoTimeout(5000);
+        try (Socket socket = server.accept();
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            for (int i = 0; i < 500; i++) {
+                Assert.assertEquals("event " + i, reader.readLine());
+            }
+        }
+        Assert.assertEquals(0, appender.getDroppedEvents());
+        Assert.assertEquals(0, appender.getOverflowEvents());
+    }
+
+    @Test
+    public void countsDroppedEvents() throws IOException {
+        int port = server.getLocalPort();
+        server.close();
+        appender = new TcpAppender();
+        appender.setEventDelayLimit(new Duration(1));
+        appender.setContext(context);
+        appender.setRemoteHost(InetAddress.getLoopbackAddress().getHostAddress());
+        appender.setPort(port);
+        appender.setQueueSize(5);
+        appender.setEncoder(createEncoder());
+        appender.start();
+        for (int i = 0; i < 20; i++) {
+            append("event " + i);
+        }
+        Assert.assertEquals(15, appender.getDroppedEvents());
+        Assert.assertEquals(5, appender.getPendingEvents());
+    }
+
+    private TcpAppender createAppender(int batchSize) {
+        TcpAppender appender = new TcpAppender();
+        appender.setBatchSize(batchSize);
+        return createAppender(appender, batchSize);
+    }
+
+    private TcpAppender createAppender(TcpAppender appender, int queueSize) {
+        appender.setContext(context);
+        appender.setRemoteHost(InetAddress.getLoopbackAddress().getHostAddress());
+        appender.setPort(server.getLocalPort());
+        appender.setQueueSize(queueSize);
+        appender.setEventDelayLimit(new Duration(5000));
+        appender.setEncoder(createEncoder());
+        appender.start();
+        return appender;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private PatternLayoutEncoder createEncoder() {
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(context);
+        encoder.setPattern("%msg%n");
+        encoder.setCharset(StandardCharsets.UTF_8);
+        encoder.start();
+        return encoder;
+    }
+
+    private void append(String message) {
+        appender.doAppend(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, null, null));
+    }
+}
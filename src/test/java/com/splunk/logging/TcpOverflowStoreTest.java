@@ -0,0 +1,91 @@
+package com.splunk.logging;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class TcpOverflowStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void memoryStoreDropsOldest() {
+        TcpMemoryOverflowStore store = new TcpMemoryOverflowStore(10);
+        Assert.assertEquals(0, store.add(bytes("aaaa")));
+        Assert.assertEquals(0, store.add(bytes("bbbb")));
+        Assert.assertEquals(1, store.add(bytes("cccc")));
+        Assert.assertEquals(1, store.add(new byte[11]));
+        Assert.assertEquals("bbbb", text(store.poll()));
+        Assert.assertEquals("cccc", text(store.poll()));
+        Assert.assertNull(store.poll());
+    }
+
+    @Test
+    public void diskStoreKeepsOrderAcrossBuffers() throws IOException {
+        try (TcpDiskOverflowStore store = new TcpDiskOverflowStore(folder.getRoot(), 1 << 20)) {
+            byte[] large = new byte[100000];
+            Arrays.fill(large, (byte) 'x');
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertEquals(0, store.add(bytes("event " + i)));
+            }
+            Assert.assertEquals(0, store.add(large));
+            Assert.assertEquals(0, store.add(bytes("last")));
+            Assert.assertEquals(1002, store.size());
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertEquals("event " + i, text(store.poll()));
+            }
+            Assert.assertArrayEquals(large, store.poll());
+            Assert.assertEquals("last", text(store.poll()));
+            Assert.assertNull(store.poll());
+
+            // the segment starts over once it has been read
+            store.add(bytes("again"));
+            Assert.assertEquals("again", text(store.poll()));
+        }
+        Assert.assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void diskStoreDropsOldestWhenFull() throws IOException {
+        try (TcpDiskOverflowStore store = new TcpDiskOverflowStore(folder.getRoot(), 16)) {
+            Assert.assertEquals(0, store.add(bytes("aaaaaaaa")));
+            Assert.assertEquals(1, store.add(bytes("bbbb")));
+            Assert.assertEquals(0, store.add(bytes("cccc")));
+            Assert.assertEquals(1, store.add(new byte[13]));
+            Assert.assertEquals(2, store.size());
+            Assert.assertEquals("bbbb", text(store.poll()));
+            Assert.assertEquals("cccc", text(store.poll()));
+            Assert.assertNull(store.poll());
+        }
+    }
+
+    @Test
+    public void diskStoreStaysBoundedUnderSteadyTraffic() throws IOException {
+        try (TcpDiskOverflowStore store = new TcpDiskOverflowStore(folder.getRoot(), 1 << 20)) {
+            byte[] event = new byte[1000];
+            Arrays.fill(event, (byte) 'x');
+            // never empty, so the segment is never truncated as a whole
+            Assert.assertEquals(0, store.add(bytes("first")));
+            for (int i = 0; i < 10000; i++) {
+                Assert.assertEquals(0, store.add(event));
+                store.poll();
+            }
+            Assert.assertEquals(1, store.size());
+            Assert.assertTrue(folder.getRoot().listFiles()[0].length() < 3 << 20);
+            Assert.assertArrayEquals(event, store.poll());
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
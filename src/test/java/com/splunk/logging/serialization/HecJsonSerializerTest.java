@@ -0,0 +1,106 @@
+package com.splunk.logging.serialization;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.splunk.logging.HttpEventCollectorEventInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+public class HecJsonSerializerTest {
+
+    @Test
+    public void writerEscapesLikeGson() {
+        Utf8JsonWriter writer = new Utf8JsonWriter(16);
+        writer.writeString("a\"b\\c\t\n\r\b\f\u0001\u007f\u2028<é中😀");
+        Assert.assertEquals("\"a\\\"b\\\\c\\t\\n\\r\\b\\f\\u0001\u007f\\u2028<é中😀\"", writer.toString());
+
+        writer.reset();
+        writer.writeString("x\uD800y");
+        Assert.assertArrayEquals("\"x?y\"".getBytes(StandardCharsets.UTF_8), writer.toByteArray());
+    }
+
+    @Test
+    public void writerDropsNullObjectMembersOnly() {
+        Utf8JsonWriter writer = new Utf8JsonWriter();
+        writer.writeJsonElement(JsonParser.parseString("{a:1.50, b:null, c:[1,null,\"s\"], d:{e:false}}"));
+        Assert.assertEquals("{\"a\":1.50,\"c\":[1,null,\"s\"],\"d\":{\"e\":false}}", writer.toString());
+    }
+
+    @Test
+    public void serializesEnvelopeAndBody() {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put("index", "main");
+        metadata.put("custom", "value");
+        HecJsonSerializer serializer = new HecJsonSerializer(metadata);
+        Map<String, String> properties = new HashMap<>();
+        properties.put("key", "v");
+
+        HttpEventCollectorEventInfo info = new HttpEventCollectorEventInfo(
+                1500000000123L, "INFO", "{\"n\":1}", "logger", "main", properties, null, null);
+        String json = serializer.serialize(info);
+
+        JsonObject event = JsonParser.parseString(json).getAsJsonObject();
+        Assert.assertEquals("1500000000.123", event.get("time").getAsString());
+        Assert.assertEquals("main", event.get("index").getAsString());
+        Assert.assertEquals("value", event.getAsJsonObject("fields").get("custom").getAsString());
+        JsonObject body = event.getAsJsonObject("event");
+        Assert.assertEquals(1, body.getAsJsonObject("message").get("n").getAsInt());
+        Assert.assertEquals("INFO", body.get("severity").getAsString());
+        Assert.assertEquals("v", body.getAsJsonObject("properties").get("key").getAsString());
+        Assert.assertFalse(body.has("exception"));
+
+        Utf8JsonWriter writer = new Utf8JsonWriter();
+        serializer.serialize(info, writer);
+        serializer.serialize(info, writer);
+        Assert.assertEquals(json + json, writer.toString());
+    }
+
+    @Test
+    public void headerSerializerOverridesRenderedMetadata() {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put("host", "static");
+        metadata.put("source", null);
+        HecJsonSerializer serializer = new HecJsonSerializer(metadata);
+        HttpEventCollectorEventInfo info = new HttpEventCollectorEventInfo(
+                0, null, "m", null, null, null, null, null);
+        Assert.assertEquals("{\"host\":\"static\",\"time\":\"0.000\",\"event\":{\"message\":\"m\"}}",
+                serializer.serialize(info));
+
+        serializer.setEventHeaderSerializer((eventInfo, header) -> {
+            header.put("host", "dynamic");
+            return header;
+        });
+        JsonObject event = JsonParser.parseString(serializer.serialize(info)).getAsJsonObject();
+        Assert.assertEquals("dynamic", event.get("host").getAsString());
+        Assert.assertFalse(event.has("source"));
+
+        serializer.setEventHeaderSerializer(null);
+        Assert.assertTrue(serializer.serialize(info).startsWith("{\"host\":\"static\""));
+    }
+
+    @Test
+    public void formatsEpochSecondsLikeStringFormat() {
+        HecJsonSerializer serializer = new HecJsonSerializer(new HashMap<>());
+        long[] samples = {0, 1, 9, 10, 999, 1000, 1001, -1, -500, -1000, -1999, 1715000000042L};
+        for (long millis : samples) {
+            HttpEventCollectorEventInfo info = new HttpEventCollectorEventInfo(
+                    millis, null, "m", null, null, null, null, null);
+            JsonObject event = JsonParser.parseString(serializer.serialize(info)).getAsJsonObject();
+            Assert.assertEquals(String.format(Locale.US, "%.3f", millis / 1000.0), event.get("time").getAsString());
+        }
+    }
+
+    @Test
+    public void keepsPlainTextMessagesAsStrings() {
+        HecJsonSerializer serializer = new HecJsonSerializer(new HashMap<>());
+        HttpEventCollectorEventInfo info = new HttpEventCollectorEventInfo(
+                0, null, "not json {", null, null, null, null, null);
+        Assert.assertEquals("{\"time\":\"0.000\",\"event\":{\"message\":\"not json {\"}}", serializer.serialize(info));
+    }
+}
@@ -0,0 +1,116 @@
+package com.splunk.logging.serialization;
+
+import com.splunk.logging.HttpEventCollectorEventInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+public class JsonMessageScannerTest {
+
+    @Test
+    public void detectsJsonShape() {
+        Assert.assertTrue(JsonMessageScanner.looksLikeJson("{\"a\":1}"));
+        Assert.assertTrue(JsonMessageScanner.looksLikeJson(" \n[1, 2]\t"));
+        Assert.assertFalse(JsonMessageScanner.looksLikeJson("{\"a\":1} trailing"));
+        Assert.assertFalse(JsonMessageScanner.looksLikeJson("123"));
+        Assert.assertFalse(JsonMessageScanner.looksLikeJson("   "));
+        Assert.assertFalse(JsonMessageScanner.looksLikeJson(""));
+    }
+
+    @Test
+    public void copiesValidJsonCompacted() {
+        assertCopy("{\"a\":[1,-2.5e+3,true,false,null],\"b\":{},\"c\":\"x\\\"é\"}",
+                " { \"a\" : [ 1 , -2.5e+3 , true , false , null ] ,\n \"b\" : { } , \"c\" : \"x\\\"\\u00e9\" } ");
+        assertCopy("[]", "[ ]");
+        assertCopy("\"é😀\"", "\"é😀\"");
+    }
+
+    @Test
+    public void rejectsInvalidJson() {
+        String[] invalid = {"{a:1}", "{\"a\":1,}", "[1,]", "[01]", "[1.]", "[.5]", "{\"a\" 1}", "[\"\\x\"]",
+                "[\"\\u12g4\"]", "[\"tab\there\"]", "[tru]", "{\"a\":1}}", "[1] [2]", "{\"a\":", "\"open"};
+        for (String message : invalid) {
+            Utf8JsonWriter writer = new Utf8JsonWriter();
+            Assert.assertFalse(message, JsonMessageScanner.copy(message, writer));
+        }
+    }
+
+    @Test
+    public void messageParsingModes() {
+        HttpEventCollectorEventInfo json = event("{\"level\": 1}");
+        HttpEventCollectorEventInfo lenient = event("{level: 1}");
+        HttpEventCollectorEventInfo scalar = event("123");
+        HecJsonSerializer serializer = new HecJsonSerializer(new HashMap<>());
+
+        Assert.assertEquals("{\"time\":\"0.000\",\"event\":{\"message\":{\"level\":1}}}", serializer.serialize(json));
+        Assert.assertEquals("{\"time\":\"0.000\",\"event\":{\"message\":{\"level\":1}}}", serializer.serialize(lenient));
+        Assert.assertEquals("{\"time\":\"0.000\",\"event\":{\"message\":\"123\"}}", serializer.serialize(scalar));
+
+        serializer.setMessageParsing(MessageParsing.JSON);
+        Assert.assertEquals("{\"time\":\"0.000\",\"event\":{\"message\":123}}", serializer.serialize(scalar));
+        Assert.assertEquals("{\"time\":\"0.000\",\"event\":{\"message\":\"null\"}}", serializer.serialize(event("null")));
+        Assert.assertEquals("{\"time\":\"0.000\",\"event\":{\"message\":\"not json\"}}", serializer.serialize(event("not json")));
+
+        serializer.setMessageParsing(MessageParsing.TEXT);
+        Assert.assertEquals("{\"time\":\"0.000\",\"event\":{\"message\":\"{\\\"level\\\": 1}\"}}", serializer.serialize(json));
+    }
+
+    @Test
+    public void writesValidJsonLikeTheGsonTree() {
+        // escapes are decoded and written again, null members and duplicate keys go as with Gson
+        String[] messages = {"{ \"a\": \"\\u00e9\\/\\t\\u2028\", \"n\": null, \"x\": 1.50, \"o\": {\"m\": null} }",
+                "{\"a\":1,\"a\":null}", "{\"a\":null,\"b\":1,\"a\":2}", "{\"\\u0061\":1,\"a\":2}",
+                "[null,{\"k\":[{},{\"k\":1}]},\"\u2029\",-0,1E5]", "{\"a\":{\"a\":1},\"b\":{\"a\":2}}"};
+        for (String message : messages) {
+            Utf8JsonWriter expected = new Utf8JsonWriter().writeJsonElement(JsonMessageScanner.parseLenient(message));
+            Utf8JsonWriter writer = new Utf8JsonWriter();
+            if (!JsonMessageScanner.copy(message, writer)) {
+                writer.reset();
+                writer.writeJsonElement(JsonMessageScanner.parseLenient(message));
+            }
+            Assert.assertEquals(message, expected.toString(), writer.toString());
+        }
+        Assert.assertEquals("{\"a\":\"é/\\t\\u2028\",\"x\":1.50,\"o\":{}}", copy(messages[0]));
+        Assert.assertEquals("{\"a\":2,\"b\":1}", new Utf8JsonWriter().writeJsonElement(
+                JsonMessageScanner.parseLenient(messages[2])).toString());
+
+        // the Gson path, when a header serializer bypasses the pre-rendered envelope, agrees
+        HecJsonSerializer serializer = new HecJsonSerializer(new HashMap<>());
+        String rendered = serializer.serialize(event(messages[0]));
+        serializer.setEventHeaderSerializer((eventInfo, header) -> {
+            header.put("time", "0.000");
+            return header;
+        });
+        Assert.assertEquals(rendered, serializer.serialize(event(messages[0])));
+    }
+
+    @Test
+    public void parsesModeNames() {
+        Assert.assertEquals(MessageParsing.AUTO, MessageParsing.fromString(null));
+        Assert.assertEquals(MessageParsing.AUTO, MessageParsing.fromString(""));
+        Assert.assertEquals(MessageParsing.TEXT, MessageParsing.fromString("Text"));
+        Assert.assertEquals(MessageParsing.JSON, MessageParsing.fromString(" json "));
+        try {
+            MessageParsing.fromString("xml");
+            Assert.fail("unknown mode accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static String copy(String message) {
+        Utf8JsonWriter writer = new Utf8JsonWriter();
+        Assert.assertTrue(message, JsonMessageScanner.copy(message, writer));
+        return writer.toString();
+    }
+
+    private static void assertCopy(String expected, String message) {
+        Utf8JsonWriter writer = new Utf8JsonWriter();
+        Assert.assertTrue(message, JsonMessageScanner.copy(message, writer));
+        Assert.assertEquals(expected, writer.toString());
+    }
+
+    private static HttpEventCollectorEventInfo event(String message) {
+        return new HttpEventCollectorEventInfo(0, null, message, null, null, null, null, null);
+    }
+}